@@ -0,0 +1,207 @@
+/**
+ * Copyright (c) 2018 mobdev313. Allright reserved.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package com.mobdev.card;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.util.HashMap;
+
+import android.content.Context;
+import android.content.res.AssetManager;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.graphics.RectF;
+
+/**
+ * Card faces packed into atlas pages at build time by packCardAtlas task,
+ * see cardatlas.gradle. Regions are named after the drawables they were
+ * packed from. Pages are decoded by loadPage off GL thread and shared by
+ * all views.
+ */
+public class CardAtlas {
+
+    // Manifest written next to atlas pages into assets.
+    private static final String MANIFEST = "card_atlas.txt";
+
+    private static CardAtlas sInstance;
+    private static boolean sLoaded;
+
+    private final AssetManager mAssets;
+    private final String[] mPageFiles;
+    private final Bitmap[] mPages;
+    private final HashMap<String, Region> mRegions = new HashMap<String, Region>();
+
+    /**
+     * Returns shared atlas, or null if application was built without one.
+     */
+    public static synchronized CardAtlas get(Context context) {
+        if (!sLoaded) {
+            sLoaded = true;
+            try {
+                sInstance = new CardAtlas(context.getApplicationContext().getAssets());
+            } catch (IOException e) {
+                sInstance = null;
+            }
+        }
+        return sInstance;
+    }
+
+    /**
+     * Reads region manifest. Lines are either
+     * "page <index> <file> <width> <height>" or
+     * "region <name> <page> <x> <y> <width> <height>", sizes in pixels.
+     */
+    private CardAtlas(AssetManager assets) throws IOException {
+        mAssets = assets;
+        HashMap<Integer, String> files = new HashMap<Integer, String>();
+        HashMap<Integer, int[]> sizes = new HashMap<Integer, int[]>();
+        HashMap<String, int[]> regions = new HashMap<String, int[]>();
+
+        BufferedReader reader = new BufferedReader(new InputStreamReader(
+                assets.open(MANIFEST), "UTF-8"));
+        try {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                String[] f = line.trim().split("\\s+");
+                if (f[0].equals("page") && f.length == 5) {
+                    int index = Integer.parseInt(f[1]);
+                    files.put(index, f[2]);
+                    sizes.put(index, new int[] { Integer.parseInt(f[3]),
+                            Integer.parseInt(f[4]) });
+                } else if (f[0].equals("region") && f.length == 7) {
+                    regions.put(f[1], new int[] { Integer.parseInt(f[2]),
+                            Integer.parseInt(f[3]), Integer.parseInt(f[4]),
+                            Integer.parseInt(f[5]), Integer.parseInt(f[6]) });
+                }
+            }
+        } catch (NumberFormatException e) {
+            throw new IOException("Malformed " + MANIFEST);
+        } finally {
+            reader.close();
+        }
+
+        mPageFiles = new String[files.size()];
+        mPages = new Bitmap[files.size()];
+        for (int i = 0; i < mPageFiles.length; ++i) {
+            mPageFiles[i] = files.get(i);
+            if (mPageFiles[i] == null) {
+                throw new IOException("Missing atlas page " + i);
+            }
+        }
+        for (String name : regions.keySet()) {
+            int[] r = regions.get(name);
+            int[] size = r[0] < mPageFiles.length ? sizes.get(r[0]) : null;
+            if (size == null) {
+                throw new IOException("Missing atlas page " + r[0]);
+            }
+            mRegions.put(name, new Region(r[0], new RectF(
+                    (float) r[1] / size[0], (float) r[2] / size[1],
+                    (float) (r[1] + r[3]) / size[0], (float) (r[2] + r[4]) / size[1])));
+        }
+    }
+
+    /**
+     * Returns true if there is a region of given name.
+     */
+    public boolean hasRegion(String name) {
+        return mRegions.containsKey(name);
+    }
+
+    /**
+     * Returns true if atlas page holding region of given name has been
+     * decoded.
+     */
+    public synchronized boolean isPageLoaded(String name) {
+        Region region = mRegions.get(name);
+        return region != null && mPages[region.mPage] != null;
+    }
+
+    /**
+     * Decodes atlas page holding region of given name unless it's decoded
+     * already. Returns false if there is no such region or page can't be
+     * decoded. Page is decoded on calling thread without holding the lock,
+     * so this should be called on a background thread.
+     */
+    public boolean loadPage(String name) {
+        Region region = mRegions.get(name);
+        if (region == null) {
+            return false;
+        }
+        if (isPageLoaded(name)) {
+            return true;
+        }
+        Bitmap page;
+        try {
+            InputStream in = mAssets.open(mPageFiles[region.mPage]);
+            try {
+                BitmapFactory.Options options = new BitmapFactory.Options();
+                options.inScaled = false;
+                page = BitmapFactory.decodeStream(in, null, options);
+            } finally {
+                in.close();
+            }
+        } catch (IOException e) {
+            return false;
+        }
+        if (page == null) {
+            return false;
+        }
+        synchronized (this) {
+            // Page decoded meanwhile by another view is kept.
+            if (mPages[region.mPage] == null) {
+                mPages[region.mPage] = page;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Returns atlas page holding region of given name and fills its
+     * normalized texture coordinates into rect. Returns null if there is no
+     * such region or page is not decoded yet, see loadPage. Never decodes,
+     * so it can be called on GL thread.
+     */
+    public synchronized Bitmap getRegion(String name, RectF rect) {
+        Region region = mRegions.get(name);
+        Bitmap page = region != null ? mPages[region.mPage] : null;
+        if (page == null) {
+            return null;
+        }
+        rect.set(region.mRect);
+        return page;
+    }
+
+    /**
+     * Atlas page index and normalized rect of a region.
+     */
+    private static class Region {
+        public final int mPage;
+        public final RectF mRect;
+
+        public Region(int page, RectF rect) {
+            mPage = page;
+            mRect = rect;
+        }
+    }
+}
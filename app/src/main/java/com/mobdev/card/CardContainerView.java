@@ -23,25 +23,55 @@ package com.mobdev.card;
 
 import android.content.Context;
 import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
 import android.graphics.Canvas;
+import android.graphics.Paint;
 import android.graphics.Rect;
-import android.graphics.drawable.Drawable;
+import android.graphics.RectF;
+import android.os.Build;
 import android.util.AttributeSet;
 import android.view.LayoutInflater;
 import android.view.View;
 import android.widget.LinearLayout;
 
+import com.mobdev.card.curl.BitmapPool;
+import com.mobdev.card.curl.CurlEtc1Texture;
 import com.mobdev.card.curl.CurlPage;
+import com.mobdev.card.curl.CurlRawTexture;
+import com.mobdev.card.curl.CurlTextureRegistry;
 import com.mobdev.card.curl.CurlView;
 
 public class CardContainerView extends LinearLayout implements CurlView.PageProvider {
 
     private CurlView cardView;
     private int cardValue = 1;
+    // Prepacked card faces, null if not available.
+    private CardAtlas cardAtlas;
+    private final RectF atlasRegion = new RectF();
+    // Paint faces are scaled with, used on decoder thread.
+    private final Paint facePaint = new Paint(Paint.FILTER_BITMAP_FLAG | Paint.DITHER_FLAG);
+    // Card faces encoded into ETC1, null if not available.
+    private CardEtc1 cardEtc1;
+    // Decodes faces needing a bitmap off GL thread ahead of time.
+    private CardDecoder cardDecoder;
+    // Faces composited earlier, stored as texels ready for upload.
+    private CardTextureCache textureCache;
+    // False while CurlView uploads bitmaps in 16 bit formats, which texture
+    // cache doesn't store. Updated on GL thread.
+    private volatile boolean useTextureCache = true;
 
 
     private static final int FRONTSIDE = 0;
     private static final int BACKSIDE = 1;
+    // Faces are decoded again once page size changes more than this.
+    private static final float PAGE_SIZE_THRESHOLD = 1.25f;
+
+    // Page size faces are decoded for, zero until known. Updated on GL
+    // thread and read on UI thread for prefetching.
+    private volatile int pageWidth, pageHeight;
+    // Texture keys of faces shown latest, by card side. Shown until faces
+    // replacing them have been decoded. Used on GL thread only.
+    private final Long[] shownKeys = new Long[2];
 
     public CardContainerView(Context context, AttributeSet attrs) {
         super(context, attrs);
@@ -57,11 +87,42 @@ public class CardContainerView extends LinearLayout implements CurlView.PageProv
         LayoutInflater inflater = LayoutInflater.from(context);
         inflater.inflate(R.layout.card_container, this, true);
 
+        cardAtlas = CardAtlas.get(context);
+        cardEtc1 = CardEtc1.get(context);
+        textureCache = CardTextureCache.get(context);
+        cardDecoder = new CardDecoder(new CardDecoder.Loader() {
+            @Override
+            public Bitmap load(int id, int side, int width, int height) {
+                // Faces in atlas only need their atlas page decoded, which
+                // setAtlasRegion uses once decoder tells it's done.
+                if (side == BACKSIDE && cardAtlas != null
+                        && cardAtlas.loadPage(getResources().getResourceEntryName(id))) {
+                    return null;
+                }
+                // Runs on decoder thread, so cache file is written there too.
+                Bitmap bitmap = loadBitmap(id, side, width, height);
+                if (useTextureCache) {
+                    textureCache.put(getCacheName(id, side, width, height), bitmap);
+                }
+                return bitmap;
+            }
+        }, new CardDecoder.Listener() {
+            @Override
+            public void onDecoded(CardDecoder decoder) {
+                cardView.requestPageUpdate();
+            }
+        });
         cardView = findViewById(R.id.card);
         cardView.setPageProvider(this);
         cardView.setSizeChangedObserver(new SizeChangedObserver());
     }
 
+    @Override
+    protected void onDetachedFromWindow() {
+        super.onDetachedFromWindow();
+        cardDecoder.quit();
+    }
+
     @Override
     protected void onMeasure(int widthMeasureSpec, int heightMeasureSpec) {
         super.onMeasure(widthMeasureSpec, heightMeasureSpec);
@@ -95,55 +156,119 @@ public class CardContainerView extends LinearLayout implements CurlView.PageProv
     // for one card mode
     public void setCardValue(int value) {
         cardValue = value;
+        prefetch(R.drawable.card_00_red + value, BACKSIDE);
     }
 
+    /**
+     * Lets faces of given card values be decoded in the background, e.g
+     * for the next deal, so that revealing them doesn't wait for decoding.
+     */
+    public void prefetchCardValues(int... values) {
+        for (int value : values) {
+            prefetch(R.drawable.card_00_red + value, BACKSIDE);
+        }
+    }
 
-    private Bitmap loadBitmap(CurlView view, int index, int side) {
-        Bitmap bitmap;
-        Rect rect;
-
-        Drawable drawable = getResources().getDrawable(index);
-        int width = drawable.getIntrinsicWidth();
-        int height = drawable.getIntrinsicHeight();
-
-        if (view.isLandscape()) {
-            bitmap = Bitmap.createBitmap(height, width, Bitmap.Config.ARGB_8888);
-            rect = new Rect((height - width)/2, (width - height)/2, (height + width)/2, (height + width)/2);
-        } else {
-            bitmap = Bitmap.createBitmap(width, height, Bitmap.Config.ARGB_8888);
-            rect = new Rect(0, 0, width, height);
+    /**
+     * Queues face for background decoding unless it's drawn from ETC1
+     * textures, decoded atlas page or texture cache, which need no decoding,
+     * or page size is not known yet. Faces in atlas get their atlas page
+     * decoded instead.
+     */
+    private void prefetch(int id, int cardSide) {
+        int width = pageWidth, height = pageHeight;
+        if (width <= 0 || height <= 0) {
+            return;
+        }
+        if (cardSide == BACKSIDE) {
+            String name = getResources().getResourceEntryName(id);
+            if (cardEtc1 != null && cardEtc1.hasTexture(name)) {
+                return;
+            }
+            if (cardAtlas != null && cardAtlas.hasRegion(name)) {
+                if (!cardAtlas.isPageLoaded(name)) {
+                    cardDecoder.prefetch(id, cardSide, width, height);
+                }
+                return;
+            }
+        }
+        if (useTextureCache && textureCache.contains(getCacheName(id, cardSide, width, height))) {
+            return;
         }
+        cardDecoder.prefetch(id, cardSide, width, height);
+    }
+
+    /**
+     * Returns name face is stored with into texture cache.
+     */
+    private String getCacheName(int id, int cardSide, int width, int height) {
+        return CardTextureCache.getName(getResources().getResourceEntryName(id), cardSide,
+                width, height);
+    }
 
-        Canvas c = new Canvas(bitmap);
-        c.save();
 
-        switch (view.orientation) {
-            case CurlView.LANDSCAPERIGHT:
-                c.rotate(90, height / 2, width / 2);
-                break;
-            case CurlView.LANDSCAPELEFT:
-                c.rotate(270, height / 2, width / 2);
-                break;
-            case CurlView.PORTRAITUPSIDEDOWN:
-                c.rotate(180, width / 2, height / 2);
-                break;
+    /**
+     * Decodes drawable resource into a bitmap at least of given size, or at
+     * its full size if smaller. Resource is subsampled by the largest power
+     * of two keeping it so and not scaled for screen density. Bitmap from
+     * BitmapPool is reused if there is one of the same size.
+     */
+    private Bitmap decodeResource(int index, int width, int height) {
+        BitmapPool pool = BitmapPool.getInstance();
+        BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inScaled = false;
+        options.inJustDecodeBounds = true;
+        BitmapFactory.decodeResource(getResources(), index, options);
+        options.inSampleSize = 1;
+        while (options.outWidth / (options.inSampleSize * 2) >= width
+                && options.outHeight / (options.inSampleSize * 2) >= height) {
+            options.inSampleSize *= 2;
+        }
+        if (options.inSampleSize > 1) {
+            BitmapFactory.decodeResource(getResources(), index, options);
+        }
+        options.inJustDecodeBounds = false;
+        options.inMutable = true;
+        // Subsampled decoding into existing bitmap is supported since 4.4.
+        if (options.inSampleSize == 1 || Build.VERSION.SDK_INT >= Build.VERSION_CODES.KITKAT) {
+            options.inBitmap = pool.getReusable(options.outWidth, options.outHeight,
+                    Bitmap.Config.ARGB_8888);
         }
+        try {
+            return BitmapFactory.decodeResource(getResources(), index, options);
+        } catch (IllegalArgumentException e) {
+            // Pooled bitmap was not accepted, decode into a new one.
+            pool.put(options.inBitmap);
+            options.inBitmap = null;
+            return BitmapFactory.decodeResource(getResources(), index, options);
+        }
+    }
 
-        drawable.setBounds(rect);
-        drawable.draw(c);
+    /**
+     * Decodes and composites face for portrait page of given size. Face is
+     * scaled to fit the page, CurlView rotates it for other orientations.
+     */
+    private Bitmap loadBitmap(int index, int side, int pageWidth, int pageHeight) {
+        BitmapPool pool = BitmapPool.getInstance();
+        Bitmap face = decodeResource(index, pageWidth, pageHeight);
+        float scale = Math.min((float) pageWidth / face.getWidth(),
+                (float) pageHeight / face.getHeight());
+        int width = Math.max(1, Math.round(face.getWidth() * scale));
+        int height = Math.max(1, Math.round(face.getHeight() * scale));
+
+        Bitmap bitmap = pool.get(width, height, Bitmap.Config.ARGB_8888);
+        Rect rect = new Rect(0, 0, width, height);
+        Canvas c = new Canvas(bitmap);
+        c.drawBitmap(face, null, rect, facePaint);
+        pool.put(face);
 
-        c.restore();
         //Draw the rotate pinch image at the back of card.
         if (side == FRONTSIDE) {
-            drawable = getResources().getDrawable(R.drawable.card_rotate);
             int halfOfWidth = width / 6;
-            if (view.isLandscape()) {
-                rect = new Rect(height / 2 - halfOfWidth, width / 2 -halfOfWidth, height / 2 + halfOfWidth, width / 2 + halfOfWidth);
-            } else {
-                rect = new Rect(width / 2 - halfOfWidth, height / 2 - halfOfWidth, width / 2 + halfOfWidth, height / 2 + halfOfWidth);
-            }
-            drawable.setBounds(rect);
-            drawable.draw(c);
+            face = decodeResource(R.drawable.card_rotate, halfOfWidth * 2, halfOfWidth * 2);
+            rect = new Rect(width / 2 - halfOfWidth, height / 2 - halfOfWidth, width / 2 + halfOfWidth, height / 2 + halfOfWidth);
+            c.drawBitmap(face, null, rect, facePaint);
+            pool.put(face);
         }
 
         return bitmap;
@@ -151,14 +276,119 @@ public class CardContainerView extends LinearLayout implements CurlView.PageProv
 
     @Override
     public void updatePage(CurlView view, CurlPage page, int width, int height, int index) {
-        Bitmap front = loadBitmap(view, R.drawable.card_00_blue, FRONTSIDE);
-        page.setTexture(front, CurlPage.SIDE_FRONT);
-        front.recycle();
+        // Faces are kept portrait and rotated by CurlView, so landscape page
+        // size is turned back into the portrait one.
+        if (view.isLandscape()) {
+            int swap = width;
+            width = height;
+            height = swap;
+        }
+        // Small changes keep faces and textures decoded for previous size.
+        // Otherwise shared back and current value are queued for decoding
+        // at once, both before either is needed.
+        if (pageWidth <= 0 || pageHeight <= 0 || crossesThreshold(width, pageWidth)
+                || crossesThreshold(height, pageHeight)) {
+            pageWidth = width;
+            pageHeight = height;
+            prefetch(R.drawable.card_00_blue, FRONTSIDE);
+            prefetch(R.drawable.card_00_red + cardValue, BACKSIDE);
+        }
+        setSide(view, page, R.drawable.card_00_blue, FRONTSIDE, CurlPage.SIDE_FRONT);
+        setSide(view, page, R.drawable.card_00_red + cardValue, BACKSIDE, CurlPage.SIDE_BACK);
+    }
+
+    /**
+     * Returns true if size differs from current one enough for decoding
+     * faces again.
+     */
+    private static boolean crossesThreshold(int size, int current) {
+        return size > current * PAGE_SIZE_THRESHOLD || size * PAGE_SIZE_THRESHOLD < current;
+    }
+
+    /**
+     * Sets page side to show given card. Texture uploaded earlier for the
+     * same card and page size is reused without loading bitmap at all, in
+     * any orientation. Texture key is the decoder key, bitmap depends on these
+     * and whether rotate image is drawn on it. Faces needing decoding are
+     * never waited for, side keeps showing previous face until decoder has
+     * one ready and CurlView asks for pages again.
+     */
+    private void setSide(CurlView view, CurlPage page, int id, int cardSide, int side) {
+        Long key = CardDecoder.getKey(id, cardSide, pageWidth, pageHeight);
+        if (view.hasTexture(key)) {
+            page.setTexture(key, side);
+        } else if (!setEtc1Texture(view, page, id, cardSide, side, key)
+                && !setAtlasRegion(page, id, cardSide, side, key)
+                && !setCachedTexture(view, page, id, cardSide, side, key)) {
+            Bitmap bitmap = cardDecoder.poll(id, cardSide, pageWidth, pageHeight);
+            if (bitmap == null) {
+                Long shown = shownKeys[cardSide];
+                if (shown != null && view.hasTexture(shown)) {
+                    page.setTexture(shown, side);
+                }
+                return;
+            }
+            page.setTexture(bitmap, side, key);
+        }
+        shownKeys[cardSide] = key;
+    }
 
-        int id = R.drawable.card_00_red + cardValue;
-        Bitmap back= loadBitmap(view, id, BACKSIDE);
-        page.setTexture(back, CurlPage.SIDE_BACK);
-        back.recycle();
+    /**
+     * Sets page side to ETC1 compressed card face, which needs neither
+     * decoding nor converting. Returns false if face is not available as ETC1
+     * or needs to be drawn over, bitmap should be loaded then.
+     */
+    private boolean setEtc1Texture(CurlView view, CurlPage page, int index, int cardSide,
+                                   int side, Object key) {
+        if (cardEtc1 == null || cardSide != BACKSIDE || !view.isEtc1Supported()) {
+            return false;
+        }
+        CurlEtc1Texture texture = cardEtc1.getTexture(getResources().getResourceEntryName(index));
+        if (texture == null) {
+            return false;
+        }
+        page.setTexture(texture, side, key);
+        return true;
+    }
+
+    /**
+     * Points page side at card face in atlas, which needs no decoding and
+     * once atlas is uploaded no uploading either. Returns false if face is not
+     * in atlas, its atlas page is not decoded yet or face needs to be drawn
+     * over. Bitmap should be polled from decoder then, which decodes the atlas
+     * page for faces in atlas.
+     */
+    private boolean setAtlasRegion(CurlPage page, int index, int cardSide, int side,
+                                   Object key) {
+        if (cardAtlas == null || cardSide != BACKSIDE) {
+            return false;
+        }
+        Bitmap atlas = cardAtlas.getRegion(getResources().getResourceEntryName(index), atlasRegion);
+        if (atlas == null) {
+            return false;
+        }
+        page.setTextureRegion(atlas, atlasRegion, side, key);
+        return true;
+    }
+
+    /**
+     * Sets page side to face read from texture cache, which needs neither
+     * decoding nor compositing and is uploaded as it is. Returns false if face
+     * is not cached or bitmaps are uploaded in 16 bit formats, bitmap should
+     * be loaded then.
+     */
+    private boolean setCachedTexture(CurlView view, CurlPage page, int id, int cardSide,
+                                     int side, Object key) {
+        useTextureCache = view.getTextureFormat() == CurlTextureRegistry.FORMAT_BITMAP;
+        if (!useTextureCache) {
+            return false;
+        }
+        CurlRawTexture texture = textureCache.get(getCacheName(id, cardSide, pageWidth, pageHeight));
+        if (texture == null) {
+            return false;
+        }
+        page.setTexture(texture, side, key);
+        return true;
     }
 
     @Override
@@ -167,6 +397,8 @@ public class CardContainerView extends LinearLayout implements CurlView.PageProv
 
     @Override
     public void onRotateBegan(CurlView view, CurlPage page) {
+        // Faces don't depend on orientation, textures shown already are
+        // rotated as they are.
     }
 
     /**
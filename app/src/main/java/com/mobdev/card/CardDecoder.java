@@ -0,0 +1,247 @@
+/**
+ * Copyright (c) 2018 mobdev313. Allright reserved.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package com.mobdev.card;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import android.graphics.Bitmap;
+
+import com.mobdev.card.curl.BitmapPool;
+
+/**
+ * Decodes card faces on a background thread ahead of time so that they are
+ * ready once a page needs them. At most MAX_PENDING requests are queued,
+ * oldest prefetches are dropped first, and at most MAX_READY decoded faces
+ * are kept until taken. Dropped faces are returned into BitmapPool. Faces
+ * which are not ready when polled are decoded next and Listener is told
+ * once they are, polling never waits for decoding.
+ */
+public class CardDecoder {
+
+    // Requests queued at most, prefetching more would drop the oldest.
+    private static final int MAX_PENDING = 8;
+    // Decoded faces kept waiting, least recently decoded is dropped first.
+    private static final int MAX_READY = 4;
+
+    /**
+     * Decodes and composites a face for portrait page of given size in
+     * pixels, called on decoder thread only. Returns null if face was made
+     * available otherwise, e.g its atlas page was decoded, Listener is told
+     * then too.
+     */
+    public interface Loader {
+        public Bitmap load(int id, int side, int width, int height);
+    }
+
+    /**
+     * Told on decoder thread once a face which was not ready when polled
+     * has been decoded.
+     */
+    public interface Listener {
+        public void onDecoded(CardDecoder decoder);
+    }
+
+    private final Loader mLoader;
+    private final Listener mListener;
+    private final ArrayList<Request> mPending = new ArrayList<Request>();
+    private final LinkedHashMap<Long, Bitmap> mReady = new LinkedHashMap<Long, Bitmap>();
+    // Face being decoded on decoder thread, null if none.
+    private Request mDecoding;
+    private Thread mThread;
+    private boolean mQuit;
+
+    public CardDecoder(Loader loader, Listener listener) {
+        mLoader = loader;
+        mListener = listener;
+    }
+
+    /**
+     * Returns key decoded faces are identified with. Page size is expected
+     * to be less than 16384 pixels.
+     */
+    public static Long getKey(int id, int side, int width, int height) {
+        return ((long) id << 32) | ((long) (width & 0x3FFF) << 15)
+                | ((height & 0x3FFF) << 1) | side;
+    }
+
+    /**
+     * Queues face for decoding unless it's queued or decoded already.
+     */
+    public synchronized void prefetch(int id, int side, int width, int height) {
+        Long key = getKey(id, side, width, height);
+        if (mQuit || mReady.containsKey(key) || findPending(key) != null
+                || (mDecoding != null && mDecoding.mKey.equals(key))) {
+            return;
+        }
+        queue(new Request(key, id, side, width, height), mPending.size());
+    }
+
+    /**
+     * Returns decoded face, caller takes ownership of it. Returns null if
+     * face is not decoded yet, in which case it's decoded before prefetched
+     * faces and Listener is told once it's ready.
+     */
+    public synchronized Bitmap poll(int id, int side, int width, int height) {
+        Long key = getKey(id, side, width, height);
+        Bitmap bitmap = mReady.remove(key);
+        if (bitmap != null || mQuit) {
+            return bitmap;
+        }
+        if (mDecoding != null && mDecoding.mKey.equals(key)) {
+            mDecoding.mWanted = true;
+            return null;
+        }
+        Request request = findPending(key);
+        if (request != null) {
+            mPending.remove(request);
+        } else {
+            request = new Request(key, id, side, width, height);
+        }
+        request.mWanted = true;
+        queue(request, 0);
+        return null;
+    }
+
+    /**
+     * Inserts request into queue at given index, dropping oldest prefetch
+     * if queue is full, and starts decoder thread if needed.
+     */
+    private void queue(Request request, int index) {
+        if (mPending.size() == MAX_PENDING) {
+            int drop = 0;
+            while (drop < mPending.size() - 1 && mPending.get(drop).mWanted) {
+                ++drop;
+            }
+            mPending.remove(drop);
+            index = Math.min(index, mPending.size());
+        }
+        mPending.add(index, request);
+        if (mThread == null) {
+            mThread = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    decode();
+                }
+            }, "CardDecoder");
+            mThread.setDaemon(true);
+            mThread.start();
+        }
+        notifyAll();
+    }
+
+    /**
+     * Returns queued request for given key, null if there is none.
+     */
+    private Request findPending(Long key) {
+        for (Request request : mPending) {
+            if (request.mKey.equals(key)) {
+                return request;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Stops decoder thread and returns faces not taken into BitmapPool.
+     * Decoder can't be used afterwards.
+     */
+    public synchronized void quit() {
+        mQuit = true;
+        mPending.clear();
+        for (Bitmap bitmap : mReady.values()) {
+            BitmapPool.getInstance().put(bitmap);
+        }
+        mReady.clear();
+        notifyAll();
+    }
+
+    /**
+     * Decoder thread loop.
+     */
+    private void decode() {
+        while (true) {
+            Request request;
+            synchronized (this) {
+                while (!mQuit && mPending.isEmpty()) {
+                    try {
+                        wait();
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                }
+                if (mQuit) {
+                    return;
+                }
+                request = mPending.remove(0);
+                mDecoding = request;
+            }
+
+            Bitmap bitmap = null;
+            try {
+                bitmap = mLoader.load(request.mId, request.mSide, request.mWidth,
+                        request.mHeight);
+            } finally {
+                boolean wanted;
+                synchronized (this) {
+                    mDecoding = null;
+                    wanted = request.mWanted && !mQuit;
+                    if (bitmap != null && mQuit) {
+                        BitmapPool.getInstance().put(bitmap);
+                    } else if (bitmap != null) {
+                        mReady.put(request.mKey, bitmap);
+                        if (mReady.size() > MAX_READY) {
+                            Iterator<Map.Entry<Long, Bitmap>> it = mReady.entrySet().iterator();
+                            BitmapPool.getInstance().put(it.next().getValue());
+                            it.remove();
+                        }
+                    }
+                }
+                if (wanted) {
+                    mListener.onDecoded(this);
+                }
+            }
+        }
+    }
+
+    /**
+     * Face queued for decoding.
+     */
+    private static class Request {
+        public final Long mKey;
+        public final int mId;
+        public final int mSide;
+        public final int mWidth, mHeight;
+        // True once a page has polled for the face.
+        public boolean mWanted;
+
+        public Request(Long key, int id, int side, int width, int height) {
+            mKey = key;
+            mId = id;
+            mSide = side;
+            mWidth = width;
+            mHeight = height;
+        }
+    }
+}
@@ -0,0 +1,142 @@
+/**
+ * Copyright (c) 2018 mobdev313. Allright reserved.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package com.mobdev.card;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.util.HashMap;
+
+import android.content.Context;
+import android.content.res.AssetManager;
+import android.opengl.ETC1Util;
+
+import com.mobdev.card.curl.CurlEtc1Texture;
+
+/**
+ * Card faces encoded into ETC1 textures at build time by encodeCardEtc1
+ * task, see cardetc1.gradle. Textures are named after the drawables they
+ * were encoded from and read from assets as they are, no decoding needed.
+ */
+public class CardEtc1 {
+
+    // Manifest written next to textures into assets.
+    private static final String MANIFEST = "card_etc1.txt";
+
+    private static CardEtc1 sInstance;
+    private static boolean sLoaded;
+
+    private final AssetManager mAssets;
+    private final HashMap<String, Entry> mEntries = new HashMap<String, Entry>();
+
+    /**
+     * Returns shared instance, or null if application was built without
+     * ETC1 textures.
+     */
+    public static synchronized CardEtc1 get(Context context) {
+        if (!sLoaded) {
+            sLoaded = true;
+            try {
+                sInstance = new CardEtc1(context.getApplicationContext().getAssets());
+            } catch (IOException e) {
+                sInstance = null;
+            }
+        }
+        return sInstance;
+    }
+
+    /**
+     * Reads texture manifest. Lines are
+     * "texture <name> <file> <alpha file or -> <width> <height>", sizes of
+     * face within padded texture in pixels.
+     */
+    private CardEtc1(AssetManager assets) throws IOException {
+        mAssets = assets;
+        BufferedReader reader = new BufferedReader(new InputStreamReader(
+                assets.open(MANIFEST), "UTF-8"));
+        try {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                String[] f = line.trim().split("\\s+");
+                if (f[0].equals("texture") && f.length == 6) {
+                    mEntries.put(f[1], new Entry(f[2], f[3].equals("-") ? null : f[3],
+                            Integer.parseInt(f[4]), Integer.parseInt(f[5])));
+                }
+            }
+        } catch (NumberFormatException e) {
+            throw new IOException("Malformed " + MANIFEST);
+        } finally {
+            reader.close();
+        }
+    }
+
+    /**
+     * Returns true if there is a texture of given name.
+     */
+    public boolean hasTexture(String name) {
+        return mEntries.containsKey(name);
+    }
+
+    /**
+     * Reads texture of given name. Returns null if there is no such texture
+     * or it can't be read.
+     */
+    public CurlEtc1Texture getTexture(String name) {
+        Entry entry = mEntries.get(name);
+        if (entry == null) {
+            return null;
+        }
+        try {
+            ETC1Util.ETC1Texture color = read(entry.mFile);
+            ETC1Util.ETC1Texture alpha = entry.mAlphaFile != null ? read(entry.mAlphaFile) : null;
+            return new CurlEtc1Texture(color, alpha, entry.mWidth, entry.mHeight);
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    private ETC1Util.ETC1Texture read(String file) throws IOException {
+        InputStream in = mAssets.open(file);
+        try {
+            return ETC1Util.createTexture(in);
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * Texture files and face size within them.
+     */
+    private static class Entry {
+        public final String mFile;
+        public final String mAlphaFile;
+        public final int mWidth, mHeight;
+
+        public Entry(String file, String alphaFile, int width, int height) {
+            mFile = file;
+            mAlphaFile = alphaFile;
+            mWidth = width;
+            mHeight = height;
+        }
+    }
+}
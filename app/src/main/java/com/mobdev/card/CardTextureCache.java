@@ -0,0 +1,272 @@
+/**
+ * Copyright (c) 2018 mobdev313. Allright reserved.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package com.mobdev.card;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashSet;
+
+import android.content.Context;
+import android.content.pm.PackageManager;
+import android.graphics.Bitmap;
+
+import com.mobdev.card.curl.CurlRawTexture;
+
+/**
+ * Composited card faces stored into application cache directory as texels
+ * ready for upload, so that a face composited once is read back without
+ * decoding or drawing. Files are memory mapped when read. Files are
+ * versioned and stamped with application update time, files of another
+ * version or build are deleted. Methods can be called from any thread, the
+ * monitor only guards the list of files and is never held during file IO.
+ */
+public class CardTextureCache {
+
+    // Increase whenever file layout or compositing of faces changes.
+    private static final int VERSION = 1;
+    private static final int MAGIC = 0x43415244;
+    private static final String DIRECTORY = "card_textures";
+    private static final String TEMP_SUFFIX = ".tmp";
+    // Header is magic, version, stamp, width and height.
+    private static final int HEADER_SIZE = 4 + 4 + 8 + 4 + 4;
+    // Files kept at most, least recently written are deleted first.
+    private static final int MAX_FILES = 32;
+
+    private static CardTextureCache sInstance;
+
+    private final File mDir;
+    private final long mStamp;
+    // Names of files in cache directory.
+    private final HashSet<String> mFiles = new HashSet<String>();
+    // Names of files being written.
+    private final HashSet<String> mWriting = new HashSet<String>();
+    // Serializes writers, which share the write buffer.
+    private final Object mWriteLock = new Object();
+    private ByteBuffer mWriteBuffer;
+
+    /**
+     * Returns shared instance.
+     */
+    public static synchronized CardTextureCache get(Context context) {
+        if (sInstance == null) {
+            Context app = context.getApplicationContext();
+            long stamp;
+            try {
+                stamp = app.getPackageManager().getPackageInfo(app.getPackageName(), 0)
+                        .lastUpdateTime;
+            } catch (PackageManager.NameNotFoundException e) {
+                stamp = 0;
+            }
+            sInstance = new CardTextureCache(new File(app.getCacheDir(), DIRECTORY), stamp);
+        }
+        return sInstance;
+    }
+
+    /**
+     * Lists cached files, files of other versions and unfinished ones are
+     * deleted.
+     */
+    private CardTextureCache(File dir, long stamp) {
+        mDir = dir;
+        mStamp = stamp;
+        File[] files = dir.listFiles();
+        if (files != null) {
+            String prefix = "v" + VERSION + "_";
+            for (File file : files) {
+                String name = file.getName();
+                if (name.startsWith(prefix) && !name.endsWith(TEMP_SUFFIX)) {
+                    mFiles.add(name);
+                } else {
+                    file.delete();
+                }
+            }
+        }
+    }
+
+    /**
+     * Returns name face of given drawable and card side composited for page
+     * of given size is cached with. Texels are always RGBA 8888.
+     */
+    public static String getName(String drawable, int side, int width, int height) {
+        return "v" + VERSION + "_" + drawable + "_" + side + "_" + width + "x" + height
+                + "_rgba8888";
+    }
+
+    /**
+     * Returns true if there is a file of given name.
+     */
+    public synchronized boolean contains(String name) {
+        return mFiles.contains(name);
+    }
+
+    /**
+     * Maps texels stored with given name. Returns null if there are none or
+     * they can't be read, unreadable files are deleted.
+     */
+    public CurlRawTexture get(String name) {
+        if (!contains(name)) {
+            return null;
+        }
+        File file = new File(mDir, name);
+        RandomAccessFile in = null;
+        try {
+            in = new RandomAccessFile(file, "r");
+            FileChannel channel = in.getChannel();
+            // Mapping stays valid after file is closed.
+            ByteBuffer map = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            if (map.capacity() >= HEADER_SIZE && map.getInt() == MAGIC
+                    && map.getInt() == VERSION && map.getLong() == mStamp) {
+                int width = map.getInt();
+                int height = map.getInt();
+                if (width > 0 && height > 0 && map.remaining()
+                        == (long) width * height * CurlRawTexture.BYTES_PER_TEXEL) {
+                    return new CurlRawTexture(map.slice(), width, height);
+                }
+            }
+        } catch (IOException e) {
+            // Deleted below.
+        } finally {
+            if (in != null) {
+                try {
+                    in.close();
+                } catch (IOException e) {
+                    // Nothing to do.
+                }
+            }
+        }
+        remove(name);
+        return null;
+    }
+
+    /**
+     * Stores texels of given bitmap with given name, unless there are some
+     * already. Only ARGB_8888 bitmaps are stored. Bitmap is not modified
+     * and remains owned by caller. Writes a file, so should be called on a
+     * background thread.
+     */
+    public void put(String name, Bitmap bitmap) {
+        synchronized (this) {
+            if (mFiles.contains(name) || mWriting.contains(name)
+                    || bitmap.getConfig() != Bitmap.Config.ARGB_8888) {
+                return;
+            }
+            mWriting.add(name);
+        }
+        boolean written = false;
+        try {
+            synchronized (mWriteLock) {
+                written = write(name, bitmap);
+            }
+        } finally {
+            synchronized (this) {
+                mWriting.remove(name);
+                if (written) {
+                    mFiles.add(name);
+                }
+            }
+        }
+        if (written) {
+            trim();
+        }
+    }
+
+    /**
+     * Writes texels of given bitmap into temporary file and renames it to
+     * given name. Returns false if writing fails.
+     */
+    private boolean write(String name, Bitmap bitmap) {
+        int size = HEADER_SIZE
+                + bitmap.getWidth() * bitmap.getHeight() * CurlRawTexture.BYTES_PER_TEXEL;
+        if (mWriteBuffer == null || mWriteBuffer.capacity() < size) {
+            mWriteBuffer = ByteBuffer.allocateDirect(size);
+        }
+        ByteBuffer data = mWriteBuffer;
+        data.clear();
+        data.putInt(MAGIC).putInt(VERSION).putLong(mStamp);
+        data.putInt(bitmap.getWidth()).putInt(bitmap.getHeight());
+        bitmap.copyPixelsToBuffer(data);
+        data.flip();
+
+        File file = new File(mDir, name);
+        File temp = new File(mDir, name + TEMP_SUFFIX);
+        try {
+            mDir.mkdirs();
+            FileOutputStream out = new FileOutputStream(temp);
+            try {
+                FileChannel channel = out.getChannel();
+                while (data.hasRemaining()) {
+                    channel.write(data);
+                }
+            } finally {
+                out.close();
+            }
+            // Readers see either no file or a complete one.
+            if (temp.renameTo(file)) {
+                return true;
+            }
+        } catch (IOException e) {
+            // Deleted below.
+        }
+        temp.delete();
+        return false;
+    }
+
+    private void remove(String name) {
+        synchronized (this) {
+            mFiles.remove(name);
+        }
+        new File(mDir, name).delete();
+    }
+
+    /**
+     * Deletes least recently written files until at most MAX_FILES remain.
+     */
+    private void trim() {
+        File[] files;
+        synchronized (this) {
+            if (mFiles.size() <= MAX_FILES) {
+                return;
+            }
+            files = new File[mFiles.size()];
+            int i = 0;
+            for (String name : mFiles) {
+                files[i++] = new File(mDir, name);
+            }
+        }
+        Arrays.sort(files, new Comparator<File>() {
+            @Override
+            public int compare(File a, File b) {
+                long diff = a.lastModified() - b.lastModified();
+                return diff < 0 ? -1 : (diff > 0 ? 1 : 0);
+            }
+        });
+        for (int i = 0; i < files.length - MAX_FILES; ++i) {
+            remove(files[i].getName());
+        }
+    }
+}
@@ -0,0 +1,172 @@
+/**
+ * Copyright (c) 2018 mobdev313. Allright reserved.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package com.mobdev.card.curl;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+
+import android.graphics.Bitmap;
+
+/**
+ * Pool of mutable bitmaps bucketed by size and config, shared by page
+ * providers and CurlPage so that bitmaps recycled after texture upload are
+ * reused for the next ones instead of being allocated again. Bitmaps are
+ * retained up to a byte limit, least recently returned ones are recycled
+ * first. Thread safe.
+ */
+public class BitmapPool {
+
+    // Share of heap retained bitmaps may take at most.
+    private static final int MAX_HEAP_SHARE = 8;
+
+    private static BitmapPool sInstance;
+
+    private final long mMaxBytes;
+    private final HashMap<Long, ArrayList<Bitmap>> mBuckets = new HashMap<Long, ArrayList<Bitmap>>();
+    // All retained bitmaps from least recently returned.
+    private final ArrayList<Bitmap> mRetained = new ArrayList<Bitmap>();
+    private long mRetainedBytes;
+    private int mHitCount;
+    private int mMissCount;
+
+    /**
+     * Returns pool shared within application.
+     */
+    public static synchronized BitmapPool getInstance() {
+        if (sInstance == null) {
+            sInstance = new BitmapPool(Runtime.getRuntime().maxMemory() / MAX_HEAP_SHARE);
+        }
+        return sInstance;
+    }
+
+    /**
+     * Constructor for pool retaining at most given number of bytes.
+     */
+    public BitmapPool(long maxBytes) {
+        mMaxBytes = maxBytes;
+    }
+
+    /**
+     * Returns transparent bitmap of given size and config, either a pooled
+     * one or a new one. Caller owns the bitmap and may return it with put.
+     */
+    public Bitmap get(int width, int height, Bitmap.Config config) {
+        Bitmap bitmap = getReusable(width, height, config);
+        if (bitmap != null) {
+            bitmap.eraseColor(0);
+            return bitmap;
+        }
+        return Bitmap.createBitmap(width, height, config);
+    }
+
+    /**
+     * Returns pooled bitmap of given size and config without clearing it,
+     * e.g for BitmapFactory.Options.inBitmap, or null if there is none.
+     */
+    public synchronized Bitmap getReusable(int width, int height, Bitmap.Config config) {
+        ArrayList<Bitmap> bucket = mBuckets.get(getKey(width, height, config));
+        if (bucket == null || bucket.isEmpty()) {
+            ++mMissCount;
+            return null;
+        }
+        ++mHitCount;
+        Bitmap bitmap = bucket.remove(bucket.size() - 1);
+        mRetained.remove(bitmap);
+        mRetainedBytes -= getBytes(bitmap);
+        return bitmap;
+    }
+
+    /**
+     * Returns bitmap into pool, caller must not use it afterwards. Immutable
+     * bitmaps can't be reused and are recycled instead.
+     */
+    public synchronized void put(Bitmap bitmap) {
+        if (bitmap == null || bitmap.isRecycled()) {
+            return;
+        }
+        long bytes = getBytes(bitmap);
+        if (!bitmap.isMutable() || bitmap.getConfig() == null || bytes > mMaxBytes) {
+            bitmap.recycle();
+            return;
+        }
+        Long key = getKey(bitmap.getWidth(), bitmap.getHeight(), bitmap.getConfig());
+        ArrayList<Bitmap> bucket = mBuckets.get(key);
+        if (bucket == null) {
+            bucket = new ArrayList<Bitmap>();
+            mBuckets.put(key, bucket);
+        }
+        bucket.add(bitmap);
+        mRetained.add(bitmap);
+        mRetainedBytes += bytes;
+
+        while (mRetainedBytes > mMaxBytes) {
+            Bitmap oldest = mRetained.remove(0);
+            mBuckets.get(getKey(oldest.getWidth(), oldest.getHeight(),
+                    oldest.getConfig())).remove(oldest);
+            mRetainedBytes -= getBytes(oldest);
+            oldest.recycle();
+        }
+    }
+
+    /**
+     * Recycles all retained bitmaps.
+     */
+    public synchronized void clear() {
+        for (Bitmap bitmap : mRetained) {
+            bitmap.recycle();
+        }
+        mRetained.clear();
+        mBuckets.clear();
+        mRetainedBytes = 0;
+    }
+
+    /**
+     * Returns share of get and getReusable calls served from pool.
+     */
+    public synchronized float getHitRate() {
+        int count = mHitCount + mMissCount;
+        return count > 0 ? (float) mHitCount / count : 0f;
+    }
+
+    public synchronized int getHitCount() {
+        return mHitCount;
+    }
+
+    public synchronized int getMissCount() {
+        return mMissCount;
+    }
+
+    /**
+     * Returns bytes taken by bitmaps currently retained.
+     */
+    public synchronized long getRetainedBytes() {
+        return mRetainedBytes;
+    }
+
+    private static Long getKey(int width, int height, Bitmap.Config config) {
+        return ((long) width << 36) | ((long) height << 8) | config.ordinal();
+    }
+
+    private static long getBytes(Bitmap bitmap) {
+        return (long) bitmap.getRowBytes() * bitmap.getHeight();
+    }
+}
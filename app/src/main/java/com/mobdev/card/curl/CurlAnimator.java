@@ -0,0 +1,192 @@
+/**
+ * Copyright (c) 2018 mobdev313. Allright reserved.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package com.mobdev.card.curl;
+
+/**
+ * Animations CurlView runs once a touch or rotation gesture ends: curl
+ * moving to either page, page curled to top sliding into place and rotation
+ * snapping to portrait or landscape. Positions are computed from frame times
+ * given by an AnimationClock. Has no Android dependencies, so animations can
+ * be replayed at any frame rate in unit tests. Used on GL thread only.
+ */
+public class CurlAnimator {
+
+    // Pages curl animation ends on.
+    public static final int SET_CURL_TO_TOP = 1;
+    public static final int SET_CURL_TO_BOTTOM = 2;
+
+    public static final float MAX_DEGREES = 90.f;
+    public static final long NOMINAL_FRAME_NANOS = 1000000000L / 60;
+    // Degrees rotation snaps by in NOMINAL_FRAME_NANOS.
+    private static final float STEP_DEGREES = 3.f;
+
+    // Duration of curl and slide animations in nanoseconds.
+    private final long mDuration;
+    private final TimedAnimation mCurl = new TimedAnimation();
+    private final TimedAnimation mSlide = new TimedAnimation();
+    private final TimedAnimation mRotation = new TimedAnimation();
+    private float mSourceX, mSourceY;
+    private float mTargetX, mTargetY;
+    private int mCurlTarget;
+
+    /**
+     * Constructor for curl and slide animations lasting given time in
+     * nanoseconds each.
+     */
+    public CurlAnimator(long duration) {
+        mDuration = duration;
+    }
+
+    /**
+     * Starts moving pointer from given position to given one at given frame
+     * time, curl ending on page given by target.
+     */
+    public void startCurl(float fromX, float fromY, float toX, float toY, int target,
+                          long frameTime) {
+        mSourceX = fromX;
+        mSourceY = fromY;
+        mTargetX = toX;
+        mTargetY = toY;
+        mCurlTarget = target;
+        mCurl.start(0f, 1f, frameTime, mDuration, TimedAnimation.EASE_OUT);
+        mSlide.stop();
+    }
+
+    /**
+     * Stops curl animation and slide following it.
+     */
+    public void stopCurl() {
+        mCurl.stop();
+        mSlide.stop();
+        mCurlTarget = 0;
+    }
+
+    /**
+     * Returns page curl ends on, SET_CURL_TO_TOP or SET_CURL_TO_BOTTOM, zero
+     * if curl is not animated.
+     */
+    public int getCurlTarget() {
+        return mCurlTarget;
+    }
+
+    /**
+     * Returns true if pointer has reached curl target at given frame time.
+     */
+    public boolean isCurlFinished(long frameTime) {
+        return mCurl.isFinished(frameTime);
+    }
+
+    /**
+     * Returns pointer x at given frame time.
+     */
+    public float getCurlX(long frameTime) {
+        return mSourceX + (mTargetX - mSourceX) * mCurl.getProgress(frameTime);
+    }
+
+    /**
+     * Returns pointer y at given frame time.
+     */
+    public float getCurlY(long frameTime) {
+        return mSourceY + (mTargetY - mSourceY) * mCurl.getProgress(frameTime);
+    }
+
+    /**
+     * Returns true if slide following curl to top has been started.
+     */
+    public boolean isSliding() {
+        return mSlide.isRunning();
+    }
+
+    /**
+     * Starts sliding page curled to top from given y to given one. Slide
+     * begins when curl animation finishes and lasts as long as it.
+     */
+    public void startSlide(float fromY, float toY) {
+        mSlide.start(fromY, toY, mCurl.getStartTime() + mDuration, mDuration,
+                TimedAnimation.EASE_OUT);
+    }
+
+    /**
+     * Returns true if slide has finished at given frame time.
+     */
+    public boolean isSlideFinished(long frameTime) {
+        return mSlide.isFinished(frameTime);
+    }
+
+    /**
+     * Returns y of sliding page at given frame time.
+     */
+    public float getSlideY(long frameTime) {
+        return mSlide.getValue(frameTime);
+    }
+
+    /**
+     * Returns rotation given one snaps to, zero below 45 degrees and
+     * MAX_DEGREES in direction of rotation otherwise.
+     */
+    public static float getSnapTarget(float rotation) {
+        if (Math.abs(rotation) < 45) {
+            return 0;
+        }
+        return rotation < 0 ? -MAX_DEGREES : MAX_DEGREES;
+    }
+
+    /**
+     * Starts snapping from given rotation at given frame time, at
+     * STEP_DEGREES per NOMINAL_FRAME_NANOS.
+     */
+    public void startRotation(float rotation, long frameTime) {
+        float target = getSnapTarget(rotation);
+        long duration = (long) (Math.abs(target - rotation) / STEP_DEGREES
+                * NOMINAL_FRAME_NANOS);
+        mRotation.start(rotation, target, frameTime, duration, TimedAnimation.LINEAR);
+    }
+
+    /**
+     * Stops rotation snap.
+     */
+    public void stopRotation() {
+        mRotation.stop();
+    }
+
+    /**
+     * Returns true if rotation snap has been started and not stopped since.
+     */
+    public boolean isRotating() {
+        return mRotation.isRunning();
+    }
+
+    /**
+     * Returns true if rotation has snapped to its target at given frame
+     * time.
+     */
+    public boolean isRotationFinished(long frameTime) {
+        return mRotation.isFinished(frameTime);
+    }
+
+    /**
+     * Returns rotation at given frame time.
+     */
+    public float getRotation(long frameTime) {
+        return mRotation.getValue(frameTime);
+    }
+}
@@ -0,0 +1,369 @@
+/**
+ * Copyright (c) 2018 mobdev313. Allright reserved.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package com.mobdev.card.curl;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
+
+import javax.microedition.khronos.opengles.GL10;
+import javax.microedition.khronos.opengles.GL11;
+
+
+/**
+ * Collects curl meshes into one triangle strip drawn with the atlas of
+ * CurlTextureRegistry, so that any number of meshes is drawn with one draw
+ * call. Separate strips are stitched together with degenerate triangles.
+ * <p>
+ * Vertex stream and its vertex buffer object stay resident between frames.
+ * Vertices are rebuilt and uploaded again only from the first part added
+ * whose geometry, texture or atlas cell differs from previous frame, so
+ * frames where nothing changed draw the resident stream as it is. Not thread
+ * safe, all methods should be called on GL thread.
+ */
+public class CurlBatch {
+
+    // Initial vertex stream capacity in vertices, grown on demand.
+    private static final int INITIAL_VERTEX_CAPACITY = 1024;
+    // Packed white color used for shadow vertices.
+    private static final int COLOR_WHITE = 0xFFFFFFFF;
+
+    private final CurlTextureRegistry mTextureRegistry;
+    private final CurlGlState mGlState;
+
+    // Shared vertex stream in page vertex layout.
+    private ByteBuffer mBufVertices;
+    private int mVertexCount;
+    private boolean mStripStart;
+    private int[] mVboIds = null;
+    private int mVboSize;
+    // Size vertex buffer object storage was allocated with.
+    private int mVboStorageSize;
+
+    // Parts added into resident stream in order, first mSegmentCount valid.
+    private final ArrayList<Segment> mSegments = new ArrayList<Segment>();
+    private int mSegmentCount;
+    private int mSegmentIndex;
+    // First vertex of current draw call, and first one rewritten in stream
+    // but not uploaded yet, Integer.MAX_VALUE if none.
+    private int mFlushStart;
+    private int mUploadStart;
+
+    private int mDrawCallCount;
+
+    /**
+     * Constructor for batch drawing textures in atlas of given registry,
+     * setting GL state through given tracker shared with meshes.
+     */
+    public CurlBatch(CurlTextureRegistry textureRegistry, CurlGlState glState) {
+        mTextureRegistry = textureRegistry;
+        mGlState = glState;
+        allocateVertices(INITIAL_VERTEX_CAPACITY);
+    }
+
+    /**
+     * Starts a new frame.
+     */
+    public void begin() {
+        // Parts past the ones added last frame are stale.
+        mSegmentCount = Math.min(mSegmentCount, mSegmentIndex);
+        mSegmentIndex = 0;
+        mVertexCount = 0;
+        mFlushStart = 0;
+        mDrawCallCount = 0;
+    }
+
+    /**
+     * Adds draw calls issued outside this batch to frame statistics.
+     */
+    public void addDrawCalls(int count) {
+        mDrawCallCount += count;
+    }
+
+    /**
+     * Returns number of draw calls issued since begin().
+     */
+    public int getDrawCallCount() {
+        return mDrawCallCount;
+    }
+
+    /**
+     * Returns true if meshes using given textures can be added to this batch.
+     */
+    public boolean canDraw(CurlTextureRegistry.Texture front,
+                           CurlTextureRegistry.Texture back) {
+        return mTextureRegistry.isInAtlas(front) && mTextureRegistry.isInAtlas(back)
+                && mTextureRegistry.getShadowGradient() != null;
+    }
+
+    /**
+     * Appends page vertices [first, first + count) from given buffer, using
+     * given atlas texture. Revision should change whenever buffer contents
+     * do, vertices are taken from resident stream otherwise.
+     */
+    public void addPageVertices(ByteBuffer buf, int first, int count, int revision,
+                                CurlTextureRegistry.Texture texture) {
+        if (count < 3 || isResident(buf, first, count, revision, texture)) {
+            return;
+        }
+        int start = mVertexCount;
+        mStripStart = true;
+        for (int i = first; i < first + count; ++i) {
+            int idx = i * CurlMesh.VERTEX_SIZE;
+            short s = buf.getShort(idx + CurlMesh.TEXCOORD_OFFSET);
+            short t = buf.getShort(idx + CurlMesh.TEXCOORD_OFFSET + 2);
+            addVertex(buf.getShort(idx + CurlMesh.POSITION_OFFSET),
+                    buf.getShort(idx + CurlMesh.POSITION_OFFSET + 2),
+                    buf.getShort(idx + CurlMesh.POSITION_OFFSET + 4),
+                    buf.getInt(idx + CurlMesh.COLOR_OFFSET),
+                    (short) (texture.mOffsetS + s * texture.mScaleS + .5f),
+                    (short) (texture.mOffsetT + t * texture.mScaleT + .5f));
+        }
+        mSegments.get(mSegmentIndex - 1).mVertexCount = mVertexCount - start;
+    }
+
+    /**
+     * Appends shadow vertices [first, first + count) from given buffer, using
+     * shadow gradient in atlas. Revision is used as in addPageVertices.
+     */
+    public void addShadowVertices(ByteBuffer buf, int first, int count, int revision) {
+        CurlTextureRegistry.Texture gradient = mTextureRegistry.getShadowGradient();
+        if (count < 3 || isResident(buf, first, count, revision, gradient)) {
+            return;
+        }
+        int start = mVertexCount;
+        mStripStart = true;
+        for (int i = first; i < first + count; ++i) {
+            int idx = i * CurlMesh.SHADOW_VERTEX_SIZE;
+            short s = buf.getShort(idx + CurlMesh.SHADOW_TEXCOORD_OFFSET);
+            short t = buf.getShort(idx + CurlMesh.SHADOW_TEXCOORD_OFFSET + 2);
+            addVertex(buf.getShort(idx + CurlMesh.POSITION_OFFSET),
+                    buf.getShort(idx + CurlMesh.POSITION_OFFSET + 2),
+                    buf.getShort(idx + CurlMesh.POSITION_OFFSET + 4),
+                    COLOR_WHITE,
+                    (short) (gradient.mOffsetS + s * gradient.mScaleS + .5f),
+                    (short) (gradient.mOffsetT + t * gradient.mScaleT + .5f));
+        }
+        mSegments.get(mSegmentIndex - 1).mVertexCount = mVertexCount - start;
+    }
+
+    /**
+     * Returns true if part with given source and texture is next in resident
+     * stream, and skips its vertices. Otherwise stream is cut before the part,
+     * which is recorded in its place, and false is returned for the caller to
+     * add its vertices.
+     */
+    private boolean isResident(ByteBuffer buf, int first, int count, int revision,
+                               CurlTextureRegistry.Texture texture) {
+        boolean drawStart = mVertexCount == mFlushStart;
+        if (mSegmentIndex < mSegmentCount) {
+            Segment segment = mSegments.get(mSegmentIndex);
+            if (segment.mBuffer == buf && segment.mFirst == first && segment.mCount == count
+                    && segment.mRevision == revision && segment.mTexture == texture
+                    && segment.mOffsetS == texture.mOffsetS
+                    && segment.mOffsetT == texture.mOffsetT
+                    && segment.mScaleS == texture.mScaleS
+                    && segment.mScaleT == texture.mScaleT
+                    && segment.mDrawStart == drawStart) {
+                ++mSegmentIndex;
+                mVertexCount += segment.mVertexCount;
+                return true;
+            }
+        }
+
+        if (mSegmentIndex == mSegments.size()) {
+            mSegments.add(new Segment());
+        }
+        Segment segment = mSegments.get(mSegmentIndex++);
+        segment.mBuffer = buf;
+        segment.mFirst = first;
+        segment.mCount = count;
+        segment.mRevision = revision;
+        segment.mTexture = texture;
+        segment.mOffsetS = texture.mOffsetS;
+        segment.mOffsetT = texture.mOffsetT;
+        segment.mScaleS = texture.mScaleS;
+        segment.mScaleT = texture.mScaleT;
+        segment.mDrawStart = drawStart;
+        mSegmentCount = mSegmentIndex;
+        mUploadStart = Math.min(mUploadStart, mVertexCount);
+        mBufVertices.position(mVertexCount * CurlMesh.VERTEX_SIZE);
+        return false;
+    }
+
+    /**
+     * Draws vertices collected so far and starts collecting new ones. Needs
+     * to be called before anything is drawn outside this batch to keep the
+     * drawing order.
+     */
+    public void flush(GL10 gl) {
+        if (mVertexCount == mFlushStart) {
+            return;
+        }
+        if (mVboIds == null) {
+            mVboIds = new int[1];
+            if (CurlMesh.isVboSupported(gl)) {
+                ((GL11) gl).glGenBuffers(1, mVboIds, 0);
+            }
+        }
+        boolean useVbo = mVboIds[0] != 0;
+
+        CurlGlState state = mGlState;
+        state.enable(gl, GL10.GL_TEXTURE_2D);
+        state.bindTexture(gl, mTextureRegistry.getAtlasId());
+        state.enable(gl, GL10.GL_BLEND);
+        state.blendFunc(gl, GL10.GL_SRC_ALPHA, GL10.GL_ONE_MINUS_SRC_ALPHA);
+        state.enableClientState(gl, GL10.GL_VERTEX_ARRAY);
+        state.enableClientState(gl, GL10.GL_COLOR_ARRAY);
+        state.enableClientState(gl, GL10.GL_TEXTURE_COORD_ARRAY);
+        // Scale short texture coordinates back into [0, 1] range.
+        gl.glMatrixMode(GL10.GL_TEXTURE);
+        gl.glLoadIdentity();
+        gl.glScalef(1f / CurlMesh.TEXCOORD_SCALE, 1f / CurlMesh.TEXCOORD_SCALE, 1f);
+        gl.glMatrixMode(GL10.GL_MODELVIEW);
+        // Scale short positions back.
+        gl.glPushMatrix();
+        float positionScale = 1f / CurlMesh.POSITION_SCALE;
+        gl.glScalef(positionScale, positionScale, positionScale);
+
+        int stride = CurlMesh.VERTEX_SIZE;
+        if (useVbo) {
+            GL11 gl11 = (GL11) gl;
+            state.bindArrayBuffer(gl11, mVboIds[0]);
+            if (mVboStorageSize != mVboSize) {
+                mVboStorageSize = mVboSize;
+                mUploadStart = 0;
+            }
+            if (mUploadStart < mVertexCount) {
+                // Storage is orphaned as in CurlMesh.updateVbo once the whole
+                // stream is uploaded.
+                if (mUploadStart == 0) {
+                    gl11.glBufferData(GL11.GL_ARRAY_BUFFER, mVboSize, null,
+                            GL11.GL_DYNAMIC_DRAW);
+                }
+                mBufVertices.position(mUploadStart * stride);
+                gl11.glBufferSubData(GL11.GL_ARRAY_BUFFER, mUploadStart * stride,
+                        (mVertexCount - mUploadStart) * stride, mBufVertices);
+                mUploadStart = Integer.MAX_VALUE;
+            }
+            state.vertexPointer(gl11, 3, GL10.GL_SHORT, stride, CurlMesh.POSITION_OFFSET);
+            state.colorPointer(gl11, 4, GL10.GL_UNSIGNED_BYTE, stride, CurlMesh.COLOR_OFFSET);
+            state.texCoordPointer(gl11, 2, GL10.GL_SHORT, stride, CurlMesh.TEXCOORD_OFFSET);
+        } else {
+            mBufVertices.position(CurlMesh.POSITION_OFFSET);
+            state.vertexPointer(gl, 3, GL10.GL_SHORT, stride, mBufVertices);
+            mBufVertices.position(CurlMesh.COLOR_OFFSET);
+            state.colorPointer(gl, 4, GL10.GL_UNSIGNED_BYTE, stride, mBufVertices);
+            mBufVertices.position(CurlMesh.TEXCOORD_OFFSET);
+            state.texCoordPointer(gl, 2, GL10.GL_SHORT, stride, mBufVertices);
+        }
+        gl.glDrawArrays(GL10.GL_TRIANGLE_STRIP, mFlushStart, mVertexCount - mFlushStart);
+        ++mDrawCallCount;
+        gl.glPopMatrix();
+
+        gl.glMatrixMode(GL10.GL_TEXTURE);
+        gl.glLoadIdentity();
+        gl.glMatrixMode(GL10.GL_MODELVIEW);
+
+        mFlushStart = mVertexCount;
+        mBufVertices.position(mVertexCount * CurlMesh.VERTEX_SIZE);
+    }
+
+    /**
+     * Resets allocated buffer id forcing creation of new one, and drops
+     * resident stream. Should be called once GL context is re-created.
+     */
+    public void resetBuffers() {
+        mVboIds = null;
+        mVboStorageSize = 0;
+        mSegmentCount = mSegmentIndex = 0;
+    }
+
+    /**
+     * Adds a vertex to stream. First vertex of a strip is preceded by a copy
+     * of previous vertex and added twice, which connects strips with
+     * degenerate triangles.
+     */
+    private void addVertex(short x, short y, short z, int color, short s, short t) {
+        if (mBufVertices.remaining() < 3 * CurlMesh.VERTEX_SIZE) {
+            allocateVertices(mBufVertices.capacity() / CurlMesh.VERTEX_SIZE * 2);
+        }
+        if (mStripStart) {
+            mStripStart = false;
+            if (mVertexCount > mFlushStart) {
+                int last = (mVertexCount - 1) * CurlMesh.VERTEX_SIZE;
+                for (int i = 0; i < CurlMesh.VERTEX_SIZE; i += 4) {
+                    mBufVertices.putInt(mBufVertices.getInt(last + i));
+                }
+                putVertex(x, y, z, color, s, t);
+                mVertexCount += 2;
+            }
+        }
+        putVertex(x, y, z, color, s, t);
+        ++mVertexCount;
+    }
+
+    private void putVertex(short x, short y, short z, int color, short s, short t) {
+        mBufVertices.putShort(x);
+        mBufVertices.putShort(y);
+        mBufVertices.putShort(z);
+        mBufVertices.putShort((short) 0);
+        mBufVertices.putInt(color);
+        mBufVertices.putShort(s);
+        mBufVertices.putShort(t);
+    }
+
+    /**
+     * Allocates vertex stream for given number of vertices, keeping vertices
+     * added so far.
+     */
+    private void allocateVertices(int capacity) {
+        ByteBuffer buf = ByteBuffer.allocateDirect(capacity * CurlMesh.VERTEX_SIZE);
+        buf.order(ByteOrder.nativeOrder());
+        if (mBufVertices != null) {
+            int size = mVertexCount * CurlMesh.VERTEX_SIZE;
+            mBufVertices.position(0);
+            mBufVertices.limit(size);
+            buf.put(mBufVertices);
+            mBufVertices.clear();
+        }
+        mBufVertices = buf;
+        mVboSize = buf.capacity();
+    }
+
+    /**
+     * Part of stream added by one addPageVertices or addShadowVertices call,
+     * with what its vertices were generated from.
+     */
+    private static class Segment {
+        public ByteBuffer mBuffer;
+        public int mFirst, mCount;
+        public int mRevision;
+        public CurlTextureRegistry.Texture mTexture;
+        public float mOffsetS, mOffsetT;
+        public float mScaleS, mScaleT;
+        // True if part starts a draw call and has no stitching vertices.
+        public boolean mDrawStart;
+        // Vertices added into stream, including stitching ones.
+        public int mVertexCount;
+    }
+}
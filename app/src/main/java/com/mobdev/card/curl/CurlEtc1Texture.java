@@ -0,0 +1,67 @@
+/**
+ * Copyright (c) 2018 mobdev313. Allright reserved.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package com.mobdev.card.curl;
+
+import android.graphics.RectF;
+import android.opengl.ETC1Util;
+
+/**
+ * ETC1 compressed page texture. ETC1 has no alpha, so alpha is given as a
+ * separate ETC1 texture of the same size with alpha in its red channel, or
+ * null for opaque pages. Page occupies width x height pixels from top left
+ * corner of textures, rest is padding.
+ */
+public class CurlEtc1Texture {
+    public final ETC1Util.ETC1Texture mColor;
+    public final ETC1Util.ETC1Texture mAlpha;
+    public final int mWidth, mHeight;
+
+    /**
+     * Constructor for page of given size within given textures.
+     */
+    public CurlEtc1Texture(ETC1Util.ETC1Texture color, ETC1Util.ETC1Texture alpha,
+                           int width, int height) {
+        mColor = color;
+        mAlpha = alpha;
+        mWidth = width;
+        mHeight = height;
+    }
+
+    /**
+     * Returns bytes of texture storage needed for both textures.
+     */
+    public int getByteCount() {
+        int bytes = mColor.getData().capacity();
+        if (mAlpha != null) {
+            bytes += mAlpha.getData().capacity();
+        }
+        return bytes;
+    }
+
+    /**
+     * Fills normalized texture coordinates of page area into given rect.
+     */
+    public void getTextureRect(RectF textureRect) {
+        textureRect.set(0f, 0f, (float) mWidth / mColor.getWidth(),
+                (float) mHeight / mColor.getHeight());
+    }
+}
@@ -0,0 +1,196 @@
+/**
+ * Copyright (c) 2018 mobdev313. Allright reserved.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package com.mobdev.card.curl;
+
+import java.util.Arrays;
+
+/**
+ * Rendering metrics collected into fixed size histograms, which give
+ * percentiles of per frame values without allocating while recording.
+ * Values are added on GL thread and summed until endFrame, which adds the
+ * sums of metrics recorded during the frame into their histograms. Metrics
+ * not recorded during a frame, e.g no page was updated, don't count for it.
+ * Histograms can be read on any thread.
+ * <p>
+ * Histogram buckets are exponential with four buckets per power of two, so
+ * percentiles are upper bounds at most 25% above actual values. Max is
+ * exact.
+ */
+public class CurlFrameMetrics {
+
+    /** Nanoseconds spent in CurlMesh.curl. */
+    public static final int CURL_TIME = 0;
+    /** Nanoseconds spent uploading textures. */
+    public static final int UPLOAD_TIME = 1;
+    /** Nanoseconds spent drawing meshes, uploads excluded. */
+    public static final int DRAW_TIME = 2;
+    /** Nanoseconds spent in PageProvider.updatePage. */
+    public static final int UPDATE_PAGE_TIME = 3;
+    /** Vertices drawn. */
+    public static final int VERTICES = 4;
+    /** Draw calls issued. */
+    public static final int DRAW_CALLS = 5;
+    /** Bytes of texture data uploaded. */
+    public static final int UPLOAD_BYTES = 6;
+    public static final int METRIC_COUNT = 7;
+
+    // Values below 4 have buckets of their own, each power of two above is
+    // split into SUB_BUCKETS buckets, up to Long.MAX_VALUE.
+    private static final int SUB_BUCKETS = 4;
+    private static final int BUCKET_COUNT = SUB_BUCKETS * 62;
+
+    /**
+     * Listener called on GL thread once every given number of frames.
+     */
+    public interface Listener {
+        public void onFrameMetrics(CurlFrameMetrics metrics);
+    }
+
+    // Sums of current frame, GL thread only.
+    private final long[] mFrameValues = new long[METRIC_COUNT];
+    private final boolean[] mFrameRecorded = new boolean[METRIC_COUNT];
+
+    private final int[][] mBuckets = new int[METRIC_COUNT][BUCKET_COUNT];
+    private final int[] mFrameCounts = new int[METRIC_COUNT];
+    private final long[] mMax = new long[METRIC_COUNT];
+
+    private volatile Listener mListener;
+    private volatile int mListenerInterval;
+    private int mFramesSinceReport;
+
+    /**
+     * Adds value to given metric of current frame. Called on GL thread.
+     */
+    public void add(int metric, long value) {
+        mFrameValues[metric] += value;
+        mFrameRecorded[metric] = true;
+    }
+
+    /**
+     * Returns sum of given metric recorded so far for current frame. Called
+     * on GL thread.
+     */
+    public long getFrameValue(int metric) {
+        return mFrameValues[metric];
+    }
+
+    /**
+     * Ends current frame, adding its sums into histograms. Called on GL
+     * thread.
+     */
+    public void endFrame() {
+        synchronized (this) {
+            for (int i = 0; i < METRIC_COUNT; ++i) {
+                if (mFrameRecorded[i]) {
+                    long value = Math.max(0, mFrameValues[i]);
+                    ++mBuckets[i][getBucket(value)];
+                    ++mFrameCounts[i];
+                    mMax[i] = Math.max(mMax[i], value);
+                }
+                mFrameValues[i] = 0;
+                mFrameRecorded[i] = false;
+            }
+        }
+        Listener listener = mListener;
+        if (listener != null && ++mFramesSinceReport >= mListenerInterval) {
+            mFramesSinceReport = 0;
+            listener.onFrameMetrics(this);
+        }
+    }
+
+    /**
+     * Sets listener called once every frameInterval frames, e.g for sending
+     * metrics onwards and resetting them. Null removes listener.
+     */
+    public void setListener(Listener listener, int frameInterval) {
+        mListenerInterval = Math.max(1, frameInterval);
+        mListener = listener;
+    }
+
+    /**
+     * Returns number of frames given metric was recorded for.
+     */
+    public synchronized int getFrameCount(int metric) {
+        return mFrameCounts[metric];
+    }
+
+    /**
+     * Returns value given percentage of frames recorded for given metric
+     * are at or below, e.g 95 for p95. Zero if metric has not been recorded.
+     */
+    public synchronized long getPercentile(int metric, float percentile) {
+        int count = mFrameCounts[metric];
+        if (count == 0) {
+            return 0;
+        }
+        // Rank of the value within sorted values, starting from one.
+        long rank = Math.max(1, (long) Math.ceil(count * percentile / 100f));
+        int[] buckets = mBuckets[metric];
+        long seen = 0;
+        for (int i = 0; i < BUCKET_COUNT; ++i) {
+            seen += buckets[i];
+            if (seen >= rank) {
+                return Math.min(getBucketMax(i), mMax[metric]);
+            }
+        }
+        return mMax[metric];
+    }
+
+    /**
+     * Returns largest value recorded for given metric.
+     */
+    public synchronized long getMax(int metric) {
+        return mMax[metric];
+    }
+
+    /**
+     * Clears histograms, current frame is not affected.
+     */
+    public synchronized void reset() {
+        for (int i = 0; i < METRIC_COUNT; ++i) {
+            Arrays.fill(mBuckets[i], 0);
+            mFrameCounts[i] = 0;
+            mMax[i] = 0;
+        }
+    }
+
+    private static int getBucket(long value) {
+        if (value < SUB_BUCKETS) {
+            return (int) value;
+        }
+        int octave = 63 - Long.numberOfLeadingZeros(value);
+        int sub = (int) (value >>> (octave - 2)) & (SUB_BUCKETS - 1);
+        return SUB_BUCKETS * (octave - 1) + sub;
+    }
+
+    /**
+     * Returns largest value falling into given bucket.
+     */
+    private static long getBucketMax(int bucket) {
+        if (bucket < SUB_BUCKETS) {
+            return bucket;
+        }
+        int octave = bucket / SUB_BUCKETS + 1;
+        long next = (long) (SUB_BUCKETS + bucket % SUB_BUCKETS + 1) << (octave - 2);
+        return next - 1 < 0 ? Long.MAX_VALUE : next - 1;
+    }
+}
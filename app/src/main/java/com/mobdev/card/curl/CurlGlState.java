@@ -0,0 +1,329 @@
+/**
+ * Copyright (c) 2018 mobdev313. Allright reserved.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package com.mobdev.card.curl;
+
+import java.nio.Buffer;
+import java.util.Arrays;
+
+import javax.microedition.khronos.opengles.GL10;
+import javax.microedition.khronos.opengles.GL11;
+
+/**
+ * Tracks OpenGL ES 1.x state set through it and skips calls which would not
+ * change it. Covers capabilities and client arrays pages are drawn with,
+ * blend function, bound 2D texture, bound array buffer and vertex, color and
+ * texture coordinate pointers. Other calls are made on GL10 directly.
+ * <p>
+ * Drawing code declares state it needs instead of restoring it afterwards,
+ * so state left by previous mesh is not changed back and forth. Anything
+ * changing tracked state without going through this class needs to
+ * invalidate it. Used on GL thread only.
+ */
+public class CurlGlState {
+
+    private static final int UNKNOWN = -1;
+
+    // Tracked capabilities and client arrays, others are passed through.
+    private static final int[] CAPS = {
+            GL10.GL_BLEND, GL10.GL_TEXTURE_2D
+    };
+    private static final int[] ARRAYS = {
+            GL10.GL_VERTEX_ARRAY, GL10.GL_COLOR_ARRAY, GL10.GL_TEXTURE_COORD_ARRAY
+    };
+    private static final int VERTEX = 0;
+    private static final int COLOR = 1;
+    private static final int TEXCOORD = 2;
+
+    // Enabled states as 1 or 0, UNKNOWN until set.
+    private final int[] mCaps = new int[CAPS.length];
+    private final int[] mArrays = new int[ARRAYS.length];
+    private int mBlendSrc, mBlendDst;
+    private int mTexture;
+    private int mArrayBuffer;
+    private final Pointer[] mPointers = {
+            new Pointer(), new Pointer(), new Pointer()
+    };
+
+    private long mIssuedCount;
+    private long mElidedCount;
+
+    public CurlGlState() {
+        reset();
+    }
+
+    /**
+     * Forgets all tracked state, next calls are issued regardless. Should be
+     * called once GL context is re-created.
+     */
+    public void reset() {
+        Arrays.fill(mCaps, UNKNOWN);
+        Arrays.fill(mArrays, UNKNOWN);
+        mBlendSrc = mBlendDst = UNKNOWN;
+        mTexture = UNKNOWN;
+        mArrayBuffer = UNKNOWN;
+        for (Pointer p : mPointers) {
+            p.reset();
+        }
+    }
+
+    /**
+     * Forgets bound texture. Should be called after textures have been
+     * bound or deleted without going through this class.
+     */
+    public void invalidateTexture() {
+        mTexture = UNKNOWN;
+    }
+
+    /**
+     * Enables capability unless it's known to be enabled.
+     */
+    public void enable(GL10 gl, int cap) {
+        int i = indexOf(CAPS, cap);
+        if (i >= 0 && mCaps[i] == 1) {
+            ++mElidedCount;
+            return;
+        }
+        gl.glEnable(cap);
+        ++mIssuedCount;
+        if (i >= 0) {
+            mCaps[i] = 1;
+        }
+    }
+
+    /**
+     * Disables capability unless it's known to be disabled.
+     */
+    public void disable(GL10 gl, int cap) {
+        int i = indexOf(CAPS, cap);
+        if (i >= 0 && mCaps[i] == 0) {
+            ++mElidedCount;
+            return;
+        }
+        gl.glDisable(cap);
+        ++mIssuedCount;
+        if (i >= 0) {
+            mCaps[i] = 0;
+        }
+    }
+
+    /**
+     * Enables client array unless it's known to be enabled.
+     */
+    public void enableClientState(GL10 gl, int array) {
+        int i = indexOf(ARRAYS, array);
+        if (i >= 0 && mArrays[i] == 1) {
+            ++mElidedCount;
+            return;
+        }
+        gl.glEnableClientState(array);
+        ++mIssuedCount;
+        if (i >= 0) {
+            mArrays[i] = 1;
+        }
+    }
+
+    /**
+     * Disables client array unless it's known to be disabled.
+     */
+    public void disableClientState(GL10 gl, int array) {
+        int i = indexOf(ARRAYS, array);
+        if (i >= 0 && mArrays[i] == 0) {
+            ++mElidedCount;
+            return;
+        }
+        gl.glDisableClientState(array);
+        ++mIssuedCount;
+        if (i >= 0) {
+            mArrays[i] = 0;
+        }
+    }
+
+    /**
+     * Sets blend function unless it's set already.
+     */
+    public void blendFunc(GL10 gl, int src, int dst) {
+        if (src == mBlendSrc && dst == mBlendDst) {
+            ++mElidedCount;
+            return;
+        }
+        gl.glBlendFunc(src, dst);
+        ++mIssuedCount;
+        mBlendSrc = src;
+        mBlendDst = dst;
+    }
+
+    /**
+     * Binds given texture name to GL_TEXTURE_2D.
+     */
+    public void bindTexture(GL10 gl, int texture) {
+        if (texture == mTexture) {
+            ++mElidedCount;
+            return;
+        }
+        gl.glBindTexture(GL10.GL_TEXTURE_2D, texture);
+        ++mIssuedCount;
+        mTexture = texture;
+    }
+
+    /**
+     * Binds given buffer name to GL_ARRAY_BUFFER.
+     */
+    public void bindArrayBuffer(GL11 gl, int buffer) {
+        if (buffer == mArrayBuffer) {
+            ++mElidedCount;
+            return;
+        }
+        gl.glBindBuffer(GL11.GL_ARRAY_BUFFER, buffer);
+        ++mIssuedCount;
+        mArrayBuffer = buffer;
+    }
+
+    /**
+     * Sets vertex pointer into client side buffer at its current position.
+     */
+    public void vertexPointer(GL10 gl, int size, int type, int stride, Buffer buffer) {
+        if (isSet(gl, VERTEX, size, type, stride, buffer, buffer.position())) {
+            return;
+        }
+        gl.glVertexPointer(size, type, stride, buffer);
+    }
+
+    /**
+     * Sets vertex pointer into bound array buffer at given offset.
+     */
+    public void vertexPointer(GL11 gl, int size, int type, int stride, int offset) {
+        if (isSet(gl, VERTEX, size, type, stride, null, offset)) {
+            return;
+        }
+        gl.glVertexPointer(size, type, stride, offset);
+    }
+
+    /**
+     * Sets color pointer into client side buffer at its current position.
+     */
+    public void colorPointer(GL10 gl, int size, int type, int stride, Buffer buffer) {
+        if (isSet(gl, COLOR, size, type, stride, buffer, buffer.position())) {
+            return;
+        }
+        gl.glColorPointer(size, type, stride, buffer);
+    }
+
+    /**
+     * Sets color pointer into bound array buffer at given offset.
+     */
+    public void colorPointer(GL11 gl, int size, int type, int stride, int offset) {
+        if (isSet(gl, COLOR, size, type, stride, null, offset)) {
+            return;
+        }
+        gl.glColorPointer(size, type, stride, offset);
+    }
+
+    /**
+     * Sets texture coordinate pointer into client side buffer at its
+     * current position.
+     */
+    public void texCoordPointer(GL10 gl, int size, int type, int stride, Buffer buffer) {
+        if (isSet(gl, TEXCOORD, size, type, stride, buffer, buffer.position())) {
+            return;
+        }
+        gl.glTexCoordPointer(size, type, stride, buffer);
+    }
+
+    /**
+     * Sets texture coordinate pointer into bound array buffer at given
+     * offset.
+     */
+    public void texCoordPointer(GL11 gl, int size, int type, int stride, int offset) {
+        if (isSet(gl, TEXCOORD, size, type, stride, null, offset)) {
+            return;
+        }
+        gl.glTexCoordPointer(size, type, stride, offset);
+    }
+
+    /**
+     * Returns number of calls made on GL since this state was created.
+     */
+    public long getIssuedCount() {
+        return mIssuedCount;
+    }
+
+    /**
+     * Returns number of calls skipped as redundant since this state was
+     * created.
+     */
+    public long getElidedCount() {
+        return mElidedCount;
+    }
+
+    /**
+     * Returns true if pointer already points where given, counting the call
+     * as elided. Otherwise counts it as issued and stores given values, in
+     * which case caller makes the call. Client side pointers need array
+     * buffer unbound, which is done here.
+     */
+    private boolean isSet(GL10 gl, int index, int size, int type, int stride,
+                          Buffer buffer, int offset) {
+        if (buffer != null && mArrayBuffer != 0 && gl instanceof GL11) {
+            bindArrayBuffer((GL11) gl, 0);
+        }
+        int arrayBuffer = buffer != null ? 0 : mArrayBuffer;
+        Pointer p = mPointers[index];
+        if (arrayBuffer != UNKNOWN && p.mArrayBuffer == arrayBuffer && p.mBuffer == buffer
+                && p.mOffset == offset && p.mSize == size && p.mType == type
+                && p.mStride == stride) {
+            ++mElidedCount;
+            return true;
+        }
+        ++mIssuedCount;
+        p.mArrayBuffer = arrayBuffer;
+        p.mBuffer = buffer;
+        p.mOffset = offset;
+        p.mSize = size;
+        p.mType = type;
+        p.mStride = stride;
+        return false;
+    }
+
+    private static int indexOf(int[] values, int value) {
+        for (int i = 0; i < values.length; ++i) {
+            if (values[i] == value) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Array pointer, either into client side buffer or into array buffer.
+     */
+    private static class Pointer {
+        public int mArrayBuffer;
+        public Buffer mBuffer;
+        public int mOffset;
+        public int mSize, mType, mStride;
+
+        public void reset() {
+            mArrayBuffer = UNKNOWN;
+            mBuffer = null;
+        }
+    }
+}
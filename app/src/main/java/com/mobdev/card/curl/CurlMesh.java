@@ -26,13 +26,17 @@ import java.nio.ByteOrder;
 import java.nio.FloatBuffer;
 
 import javax.microedition.khronos.opengles.GL10;
+import javax.microedition.khronos.opengles.GL11;
 
 import android.graphics.Bitmap;
 import android.graphics.Color;
 import android.graphics.PointF;
 import android.graphics.RectF;
-import android.opengl.GLUtils;
 
+/**
+ * Page mesh doing the actual curl calculations. Not thread safe, all methods
+ * should be called on GL thread.
+ */
 public class CurlMesh {
 
     // Flag for rendering some lines used for developing. Shows
@@ -52,97 +56,197 @@ public class CurlMesh {
     private static final boolean DRAW_TEXTURE = true;
     // Flag for draw shape
     private static final boolean DRAW_SHAPE = false;
+    // Flag for keeping vertices in a vertex buffer object once GL11 is
+    // available. Otherwise vertices are passed as client side arrays.
+    private static final boolean USE_VBO = true;
+
+    // Interleaved vertex layout. Page vertices consist of short position
+    // (x, y, z) padded to four bytes, unsigned byte color (r, g, b, a) and
+    // short texture coordinates (s, t). Shadow vertices have position and
+    // short shadow gradient coordinates (s, t) in place of color, t being
+    // always zero. Sizes and offsets are given in bytes.
+    static final int VERTEX_SIZE = 16;
+    static final int SHADOW_VERTEX_SIZE = 12;
+    static final int POSITION_OFFSET = 0;
+    static final int COLOR_OFFSET = 8;
+    static final int TEXCOORD_OFFSET = 12;
+    static final int SHADOW_TEXCOORD_OFFSET = 8;
+    // Positions are stored as shorts multiplied with this value, which
+    // covers [-8, 8) at a fraction of a pixel. Model view matrix is used for
+    // scaling them back.
+    static final float POSITION_SCALE = 4096f;
+    // Texture coordinates are stored as shorts multiplied with this value.
+    // Texture matrix is used for scaling them back into [0, 1] range.
+    static final float TEXCOORD_SCALE = 32767f;
 
     // Colors for shadow. Inner one is the color drawn next to surface where
     // shadowed area starts and outer one is color shadow ends to.
     private static final float[] SHADOW_INNER_COLOR = { 0f, 0f, 0f, .5f };
     private static final float[] SHADOW_OUTER_COLOR = { 0f, 0f, 0f, .0f };
+    // Shadow colors are interpolated using a prebaked gradient texture going
+    // from outer color at s=0 to inner color at s=1. Width is enough for
+    // having a texel per color byte value.
+    static final int SHADOW_GRADIENT_SIZE = 256;
+    static final ByteBuffer SHADOW_GRADIENT = createShadowGradient();
+
+    private static final float PI = (float) Math.PI;
+    // Default maximum distance in pixels between curl and its polygonal
+    // approximation.
+    private static final float DEFAULT_MAX_CHORD_ERROR = .5f;
+    // Number of recently generated curls kept for reuse.
+    private static final int CURL_CACHE_SIZE = 4;
+    // Default quantization step in pixels for curl cache keys. Curls whose
+    // parameters differ less than this share the same geometry.
+    private static final float DEFAULT_CURL_CACHE_STEP = .25f;
 
     // Let's avoid using 'new' as much as possible. Meaning we introduce arrays
-    // once here and reuse them on runtime. Doesn't really have very much effect
-    // but avoids some garbage collections from happening.
-    private Array<ShadowVertex> mArrDropShadowVertices;
-    private Array<Vertex> mArrIntersections;
-    private Array<Vertex> mArrOutputVertices;
-    private Array<Vertex> mArrRotatedVertices;
-    private Array<Double> mArrScanLines;
-    private Array<ShadowVertex> mArrSelfShadowVertices;
-    private Array<ShadowVertex> mArrTempShadowVertices;
-    private Array<Vertex> mArrTempVertices;
-
-    // Buffers for feeding rasterizer.
-    private FloatBuffer mBufColors;
+    // once here and reuse them on runtime. Vertex attributes are stored in
+    // primitive columns and vertices are referred to by their index, which
+    // avoids shuffling objects around and boxing scan line values.
+    private ShadowVertices mDropShadowVertices;
+    private final int[] mIntersections = new int[2];
+    private int mIntersectionsCount;
+    private final int[][] mLines = new int[4][2];
+    private final int[] mOutputVertices = new int[7];
+    private int mOutputVerticesCount;
+    private final int[] mRotatedVertices = new int[4];
+    private int mRotatedVerticesCount;
+    private float[] mScanLines;
+    private int mScanLinesCount;
+    // Cylinder positions, penumbra multipliers and color factors for scan
+    // lines within curl. These depend on radius and split count only and are
+    // reused until either of them changes.
+    private float[] mCurlTableColorFactor;
+    private float[] mCurlTablePenumbra;
+    private float[] mCurlTablePosX;
+    private float[] mCurlTablePosZ;
+    private float mCurlTableRadius = -1;
+    private int mCurlTableSplits = -1;
+    private ShadowVertices mSelfShadowVertices;
+    private Vertices mVertices;
+
+    // Buffers for feeding rasterizer. Vertex buffers belong to the curl
+    // cache entry currently shown.
     private FloatBuffer mBufCurlPositionLines;
-    private FloatBuffer mBufShadowColors;
-    private FloatBuffer mBufShadowVertices;
-    private FloatBuffer mBufTexCoords;
-    private FloatBuffer mBufVertices;
+    private ByteBuffer mBufShadowVertices;
+    private ByteBuffer mBufVertices;
+
+    // Cache of recently generated curls. Entries are keyed on quantized curl
+    // parameters and swapped in by pointer on a hit.
+    private CurlCacheEntry[] mCurlCache;
+    private CurlCacheEntry mCurlCacheCurrent;
+    private float mCurlCacheStep = DEFAULT_CURL_CACHE_STEP;
+    private long mCurlCacheClock;
+    private int mCurlCacheHits;
+    private int mCurlCacheMisses;
+
+    // Vertex buffer object holding page vertices followed by shadow
+    // vertices. Buffer contents are updated only if geometry has changed
+    // since last render.
+    private boolean mGeometryChanged;
+    // Changed whenever vertex buffers taken into use or their contents do,
+    // see CurlBatch.
+    private int mGeometryRevision;
+    private int mVboShadowOffset;
+    private int mVboSize;
+    private int[] mVboIds = null;
 
     private int mCurlPositionLinesCount;
     private int mDropShadowCount;
 
     // Boolean for 'flipping' texture sideways.
     private boolean mFlipTexture = false;
-    // Maximum number of split lines used for creating a curl.
+    // Quarter turns textures are rotated clockwise on page.
+    private int mTextureRotation;
+    // Column major 3x3 matrix mapping page [0, 1] grid coordinates into
+    // texture coordinates, combines flipping and rotation.
+    private final float[] mTexMatrix = new float[9];
+    // Maximum number of split lines used for creating a curl. Buffers are
+    // allocated for this many, actual count is chosen per curl based on
+    // allowed chord error once pixel scale is known.
     private int mMaxCurlSplits;
+    private float mMaxChordError = DEFAULT_MAX_CHORD_ERROR;
+    private float mPixelsPerUnit;
 
-    // Bounding rectangle for this mesh. mRectagle[0] = top-left corner,
-    // mRectangle[1] = bottom-left, mRectangle[2] = top-right and mRectangle[3]
-    // bottom-right.
-    private final Vertex[] mRectangle = new Vertex[4];
+    // Bounding rectangle for this mesh is stored at the first vertex indices.
+    // RECTANGLE + 0 = top-left corner, RECTANGLE + 1 = bottom-left,
+    // RECTANGLE + 2 = top-right and RECTANGLE + 3 = bottom-right.
+    private static final int RECTANGLE = 0;
     private int mSelfShadowCount;
 
     // Texture ids and other variables.
-    private int[] mTextureIds = null;
+    // Front and back textures, acquired from texture registry.
+    private final CurlTextureRegistry.Texture[] mTextures = new CurlTextureRegistry.Texture[2];
+    private CurlTextureRegistry mTextureRegistry;
+    private int[] mShadowTextureIds = null;
     private final CurlPage mTexturePage = new CurlPage();
     private final RectF mTextureRectBack = new RectF();
     private final RectF mTextureRectFront = new RectF();
+    private final RectF mTextureRectShader = new RectF();
+    private final RectF mTextureRectShaderBack = new RectF();
 
     private int mVerticesCountBack;
     private int mVerticesCountFront;
 
+    // Number of draw calls issued by latest onDrawFrame.
+    private int mDrawCallCount;
+    // Number of vertices drawn by latest onDrawFrame.
+    private int mVertexCount;
+    // Metrics curl and texture upload times are added into, may be null.
+    private CurlFrameMetrics mFrameMetrics;
+    // OpenGL ES 1.x state, shared by meshes drawn within the same renderer.
+    private CurlGlState mGlState = new CurlGlState();
+
+    // Curl parameters for shader based rendering. If set, curl() only stores
+    // its arguments here and deformation is left for vertex shader.
+    private boolean mDeformOnGpu;
+    private boolean mCurled;
+    private float mCurlPosX, mCurlPosY;
+    private float mCurlDirX, mCurlDirY;
+    private float mCurlRadius;
+    private final RectF mRect = new RectF();
+    private final PointF mTmpCurlPos = new PointF();
+    private final PointF mTmpCurlDir = new PointF();
+
     /**
      * Constructor for mesh object.
      *
      * @param maxCurlSplits
      *            Maximum number curl can be divided into. The bigger the value
      *            the smoother curl will be. With the cost of having more
-     *            polygons for drawing.
+     *            polygons for drawing. Fewer splits are used if they are
+     *            enough for keeping chord error within limits, see
+     *            setPixelsPerUnit and setMaxChordError.
      */
     public CurlMesh(int maxCurlSplits) {
         // There really is no use for 0 splits.
         mMaxCurlSplits = maxCurlSplits < 1 ? 1 : maxCurlSplits;
 
-        mArrScanLines = new Array<Double>(maxCurlSplits + 2);
-        mArrOutputVertices = new Array<Vertex>(7);
-        mArrRotatedVertices = new Array<Vertex>(4);
-        mArrIntersections = new Array<Vertex>(2);
-        mArrTempVertices = new Array<Vertex>(7 + 4);
-        for (int i = 0; i < 7 + 4; ++i) {
-            mArrTempVertices.add(new Vertex());
-        }
+        mScanLines = new float[maxCurlSplits + 2];
+        mCurlTableColorFactor = new float[mMaxCurlSplits];
+        mCurlTablePenumbra = new float[mMaxCurlSplits];
+        mCurlTablePosX = new float[mMaxCurlSplits];
+        mCurlTablePosZ = new float[mMaxCurlSplits];
+
+        // Rectangle consists of 4 vertices which are kept out of the free
+        // list. The rest, 4 rotated and max 7 output vertices, are obtained
+        // and recycled on runtime.
+        mVertices = new Vertices(4 + 7 + 4, 4);
 
         if (DRAW_SHADOW) {
-            mArrSelfShadowVertices = new Array<ShadowVertex>(
-                    (mMaxCurlSplits + 2) * 2);
-            mArrDropShadowVertices = new Array<ShadowVertex>(
-                    (mMaxCurlSplits + 2) * 2);
-            mArrTempShadowVertices = new Array<ShadowVertex>(
-                    (mMaxCurlSplits + 2) * 2);
-            for (int i = 0; i < (mMaxCurlSplits + 2) * 2; ++i) {
-                mArrTempShadowVertices.add(new ShadowVertex());
-            }
+            mSelfShadowVertices = new ShadowVertices((mMaxCurlSplits + 2) * 2);
+            mDropShadowVertices = new ShadowVertices((mMaxCurlSplits + 2) * 2);
         }
 
         // Rectangle consists of 4 vertices. Index 0 = top-left, index 1 =
         // bottom-left, index 2 = top-right and index 3 = bottom-right.
-        for (int i = 0; i < 4; ++i) {
-            mRectangle[i] = new Vertex();
-        }
         // Set up shadow penumbra direction to each vertex. We do fake 'self
         // shadow' calculations based on this information.
-        mRectangle[0].mPenumbraX = mRectangle[1].mPenumbraX = mRectangle[1].mPenumbraY = mRectangle[3].mPenumbraY = -1;
-        mRectangle[0].mPenumbraY = mRectangle[2].mPenumbraX = mRectangle[2].mPenumbraY = mRectangle[3].mPenumbraX = 1;
+        float[] penumbraX = mVertices.mPenumbraX;
+        float[] penumbraY = mVertices.mPenumbraY;
+        penumbraX[RECTANGLE] = penumbraX[RECTANGLE + 1] = penumbraY[RECTANGLE + 1] = penumbraY[RECTANGLE + 3] = -1;
+        penumbraY[RECTANGLE] = penumbraX[RECTANGLE + 2] = penumbraY[RECTANGLE + 2] = penumbraX[RECTANGLE + 3] = 1;
+        updateTexMatrix();
 
         if (DRAW_CURL_POSITION) {
             mCurlPositionLinesCount = 3;
@@ -157,57 +261,57 @@ public class CurlMesh {
         // to two corners and curl consists of max mMaxCurlSplits lines each
         // outputting 2 vertices.
         int maxVerticesCount = 4 + 2 + (2 * mMaxCurlSplits);
-        ByteBuffer vbb = ByteBuffer.allocateDirect(maxVerticesCount * 3 * 4);
-        vbb.order(ByteOrder.nativeOrder());
-        mBufVertices = vbb.asFloatBuffer();
-        mBufVertices.position(0);
-
-        if (DRAW_TEXTURE) {
-            ByteBuffer tbb = ByteBuffer
-                    .allocateDirect(maxVerticesCount * 2 * 4);
-            tbb.order(ByteOrder.nativeOrder());
-            mBufTexCoords = tbb.asFloatBuffer();
-            mBufTexCoords.position(0);
-        }
-
-        ByteBuffer cbb = ByteBuffer.allocateDirect(maxVerticesCount * 4 * 4);
-        cbb.order(ByteOrder.nativeOrder());
-        mBufColors = cbb.asFloatBuffer();
-        mBufColors.position(0);
+        mVboShadowOffset = mVboSize = maxVerticesCount * VERTEX_SIZE;
 
+        int maxShadowVerticesCount = 0;
         if (DRAW_SHADOW) {
-            int maxShadowVerticesCount = (mMaxCurlSplits + 2) * 2 * 2;
-            ByteBuffer scbb = ByteBuffer
-                    .allocateDirect(maxShadowVerticesCount * 4 * 4);
-            scbb.order(ByteOrder.nativeOrder());
-            mBufShadowColors = scbb.asFloatBuffer();
-            mBufShadowColors.position(0);
-
-            ByteBuffer sibb = ByteBuffer
-                    .allocateDirect(maxShadowVerticesCount * 3 * 4);
-            sibb.order(ByteOrder.nativeOrder());
-            mBufShadowVertices = sibb.asFloatBuffer();
-            mBufShadowVertices.position(0);
+            maxShadowVerticesCount = (mMaxCurlSplits + 2) * 2 * 2;
+            mVboSize += maxShadowVerticesCount * SHADOW_VERTEX_SIZE;
 
             mDropShadowCount = mSelfShadowCount = 0;
         }
+
+        mCurlCache = new CurlCacheEntry[CURL_CACHE_SIZE];
+        for (int i = 0; i < CURL_CACHE_SIZE; ++i) {
+            mCurlCache[i] = new CurlCacheEntry(maxVerticesCount * VERTEX_SIZE,
+                    maxShadowVerticesCount * SHADOW_VERTEX_SIZE);
+        }
+        useCurlCacheEntry(mCurlCache[0]);
     }
 
     /**
      * Adds vertex to buffers.
      */
-    private void addVertex(Vertex vertex) {
-        mBufVertices.put((float) vertex.mPosX);
-        mBufVertices.put((float) vertex.mPosY);
-        mBufVertices.put((float) vertex.mPosZ);
-        mBufColors.put(vertex.mColorFactor * Color.red(Color.WHITE) / 255f);
-        mBufColors.put(vertex.mColorFactor * Color.green(Color.WHITE) / 255f);
-        mBufColors.put(vertex.mColorFactor * Color.blue(Color.WHITE) / 255f);
-        mBufColors.put(Color.alpha(Color.WHITE) / 255f);
-        if (DRAW_TEXTURE) {
-            mBufTexCoords.put((float) vertex.mTexX);
-            mBufTexCoords.put((float) vertex.mTexY);
+    private void addVertex(int vertex) {
+        Vertices v = mVertices;
+        ByteBuffer buf = mBufVertices;
+        putPosition(buf, v.mPosX[vertex], v.mPosY[vertex], v.mPosZ[vertex]);
+        byte color = toColorByte(v.mColorFactor[vertex]);
+        buf.put(color);
+        buf.put(color);
+        buf.put(color);
+        buf.put((byte) 0xFF);
+        buf.putShort((short) (v.mTexX[vertex] * TEXCOORD_SCALE + .5f));
+        buf.putShort((short) (v.mTexY[vertex] * TEXCOORD_SCALE + .5f));
+    }
+
+    /**
+     * Adds shadow vertices to shadow buffers. Shadow vertices were collected
+     * in an order where every second one belongs to the opposite end of the
+     * triangle strip.
+     */
+    private int addShadowVertices(ShadowVertices sv) {
+        ByteBuffer buf = mBufShadowVertices;
+        for (int i = 0; i < sv.mCount; ++i) {
+            int idx = sv.getStripIndex(i);
+            putPosition(buf, sv.mPosX[idx], sv.mPosY[idx], sv.mPosZ[idx]);
+            buf.putShort((short) (sv.mPenumbraColor[idx] * TEXCOORD_SCALE + .5f));
+            buf.putShort((short) 0);
+            putPosition(buf, sv.mPosX[idx] + sv.mPenumbraX[idx],
+                    sv.mPosY[idx] + sv.mPenumbraY[idx], sv.mPosZ[idx]);
+            buf.putInt(0);
         }
+        return sv.mCount * 2;
     }
 
     /**
@@ -221,7 +325,36 @@ public class CurlMesh {
      * @param radius
      *            Radius of curl.
      */
-    public synchronized void curl(PointF curlPos, PointF curlDir, double radius) {
+    public void curl(PointF curlPos, PointF curlDir, float radius) {
+        CurlFrameMetrics metrics = mFrameMetrics;
+        long start = metrics != null ? System.nanoTime() : 0;
+        deform(curlPos, curlDir, radius);
+        if (metrics != null) {
+            metrics.add(CurlFrameMetrics.CURL_TIME, System.nanoTime() - start);
+        }
+    }
+
+    /**
+     * Deforms mesh for given curl, or stores curl for vertex shader.
+     */
+    private void deform(PointF curlPos, PointF curlDir, float radius) {
+
+        // Calculate curl rotation from direction. Rotating forth and back by
+        // curl angle needs only its cosine and sine which equal to direction
+        // components, so there's no need for any trigonometry here.
+        float dirLength = (float) Math.sqrt(curlDir.x * curlDir.x + curlDir.y * curlDir.y);
+        float curlCos = dirLength == 0 ? 1 : curlDir.x / dirLength;
+        float curlSin = dirLength == 0 ? 0 : -curlDir.y / dirLength;
+
+        mCurled = true;
+        mCurlPosX = curlPos.x;
+        mCurlPosY = curlPos.y;
+        mCurlDirX = curlCos;
+        mCurlDirY = -curlSin;
+        mCurlRadius = radius;
+        if (mDeformOnGpu) {
+            return;
+        }
 
         // First add some 'helper' lines used for development.
         if (DRAW_CURL_POSITION) {
@@ -244,40 +377,54 @@ public class CurlMesh {
             mBufCurlPositionLines.position(0);
         }
 
+        // Reuse recently generated curl if there's one for about the same
+        // parameters.
+        CurlCacheEntry current = mCurlCacheCurrent;
+        if (findCurlCacheEntry(curlPos.x, curlPos.y, mCurlDirX, mCurlDirY, radius)) {
+            if (mCurlCacheCurrent != current) {
+                mGeometryChanged = true;
+                ++mGeometryRevision;
+            }
+            return;
+        }
+
         // Actual 'curl' implementation starts here.
         mBufVertices.position(0);
-        mBufColors.position(0);
-        if (DRAW_TEXTURE) {
-            mBufTexCoords.position(0);
-        }
 
-        // Calculate curl angle from direction.
-        double curlAngle = Math.acos(curlDir.x);
-        curlAngle = curlDir.y > 0 ? -curlAngle : curlAngle;
+        final Vertices vertices = mVertices;
+        final float[] posX = vertices.mPosX;
+        final float[] posY = vertices.mPosY;
+        final float[] posZ = vertices.mPosZ;
 
         // Initiate rotated rectangle which's is translated to curlPos and
         // rotated so that curl direction heads to right (1,0). Vertices are
         // ordered in ascending order based on x -coordinate at the same time.
         // And using y -coordinate in very rare case in which two vertices have
         // same x -coordinate.
-        mArrTempVertices.addAll(mArrRotatedVertices);
-        mArrRotatedVertices.clear();
+        for (int i = 0; i < mRotatedVerticesCount; ++i) {
+            vertices.recycle(mRotatedVertices[i]);
+        }
+        mRotatedVerticesCount = 0;
         for (int i = 0; i < 4; ++i) {
-            Vertex v = mArrTempVertices.remove(0);
-            v.set(mRectangle[i]);
-            v.translate(-curlPos.x, -curlPos.y);
-            v.rotateZ(-curlAngle);
+            int v = vertices.obtain();
+            vertices.set(v, RECTANGLE + i);
+            vertices.translate(v, -curlPos.x, -curlPos.y);
+            vertices.rotateZ(v, curlCos, -curlSin);
             int j = 0;
-            for (; j < mArrRotatedVertices.size(); ++j) {
-                Vertex v2 = mArrRotatedVertices.get(j);
-                if (v.mPosX > v2.mPosX) {
+            for (; j < mRotatedVerticesCount; ++j) {
+                int v2 = mRotatedVertices[j];
+                if (posX[v] > posX[v2]) {
                     break;
                 }
-                if (v.mPosX == v2.mPosX && v.mPosY > v2.mPosY) {
+                if (posX[v] == posX[v2] && posY[v] > posY[v2]) {
                     break;
                 }
             }
-            mArrRotatedVertices.add(j, v);
+            for (int k = mRotatedVerticesCount; k > j; --k) {
+                mRotatedVertices[k] = mRotatedVertices[k - 1];
+            }
+            mRotatedVertices[j] = v;
+            ++mRotatedVerticesCount;
         }
 
         // Rotated rectangle lines/vertex indices. We need to find bounding
@@ -289,19 +436,24 @@ public class CurlMesh {
         // Also vertices/lines are given in an order first one has x -coordinate
         // at least the latter one. This property is used in getIntersections to
         // see if there is an intersection.
-        int lines[][] = { { 0, 1 }, { 0, 2 }, { 1, 3 }, { 2, 3 } };
+        int lines[][] = mLines;
+        lines[0][0] = 0;
+        lines[0][1] = 1;
+        lines[1][0] = 0;
+        lines[1][1] = 2;
+        lines[2][0] = 1;
+        lines[2][1] = 3;
+        lines[3][0] = 2;
+        lines[3][1] = 3;
         {
-            // There really has to be more 'easier' way of doing this -
-            // not including extensive use of sqrt.
-            Vertex v0 = mArrRotatedVertices.get(0);
-            Vertex v2 = mArrRotatedVertices.get(2);
-            Vertex v3 = mArrRotatedVertices.get(3);
-            double dist2 = Math.sqrt((v0.mPosX - v2.mPosX)
-                    * (v0.mPosX - v2.mPosX) + (v0.mPosY - v2.mPosY)
-                    * (v0.mPosY - v2.mPosY));
-            double dist3 = Math.sqrt((v0.mPosX - v3.mPosX)
-                    * (v0.mPosX - v3.mPosX) + (v0.mPosY - v3.mPosY)
-                    * (v0.mPosY - v3.mPosY));
+            // Comparing squared distances is enough here.
+            int v0 = mRotatedVertices[0];
+            int v2 = mRotatedVertices[2];
+            int v3 = mRotatedVertices[3];
+            float dist2 = (posX[v0] - posX[v2]) * (posX[v0] - posX[v2])
+                    + (posY[v0] - posY[v2]) * (posY[v0] - posY[v2]);
+            float dist3 = (posX[v0] - posX[v3]) * (posX[v0] - posX[v3])
+                    + (posY[v0] - posY[v3]) * (posY[v0] - posY[v3]);
             if (dist2 > dist3) {
                 lines[1][1] = 3;
                 lines[2][1] = 2;
@@ -311,95 +463,89 @@ public class CurlMesh {
         mVerticesCountFront = mVerticesCountBack = 0;
 
         if (DRAW_SHADOW) {
-            mArrTempShadowVertices.addAll(mArrDropShadowVertices);
-            mArrTempShadowVertices.addAll(mArrSelfShadowVertices);
-            mArrDropShadowVertices.clear();
-            mArrSelfShadowVertices.clear();
+            mDropShadowVertices.clear();
+            mSelfShadowVertices.clear();
         }
 
         // Length of 'curl' curve.
-        double curlLength = Math.PI * radius;
-        // Calculate scan lines.
-        // Revisit this code one day. There is room for optimization here.
-        mArrScanLines.clear();
-        if (mMaxCurlSplits > 0) {
-            mArrScanLines.add((double) 0);
-        }
-        for (int i = 1; i < mMaxCurlSplits; ++i) {
-            mArrScanLines.add((-curlLength * i) / (mMaxCurlSplits - 1));
-        }
+        float curlLength = PI * radius;
+        // Calculate scan lines. Scan lines within curl are taken from curl
+        // table which is updated only once radius or split count changes.
+        updateCurlTable(radius, getCurlSplits(radius));
+        mScanLinesCount = mCurlTableSplits;
         // As mRotatedVertices is ordered regarding x -coordinate, adding
         // this scan line produces scan area picking up vertices which are
         // rotated completely. One could say 'until infinity'.
-        mArrScanLines.add(mArrRotatedVertices.get(3).mPosX - 1);
+        mScanLines[mScanLinesCount++] = posX[mRotatedVertices[3]] - 1;
 
         // Start from right most vertex. Pretty much the same as first scan area
         // is starting from 'infinity'.
-        double scanXmax = mArrRotatedVertices.get(0).mPosX + 1;
+        float scanXmax = posX[mRotatedVertices[0]] + 1;
 
-        for (int i = 0; i < mArrScanLines.size(); ++i) {
+        for (int i = 0; i < mScanLinesCount; ++i) {
             // Once we have scanXmin and scanXmax we have a scan area to start
             // working with.
-            double scanXmin = mArrScanLines.get(i);
+            float scanXmin = mScanLines[i];
             // First iterate 'original' rectangle vertices within scan area.
-            for (int j = 0; j < mArrRotatedVertices.size(); ++j) {
-                Vertex v = mArrRotatedVertices.get(j);
+            for (int j = 0; j < mRotatedVerticesCount; ++j) {
+                int v = mRotatedVertices[j];
                 // Test if vertex lies within this scan area.
                 // Frankly speaking, can't remember why equality check was
                 // added to both ends. Guessing it was somehow related to case
                 // where radius=0f, which, given current implementation, could
                 // be handled much more effectively anyway.
-                if (v.mPosX >= scanXmin && v.mPosX <= scanXmax) {
+                if (posX[v] >= scanXmin && posX[v] <= scanXmax) {
                     // Pop out a vertex from temp vertices.
-                    Vertex n = mArrTempVertices.remove(0);
-                    n.set(v);
+                    int n = vertices.obtain();
+                    vertices.set(n, v);
                     // This is done solely for triangulation reasons. Given a
                     // rotated rectangle it has max 2 vertices having
                     // intersection.
-                    Array<Vertex> intersections = getIntersections(
-                            mArrRotatedVertices, lines, n.mPosX);
+                    getIntersections(lines, posX[n]);
                     // In a sense one could say we're adding vertices always in
                     // two, positioned at the ends of intersecting line. And for
                     // triangulation to work properly they are added based on y
                     // -coordinate. And this if-else is doing it for us.
-                    if (intersections.size() == 1
-                            && intersections.get(0).mPosY > v.mPosY) {
+                    if (mIntersectionsCount == 1
+                            && posY[mIntersections[0]] > posY[v]) {
                         // In case intersecting vertex is higher add it first.
-                        mArrOutputVertices.addAll(intersections);
-                        mArrOutputVertices.add(n);
-                    } else if (intersections.size() <= 1) {
+                        addOutputVertex(mIntersections[0]);
+                        addOutputVertex(n);
+                    } else if (mIntersectionsCount <= 1) {
                         // Otherwise add original vertex first.
-                        mArrOutputVertices.add(n);
-                        mArrOutputVertices.addAll(intersections);
+                        addOutputVertex(n);
+                        if (mIntersectionsCount == 1) {
+                            addOutputVertex(mIntersections[0]);
+                        }
                     } else {
                         // There should never be more than 1 intersecting
                         // vertex. But if it happens as a fallback simply skip
                         // everything.
-                        mArrTempVertices.add(n);
-                        mArrTempVertices.addAll(intersections);
+                        vertices.recycle(n);
+                        recycleIntersections();
                     }
                 }
             }
 
             // Search for scan line intersections.
-            Array<Vertex> intersections = getIntersections(mArrRotatedVertices,
-                    lines, scanXmin);
+            getIntersections(lines, scanXmin);
 
             // We expect to get 0 or 2 vertices. In rare cases there's only one
             // but in general given a scan line intersecting rectangle there
             // should be 2 intersecting vertices.
-            if (intersections.size() == 2) {
+            if (mIntersectionsCount == 2) {
                 // There were two intersections, add them based on y
                 // -coordinate, higher first, lower last.
-                Vertex v1 = intersections.get(0);
-                Vertex v2 = intersections.get(1);
-                if (v1.mPosY < v2.mPosY) {
-                    mArrOutputVertices.add(v2);
-                    mArrOutputVertices.add(v1);
+                int v1 = mIntersections[0];
+                int v2 = mIntersections[1];
+                if (posY[v1] < posY[v2]) {
+                    addOutputVertex(v2);
+                    addOutputVertex(v1);
                 } else {
-                    mArrOutputVertices.addAll(intersections);
+                    addOutputVertex(v1);
+                    addOutputVertex(v2);
                 }
-            } else if (intersections.size() != 0) {
+            } else if (mIntersectionsCount != 0) {
                 // This happens in a case in which there is a original vertex
                 // exactly at scan line or something went very much wrong if
                 // there are 3+ vertices. What ever the reason just return the
@@ -407,13 +553,12 @@ public class CurlMesh {
                 // was handled already earlier once iterating through
                 // mRotatedVertices, in latter case it's better to avoid doing
                 // anything with them.
-                mArrTempVertices.addAll(intersections);
+                recycleIntersections();
             }
 
             // Add vertices found during this iteration to vertex etc buffers.
-            while (mArrOutputVertices.size() > 0) {
-                Vertex v = mArrOutputVertices.remove(0);
-                mArrTempVertices.add(v);
+            for (int k = 0; k < mOutputVerticesCount; ++k) {
+                int v = mOutputVertices[k];
 
                 // Local texture front-facing flag.
                 boolean textureFront;
@@ -424,10 +569,10 @@ public class CurlMesh {
                     mVerticesCountFront++;
                 }
                 // 'Completely' rotated vertices.
-                else if (i == mArrScanLines.size() - 1 || curlLength == 0) {
-                    v.mPosX = -(curlLength + v.mPosX);
-                    v.mPosZ = 2 * radius;
-                    v.mPenumbraX = -v.mPenumbraX;
+                else if (i == mScanLinesCount - 1 || curlLength == 0) {
+                    posX[v] = -(curlLength + posX[v]);
+                    posZ[v] = 2 * radius;
+                    vertices.mPenumbraX[v] = -vertices.mPenumbraX[v];
 
                     textureFront = false;
                     mVerticesCountBack++;
@@ -436,16 +581,25 @@ public class CurlMesh {
                 else {
                     // Even though it's not obvious from the if-else clause,
                     // here v.mPosX is between [-curlLength, 0]. And we can do
-                    // calculations around a half cylinder.
-                    double rotY = Math.PI * (v.mPosX / curlLength);
-                    v.mPosX = radius * Math.sin(rotY);
-                    v.mPosZ = radius - (radius * Math.cos(rotY));
-                    v.mPenumbraX *= Math.cos(rotY);
-                    // Map color multiplier to [.1f, 1f] range.
-                    v.mColorFactor = (float) (.1f + .9f * Math.sqrt(Math
-                            .sin(rotY) + 1));
-
-                    if (v.mPosZ >= radius) {
+                    // calculations around a half cylinder. Vertices on scan
+                    // line have their values precalculated already.
+                    if (posX[v] == scanXmin) {
+                        posX[v] = mCurlTablePosX[i];
+                        posZ[v] = mCurlTablePosZ[i];
+                        vertices.mPenumbraX[v] *= mCurlTablePenumbra[i];
+                        vertices.mColorFactor[v] = mCurlTableColorFactor[i];
+                    } else {
+                        float rotY = PI * (posX[v] / curlLength);
+                        float sinY = (float) Math.sin(rotY);
+                        float cosY = (float) Math.cos(rotY);
+                        posX[v] = radius * sinY;
+                        posZ[v] = radius - (radius * cosY);
+                        vertices.mPenumbraX[v] *= cosY;
+                        // Map color multiplier to [.1f, 1f] range.
+                        vertices.mColorFactor[v] = .1f + .9f * (float) Math.sqrt(sinY + 1);
+                    }
+
+                    if (posZ[v] >= radius) {
                         textureFront = false;
                         mVerticesCountBack++;
                     } else {
@@ -460,227 +614,431 @@ public class CurlMesh {
                 // texture coordinates are within [0, 1] range so we'll adjust
                 // them to final texture coordinates too.
                 if (textureFront != mFlipTexture) {
-                    v.mTexX *= mTextureRectFront.right;
-                    v.mTexY *= mTextureRectFront.bottom;
+                    mapTexCoords(v, mTextureRectFront);
                 } else {
-                    v.mTexX *= mTextureRectBack.right;
-                    v.mTexY *= mTextureRectBack.bottom;
+                    mapTexCoords(v, mTextureRectBack);
                 }
 
                 // Move vertex back to 'world' coordinates.
-                v.rotateZ(curlAngle);
-                v.translate(curlPos.x, curlPos.y);
+                vertices.rotateZ(v, curlCos, curlSin);
+                vertices.translate(v, curlPos.x, curlPos.y);
                 addVertex(v);
 
                 // Drop shadow is cast 'behind' the curl.
-                if (DRAW_SHADOW && v.mPosZ > 0 && v.mPosZ <= radius) {
-                    ShadowVertex sv = mArrTempShadowVertices.remove(0);
-                    sv.mPosX = v.mPosX;
-                    sv.mPosY = v.mPosY;
-                    sv.mPosZ = v.mPosZ;
-                    sv.mPenumbraX = (v.mPosZ / 2) * -curlDir.x;
-                    sv.mPenumbraY = (v.mPosZ / 2) * -curlDir.y;
-                    sv.mPenumbraColor = v.mPosZ / radius;
-                    int idx = (mArrDropShadowVertices.size() + 1) / 2;
-                    mArrDropShadowVertices.add(idx, sv);
+                if (DRAW_SHADOW && posZ[v] > 0 && posZ[v] <= radius) {
+                    mDropShadowVertices.add(posX[v], posY[v], posZ[v],
+                            (posZ[v] / 2) * -curlDir.x,
+                            (posZ[v] / 2) * -curlDir.y,
+                            posZ[v] / radius);
                 }
                 // Self shadow is cast partly over mesh.
-                if (DRAW_SHADOW && v.mPosZ > radius) {
-                    ShadowVertex sv = mArrTempShadowVertices.remove(0);
-                    sv.mPosX = v.mPosX;
-                    sv.mPosY = v.mPosY;
-                    sv.mPosZ = v.mPosZ;
-                    sv.mPenumbraX = ((v.mPosZ - radius) / 3) * v.mPenumbraX;
-                    sv.mPenumbraY = ((v.mPosZ - radius) / 3) * v.mPenumbraY;
-                    sv.mPenumbraColor = (v.mPosZ - radius) / (2 * radius);
-                    int idx = (mArrSelfShadowVertices.size() + 1) / 2;
-                    mArrSelfShadowVertices.add(idx, sv);
+                if (DRAW_SHADOW && posZ[v] > radius) {
+                    mSelfShadowVertices.add(posX[v], posY[v], posZ[v],
+                            ((posZ[v] - radius) / 3) * vertices.mPenumbraX[v],
+                            ((posZ[v] - radius) / 3) * vertices.mPenumbraY[v],
+                            (posZ[v] - radius) / (2 * radius));
                 }
+                vertices.recycle(v);
             }
+            mOutputVerticesCount = 0;
 
             // Switch scanXmin as scanXmax for next iteration.
             scanXmax = scanXmin;
         }
 
         mBufVertices.position(0);
-        mBufColors.position(0);
-        if (DRAW_TEXTURE) {
-            mBufTexCoords.position(0);
-        }
 
         // Add shadow Vertices.
         if (DRAW_SHADOW) {
-            mBufShadowColors.position(0);
             mBufShadowVertices.position(0);
-            mDropShadowCount = 0;
-
-            for (int i = 0; i < mArrDropShadowVertices.size(); ++i) {
-                ShadowVertex sv = mArrDropShadowVertices.get(i);
-                mBufShadowVertices.put((float) sv.mPosX);
-                mBufShadowVertices.put((float) sv.mPosY);
-                mBufShadowVertices.put((float) sv.mPosZ);
-                mBufShadowVertices.put((float) (sv.mPosX + sv.mPenumbraX));
-                mBufShadowVertices.put((float) (sv.mPosY + sv.mPenumbraY));
-                mBufShadowVertices.put((float) sv.mPosZ);
-                for (int j = 0; j < 4; ++j) {
-                    double color = SHADOW_OUTER_COLOR[j]
-                            + (SHADOW_INNER_COLOR[j] - SHADOW_OUTER_COLOR[j])
-                            * sv.mPenumbraColor;
-                    mBufShadowColors.put((float) color);
-                }
-                mBufShadowColors.put(SHADOW_OUTER_COLOR);
-                mDropShadowCount += 2;
+            mDropShadowCount = addShadowVertices(mDropShadowVertices);
+            mSelfShadowCount = addShadowVertices(mSelfShadowVertices);
+            mBufShadowVertices.position(0);
+        }
+        mGeometryChanged = true;
+        ++mGeometryRevision;
+
+        CurlCacheEntry entry = mCurlCacheCurrent;
+        entry.mVerticesCountFront = mVerticesCountFront;
+        entry.mVerticesCountBack = mVerticesCountBack;
+        entry.mDropShadowCount = mDropShadowCount;
+        entry.mSelfShadowCount = mSelfShadowCount;
+        entry.mValid = true;
+    }
+
+    /**
+     * Looks up curl cache for given parameters. On a hit cached buffers are
+     * taken into use and true is returned. On a miss least recently used
+     * entry is taken into use for generating the curl into and false is
+     * returned.
+     */
+    private boolean findCurlCacheEntry(float curlPosX, float curlPosY,
+                                       float curlDirX, float curlDirY, float radius) {
+        // Position and radius are quantized to given step in pixels.
+        // Direction step is chosen so that rotating by it moves the far end
+        // of page about the same distance.
+        float step = mPixelsPerUnit > 0 ? mCurlCacheStep / mPixelsPerUnit : 0;
+        float size = Math.max(Math.abs(mRect.width()), Math.abs(mRect.height()));
+        float dirStep = size > 0 ? step / size : 0;
+        int keyPosX = quantize(curlPosX, step);
+        int keyPosY = quantize(curlPosY, step);
+        int keyDirX = quantize(curlDirX, dirStep);
+        int keyDirY = quantize(curlDirY, dirStep);
+        int keyRadius = quantize(radius, step);
+
+        CurlCacheEntry victim = null;
+        for (CurlCacheEntry entry : mCurlCache) {
+            if (entry.mValid && entry.mKeyPosX == keyPosX
+                    && entry.mKeyPosY == keyPosY && entry.mKeyDirX == keyDirX
+                    && entry.mKeyDirY == keyDirY && entry.mKeyRadius == keyRadius
+                    && entry.mKeyFlipTexture == mFlipTexture) {
+                entry.mLastUsed = ++mCurlCacheClock;
+                useCurlCacheEntry(entry);
+                ++mCurlCacheHits;
+                return true;
             }
-            mSelfShadowCount = 0;
-            for (int i = 0; i < mArrSelfShadowVertices.size(); ++i) {
-                ShadowVertex sv = mArrSelfShadowVertices.get(i);
-                mBufShadowVertices.put((float) sv.mPosX);
-                mBufShadowVertices.put((float) sv.mPosY);
-                mBufShadowVertices.put((float) sv.mPosZ);
-                mBufShadowVertices.put((float) (sv.mPosX + sv.mPenumbraX));
-                mBufShadowVertices.put((float) (sv.mPosY + sv.mPenumbraY));
-                mBufShadowVertices.put((float) sv.mPosZ);
-                for (int j = 0; j < 4; ++j) {
-                    double color = SHADOW_OUTER_COLOR[j]
-                            + (SHADOW_INNER_COLOR[j] - SHADOW_OUTER_COLOR[j])
-                            * sv.mPenumbraColor;
-                    mBufShadowColors.put((float) color);
-                }
-                mBufShadowColors.put(SHADOW_OUTER_COLOR);
-                mSelfShadowCount += 2;
+            if (victim == null || !entry.mValid
+                    || (victim.mValid && entry.mLastUsed < victim.mLastUsed)) {
+                victim = entry;
             }
-            mBufShadowColors.position(0);
-            mBufShadowVertices.position(0);
         }
+
+        ++mCurlCacheMisses;
+        victim.mValid = false;
+        victim.mKeyPosX = keyPosX;
+        victim.mKeyPosY = keyPosY;
+        victim.mKeyDirX = keyDirX;
+        victim.mKeyDirY = keyDirY;
+        victim.mKeyRadius = keyRadius;
+        victim.mKeyFlipTexture = mFlipTexture;
+        victim.mLastUsed = ++mCurlCacheClock;
+        useCurlCacheEntry(victim);
+        return false;
+    }
+
+    /**
+     * Takes buffers and vertex counts of given cache entry into use.
+     */
+    private void useCurlCacheEntry(CurlCacheEntry entry) {
+        mCurlCacheCurrent = entry;
+        mBufVertices = entry.mBufVertices;
+        mBufShadowVertices = entry.mBufShadowVertices;
+        mVerticesCountFront = entry.mVerticesCountFront;
+        mVerticesCountBack = entry.mVerticesCountBack;
+        mDropShadowCount = entry.mDropShadowCount;
+        mSelfShadowCount = entry.mSelfShadowCount;
+    }
+
+    /**
+     * Drops all cached curls. Needs to be called once anything but curl
+     * parameters affecting generated geometry changes.
+     */
+    private void clearCurlCache() {
+        for (CurlCacheEntry entry : mCurlCache) {
+            entry.mValid = false;
+        }
+    }
+
+    /**
+     * Quantizes value to given step. Zero step uses value as is.
+     */
+    private static int quantize(float value, float step) {
+        return step > 0 ? Math.round(value / step) : Float.floatToIntBits(value);
+    }
+
+    /**
+     * Returns number of split lines needed for keeping distance between curl
+     * and its chords within mMaxChordError pixels. Curl is half a cylinder
+     * divided into (splits - 1) chords. Returns mMaxCurlSplits if pixel scale
+     * is not known.
+     */
+    private int getCurlSplits(float radius) {
+        if (mPixelsPerUnit <= 0 || mMaxChordError <= 0) {
+            return mMaxCurlSplits;
+        }
+        float radiusPixels = radius * mPixelsPerUnit;
+        int chords = 1;
+        if (radiusPixels > mMaxChordError) {
+            // Chord spanning angle a deviates r * (1 - cos(a / 2)) from arc.
+            float angle = 2 * (float) Math.acos(1 - mMaxChordError / radiusPixels);
+            chords = (int) Math.ceil(PI / angle);
+        }
+        return Math.max(Math.min(chords + 1, mMaxCurlSplits), Math.min(2, mMaxCurlSplits));
+    }
+
+    /**
+     * Updates scan lines and cylinder values for vertices lying on them
+     * within curl. Does nothing if table has been calculated for given radius
+     * and split count already.
+     */
+    private void updateCurlTable(float radius, int splits) {
+        if (radius == mCurlTableRadius && splits == mCurlTableSplits) {
+            return;
+        }
+        float curlLength = PI * radius;
+        mScanLines[0] = 0;
+        for (int i = 1; i < splits; ++i) {
+            mScanLines[i] = (-curlLength * i) / (splits - 1);
+            if (curlLength == 0) {
+                continue;
+            }
+            float rotY = PI * (mScanLines[i] / curlLength);
+            float sinY = (float) Math.sin(rotY);
+            float cosY = (float) Math.cos(rotY);
+            mCurlTablePosX[i] = radius * sinY;
+            mCurlTablePosZ[i] = radius - (radius * cosY);
+            mCurlTablePenumbra[i] = cosY;
+            // Map color multiplier to [.1f, 1f] range.
+            mCurlTableColorFactor[i] = .1f + .9f * (float) Math.sqrt(sinY + 1);
+        }
+        mCurlTableRadius = radius;
+        mCurlTableSplits = splits;
+    }
+
+    /**
+     * Maps vertex texture coordinates from [0, 1] range into given texture
+     * rect.
+     */
+    private void mapTexCoords(int vertex, RectF textureRect) {
+        float[] texX = mVertices.mTexX;
+        float[] texY = mVertices.mTexY;
+        texX[vertex] = textureRect.left + texX[vertex] * textureRect.width();
+        texY[vertex] = textureRect.top + texY[vertex] * textureRect.height();
+    }
+
+    /**
+     * Adds vertex index to output vertices.
+     */
+    private void addOutputVertex(int vertex) {
+        if (mOutputVerticesCount >= mOutputVertices.length) {
+            throw new IndexOutOfBoundsException();
+        }
+        mOutputVertices[mOutputVerticesCount++] = vertex;
     }
 
     /**
-     * Calculates intersections for given scan line.
+     * Returns intersecting vertices back to free vertices.
      */
-    private Array<Vertex> getIntersections(Array<Vertex> vertices,
-                                           int[][] lineIndices, double scanX) {
-        mArrIntersections.clear();
+    private void recycleIntersections() {
+        for (int i = 0; i < mIntersectionsCount; ++i) {
+            mVertices.recycle(mIntersections[i]);
+        }
+        mIntersectionsCount = 0;
+    }
+
+    /**
+     * Calculates intersections for given scan line. Intersecting vertices are
+     * stored into mIntersections.
+     */
+    private void getIntersections(int[][] lineIndices, float scanX) {
+        final Vertices vertices = mVertices;
+        final float[] posX = vertices.mPosX;
+        mIntersectionsCount = 0;
         // Iterate through rectangle lines each re-presented as a pair of
         // vertices.
         for (int j = 0; j < lineIndices.length; j++) {
-            Vertex v1 = vertices.get(lineIndices[j][0]);
-            Vertex v2 = vertices.get(lineIndices[j][1]);
+            int v1 = mRotatedVertices[lineIndices[j][0]];
+            int v2 = mRotatedVertices[lineIndices[j][1]];
             // Here we expect that v1.mPosX >= v2.mPosX and wont do intersection
             // test the opposite way.
-            if (v1.mPosX > scanX && v2.mPosX < scanX) {
+            if (posX[v1] > scanX && posX[v2] < scanX) {
                 // There is an intersection, calculate coefficient telling 'how
                 // far' scanX is from v2.
-                double c = (scanX - v2.mPosX) / (v1.mPosX - v2.mPosX);
-                Vertex n = mArrTempVertices.remove(0);
-                n.set(v2);
-                n.mPosX = scanX;
-                n.mPosY += (v1.mPosY - v2.mPosY) * c;
+                float c = (scanX - posX[v2]) / (posX[v1] - posX[v2]);
+                int n = vertices.obtain();
+                vertices.set(n, v2);
+                posX[n] = scanX;
+                vertices.mPosY[n] += (vertices.mPosY[v1] - vertices.mPosY[v2]) * c;
                 if (DRAW_TEXTURE) {
-                    n.mTexX += (v1.mTexX - v2.mTexX) * c;
-                    n.mTexY += (v1.mTexY - v2.mTexY) * c;
+                    vertices.mTexX[n] += (vertices.mTexX[v1] - vertices.mTexX[v2]) * c;
+                    vertices.mTexY[n] += (vertices.mTexY[v1] - vertices.mTexY[v2]) * c;
                 }
                 if (DRAW_SHADOW) {
-                    n.mPenumbraX += (v1.mPenumbraX - v2.mPenumbraX) * c;
-                    n.mPenumbraY += (v1.mPenumbraY - v2.mPenumbraY) * c;
+                    vertices.mPenumbraX[n] += (vertices.mPenumbraX[v1] - vertices.mPenumbraX[v2]) * c;
+                    vertices.mPenumbraY[n] += (vertices.mPenumbraY[v1] - vertices.mPenumbraY[v2]) * c;
                 }
-                mArrIntersections.add(n);
+                if (mIntersectionsCount >= mIntersections.length) {
+                    throw new IndexOutOfBoundsException();
+                }
+                mIntersections[mIntersectionsCount++] = n;
             }
         }
-        return mArrIntersections;
     }
 
     /**
      * Getter for textures page for this mesh.
      */
-    public synchronized CurlPage getTexturePage() {
+    public CurlPage getTexturePage() {
         return mTexturePage;
     }
 
     /**
-     * Renders our page curl mesh.
+     * Allocates shadow texture if there is none yet and takes changed page
+     * textures into use. Shadow texture is not needed when deforming on GPU.
      */
-    public synchronized void onDrawFrame(GL10 gl) {
-        // First allocate texture if there is not one yet.
-        if (DRAW_TEXTURE && mTextureIds == null) {
-            // Generate texture.
-            mTextureIds = new int[2];
-            gl.glGenTextures(2, mTextureIds, 0);
-            for (int textureId : mTextureIds) {
-                // Set texture attributes.
-                gl.glBindTexture(GL10.GL_TEXTURE_2D, textureId);
-                gl.glTexParameterf(GL10.GL_TEXTURE_2D,
-                        GL10.GL_TEXTURE_MIN_FILTER, GL10.GL_NEAREST);
-                gl.glTexParameterf(GL10.GL_TEXTURE_2D,
-                        GL10.GL_TEXTURE_MAG_FILTER, GL10.GL_NEAREST);
-                gl.glTexParameterf(GL10.GL_TEXTURE_2D, GL10.GL_TEXTURE_WRAP_S,
-                        GL10.GL_CLAMP_TO_EDGE);
-                gl.glTexParameterf(GL10.GL_TEXTURE_2D, GL10.GL_TEXTURE_WRAP_T,
-                        GL10.GL_CLAMP_TO_EDGE);
-            }
+    private void updateTextures(GL10 gl) {
+        // Shadow gradient is uploaded once per texture id.
+        if (DRAW_SHADOW && !mDeformOnGpu && mShadowTextureIds == null) {
+            mShadowTextureIds = new int[1];
+            gl.glGenTextures(1, mShadowTextureIds, 0);
+            gl.glBindTexture(GL10.GL_TEXTURE_2D, mShadowTextureIds[0]);
+            gl.glTexParameterf(GL10.GL_TEXTURE_2D,
+                    GL10.GL_TEXTURE_MIN_FILTER, GL10.GL_LINEAR);
+            gl.glTexParameterf(GL10.GL_TEXTURE_2D,
+                    GL10.GL_TEXTURE_MAG_FILTER, GL10.GL_LINEAR);
+            gl.glTexParameterf(GL10.GL_TEXTURE_2D, GL10.GL_TEXTURE_WRAP_S,
+                    GL10.GL_CLAMP_TO_EDGE);
+            gl.glTexParameterf(GL10.GL_TEXTURE_2D, GL10.GL_TEXTURE_WRAP_T,
+                    GL10.GL_CLAMP_TO_EDGE);
+            gl.glTexImage2D(GL10.GL_TEXTURE_2D, 0, GL10.GL_RGBA,
+                    SHADOW_GRADIENT_SIZE, 1, 0, GL10.GL_RGBA,
+                    GL10.GL_UNSIGNED_BYTE, SHADOW_GRADIENT);
+            mGlState.invalidateTexture();
         }
 
         if (DRAW_TEXTURE && mTexturePage.getTexturesChanged()) {
-            gl.glBindTexture(GL10.GL_TEXTURE_2D, mTextureIds[0]);
-            Bitmap texture = mTexturePage.getTexture(mTextureRectFront, CurlPage.SIDE_FRONT);
-            GLUtils.texImage2D(GL10.GL_TEXTURE_2D, 0, texture, 0);
-
-            gl.glBindTexture(GL10.GL_TEXTURE_2D, mTextureIds[1]);
-            texture = mTexturePage.getTexture(mTextureRectBack, CurlPage.SIDE_BACK);
-            GLUtils.texImage2D(GL10.GL_TEXTURE_2D, 0, texture, 0);
+            if (mTextureRegistry == null) {
+                mTextureRegistry = new CurlTextureRegistry(false, 0);
+            }
+            long start = System.nanoTime();
+            updateTexture(gl, 0, CurlPage.SIDE_FRONT, mTextureRectFront);
+            updateTexture(gl, 1, CurlPage.SIDE_BACK, mTextureRectBack);
+            // Registry binds textures it uploads into.
+            mGlState.invalidateTexture();
+            if (mFrameMetrics != null) {
+                mFrameMetrics.add(CurlFrameMetrics.UPLOAD_TIME, System.nanoTime() - start);
+            }
 
             mTexturePage.reset();
+            clearCurlCache();
+            // Texture coordinates are baked into vertices, curl is generated
+            // again for new ones instead of flattening the page.
+            boolean curled = mCurled;
             reset();
+            if (curled) {
+                mTmpCurlPos.set(mCurlPosX, mCurlPosY);
+                mTmpCurlDir.set(mCurlDirX, mCurlDirY);
+                deform(mTmpCurlPos, mTmpCurlDir, mCurlRadius);
+            }
+        }
+    }
+
+    /**
+     * Replaces texture at given index with the one for given page side.
+     * Texture registered with the same key is used if there is one, page
+     * compressed texture, raw texels or bitmap is uploaded otherwise, bitmap
+     * into storage of previous texture if size and format match.
+     */
+    private void updateTexture(GL10 gl, int index, int side, RectF textureRect) {
+        CurlTextureRegistry.Texture previous = mTextures[index];
+        Object key = mTexturePage.getTextureKey(side);
+        CurlTextureRegistry.Texture texture = mTextureRegistry.acquire(key);
+        CurlEtc1Texture etc1 = texture == null
+                ? mTexturePage.getEtc1Texture(textureRect, side) : null;
+        CurlRawTexture raw = texture == null && etc1 == null
+                ? mTexturePage.getRawTexture(textureRect, side) : null;
+        if (etc1 != null) {
+            texture = mTextureRegistry.registerEtc1(gl, key, etc1, textureRect, previous);
+            previous = null;
+        } else if (raw != null) {
+            texture = mTextureRegistry.registerRaw(gl, key, raw, textureRect, previous);
+            previous = null;
+        } else if (texture == null) {
+            Bitmap bitmap = mTexturePage.getTexture(textureRect, side);
+            if (bitmap != null) {
+                // Previous texture storage is updated in place if it fits.
+                texture = mTextureRegistry.register(gl, key, bitmap, textureRect,
+                        mTexturePage.isTextureShared(side), previous);
+                previous = null;
+            }
+        }
+        mTextureRegistry.release(previous);
+        mTextures[index] = texture;
+        if (texture != null) {
+            textureRect.set(texture.mRect);
+        }
+    }
+
+    /**
+     * Binds given texture and maps short texture coordinates into it.
+     */
+    private void bindTexture(GL10 gl, CurlTextureRegistry.Texture texture) {
+        mGlState.bindTexture(gl, texture != null ? texture.mTextureId : 0);
+        gl.glMatrixMode(GL10.GL_TEXTURE);
+        gl.glLoadIdentity();
+        gl.glScalef(1f / TEXCOORD_SCALE, 1f / TEXCOORD_SCALE, 1f);
+        if (texture != null) {
+            gl.glTranslatef(texture.mOffsetS, texture.mOffsetT, 0f);
+            gl.glScalef(texture.mScaleS, texture.mScaleT, 1f);
+        }
+        gl.glMatrixMode(GL10.GL_MODELVIEW);
+    }
+
+    /**
+     * Renders our page curl mesh.
+     */
+    public void onDrawFrame(GL10 gl) {
+        mDrawCallCount = 0;
+        updateTextures(gl);
+        mVertexCount = getMeshVertexCount();
+
+        // Allocate vertex buffer object once GL11 is available.
+        if (mVboIds == null) {
+            mVboIds = new int[1];
+            if (USE_VBO && isVboSupported(gl)) {
+                ((GL11) gl).glGenBuffers(1, mVboIds, 0);
+            }
+            mGeometryChanged = true;
+        }
+        boolean useVbo = mVboIds[0] != 0;
+        if (useVbo && mGeometryChanged) {
+            updateVbo((GL11) gl);
         }
 
-        // Some 'global' settings.
-        gl.glEnableClientState(GL10.GL_VERTEX_ARRAY);
+        // Some 'global' settings. State is declared for each part drawn and
+        // left as it is afterwards, CurlGlState skips calls not changing it.
+        CurlGlState state = mGlState;
+        state.enableClientState(gl, GL10.GL_VERTEX_ARRAY);
+        // Scale short positions back.
+        gl.glPushMatrix();
+        gl.glScalef(1f / POSITION_SCALE, 1f / POSITION_SCALE, 1f / POSITION_SCALE);
 
         // Drop shadow drawing is done temporarily here to hide some
         // problems with its calculation.
         if (DRAW_SHADOW) {
-            gl.glDisable(GL10.GL_TEXTURE_2D);
-            gl.glEnable(GL10.GL_BLEND);
-            gl.glBlendFunc(GL10.GL_SRC_ALPHA, GL10.GL_ONE_MINUS_SRC_ALPHA);
-            gl.glEnableClientState(GL10.GL_COLOR_ARRAY);
-            gl.glColorPointer(4, GL10.GL_FLOAT, 0, mBufShadowColors);
-            gl.glVertexPointer(3, GL10.GL_FLOAT, 0, mBufShadowVertices);
-            gl.glDrawArrays(GL10.GL_TRIANGLE_STRIP, 0, mDropShadowCount);
-            gl.glDisableClientState(GL10.GL_COLOR_ARRAY);
-            gl.glDisable(GL10.GL_BLEND);
+            drawShadow(gl, useVbo, 0, mDropShadowCount);
         }
 
         if (DRAW_TEXTURE) {
-            gl.glEnableClientState(GL10.GL_TEXTURE_COORD_ARRAY);
-            gl.glTexCoordPointer(2, GL10.GL_FLOAT, 0, mBufTexCoords);
+            state.enableClientState(gl, GL10.GL_TEXTURE_COORD_ARRAY);
         }
-        gl.glVertexPointer(3, GL10.GL_FLOAT, 0, mBufVertices);
         // Enable color array.
-        gl.glEnableClientState(GL10.GL_COLOR_ARRAY);
-        gl.glColorPointer(4, GL10.GL_FLOAT, 0, mBufColors);
+        state.enableClientState(gl, GL10.GL_COLOR_ARRAY);
+        setVertexPointers(gl, useVbo);
 
         // Draw front facing blank vertices.
-        gl.glDisable(GL10.GL_TEXTURE_2D);
-
         if (DRAW_SHAPE) {
+            state.disable(gl, GL10.GL_BLEND);
+            state.disable(gl, GL10.GL_TEXTURE_2D);
             gl.glDrawArrays(GL10.GL_TRIANGLE_STRIP, 0, mVerticesCountFront);
         }
 
         // Draw front facing texture.
         if (DRAW_TEXTURE) {
-            gl.glEnable(GL10.GL_BLEND);
-            gl.glEnable(GL10.GL_TEXTURE_2D);
+            state.enable(gl, GL10.GL_BLEND);
+            state.enable(gl, GL10.GL_TEXTURE_2D);
 
+            // Texture matrix scales short texture coordinates back into
+            // texture.
             if (!mFlipTexture) {
-                gl.glBindTexture(GL10.GL_TEXTURE_2D, mTextureIds[0]);
+                bindTexture(gl, mTextures[0]);
             } else {
-                gl.glBindTexture(GL10.GL_TEXTURE_2D, mTextureIds[1]);
+                bindTexture(gl, mTextures[1]);
             }
 
-            gl.glBlendFunc(GL10.GL_SRC_ALPHA, GL10.GL_ONE_MINUS_SRC_ALPHA);
+            state.blendFunc(gl, GL10.GL_SRC_ALPHA, GL10.GL_ONE_MINUS_SRC_ALPHA);
             gl.glDrawArrays(GL10.GL_TRIANGLE_STRIP, 0, mVerticesCountFront);
-
-            gl.glDisable(GL10.GL_BLEND);
-            gl.glDisable(GL10.GL_TEXTURE_2D);
+            ++mDrawCallCount;
         }
 
         int backStartIdx = Math.max(0, mVerticesCountFront - 2);
@@ -688,121 +1046,524 @@ public class CurlMesh {
 
         // Draw back facing blank vertices.
         if (DRAW_SHAPE) {
+            state.disable(gl, GL10.GL_BLEND);
+            state.disable(gl, GL10.GL_TEXTURE_2D);
             gl.glDrawArrays(GL10.GL_TRIANGLE_STRIP, backStartIdx, backCount);
         }
 
         // Draw back facing texture.
         if (DRAW_TEXTURE) {
-            gl.glEnable(GL10.GL_BLEND);
-            gl.glEnable(GL10.GL_TEXTURE_2D);
+            state.enable(gl, GL10.GL_BLEND);
+            state.enable(gl, GL10.GL_TEXTURE_2D);
 
             if (mFlipTexture) {
-                gl.glBindTexture(GL10.GL_TEXTURE_2D, mTextureIds[0]);
+                bindTexture(gl, mTextures[0]);
             } else {
-                gl.glBindTexture(GL10.GL_TEXTURE_2D, mTextureIds[1]);
+                bindTexture(gl, mTextures[1]);
             }
 
-            gl.glBlendFunc(GL10.GL_SRC_ALPHA, GL10.GL_ONE_MINUS_SRC_ALPHA);
+            state.blendFunc(gl, GL10.GL_SRC_ALPHA, GL10.GL_ONE_MINUS_SRC_ALPHA);
             gl.glDrawArrays(GL10.GL_TRIANGLE_STRIP, backStartIdx, backCount);
-
-            gl.glDisable(GL10.GL_BLEND);
-            gl.glDisable(GL10.GL_TEXTURE_2D);
+            ++mDrawCallCount;
         }
 
-        // Disable textures and color array.
-        gl.glDisableClientState(GL10.GL_TEXTURE_COORD_ARRAY);
-        gl.glDisableClientState(GL10.GL_COLOR_ARRAY);
+        // Reset texture matrix.
+        if (DRAW_TEXTURE) {
+            gl.glMatrixMode(GL10.GL_TEXTURE);
+            gl.glLoadIdentity();
+            gl.glMatrixMode(GL10.GL_MODELVIEW);
+        }
 
         if (DRAW_POLYGON_OUTLINES) {
-            gl.glEnable(GL10.GL_BLEND);
-            gl.glBlendFunc(GL10.GL_SRC_ALPHA, GL10.GL_ONE_MINUS_SRC_ALPHA);
+            state.disableClientState(gl, GL10.GL_TEXTURE_COORD_ARRAY);
+            state.disableClientState(gl, GL10.GL_COLOR_ARRAY);
+            state.disable(gl, GL10.GL_TEXTURE_2D);
+            state.enable(gl, GL10.GL_BLEND);
+            state.blendFunc(gl, GL10.GL_SRC_ALPHA, GL10.GL_ONE_MINUS_SRC_ALPHA);
             gl.glLineWidth(1.0f);
             gl.glColor4f(0.5f, 0.5f, 1.0f, 1.0f);
-            gl.glVertexPointer(3, GL10.GL_FLOAT, 0, mBufVertices);
+            setVertexPointers(gl, useVbo);
             gl.glDrawArrays(GL10.GL_LINE_STRIP, 0, mVerticesCountFront);
-            gl.glDisable(GL10.GL_BLEND);
         }
 
         if (DRAW_CURL_POSITION) {
-            gl.glEnable(GL10.GL_BLEND);
-            gl.glBlendFunc(GL10.GL_SRC_ALPHA, GL10.GL_ONE_MINUS_SRC_ALPHA);
+            state.disableClientState(gl, GL10.GL_TEXTURE_COORD_ARRAY);
+            state.disableClientState(gl, GL10.GL_COLOR_ARRAY);
+            state.disable(gl, GL10.GL_TEXTURE_2D);
+            state.enable(gl, GL10.GL_BLEND);
+            state.blendFunc(gl, GL10.GL_SRC_ALPHA, GL10.GL_ONE_MINUS_SRC_ALPHA);
             gl.glLineWidth(1.0f);
             gl.glColor4f(1.0f, 0.5f, 0.5f, 1.0f);
-            gl.glVertexPointer(2, GL10.GL_FLOAT, 0, mBufCurlPositionLines);
+            state.vertexPointer(gl, 2, GL10.GL_FLOAT, 0, mBufCurlPositionLines);
+            // Lines are given as floats.
+            gl.glPushMatrix();
+            gl.glScalef(POSITION_SCALE, POSITION_SCALE, POSITION_SCALE);
             gl.glDrawArrays(GL10.GL_LINES, 0, mCurlPositionLinesCount * 2);
-            gl.glDisable(GL10.GL_BLEND);
+            gl.glPopMatrix();
+        }
+
+        if (DRAW_SHADOW) {
+            drawShadow(gl, useVbo, mDropShadowCount, mSelfShadowCount);
+        }
+        gl.glPopMatrix();
+    }
+
+    /**
+     * Renders page curl using given shader. Deformation is done in vertex
+     * shader based on values given to latest curl() call.
+     */
+    public void onDrawFrame(GL10 gl, CurlShader shader, float[] mvpMatrix) {
+        mDrawCallCount = 0;
+        mVertexCount = 0;
+        updateTextures(gl);
+
+        if (mCurled) {
+            shader.setCurl(mvpMatrix, mRect, mCurlPosX, mCurlPosY, mCurlDirX,
+                    mCurlDirY, mCurlRadius);
+        } else {
+            // Curl line left from rectangle leaves it untouched.
+            shader.setCurl(mvpMatrix, mRect, Math.min(mRect.left, mRect.right) - 1f,
+                    mRect.top, 1f, 0f, 0f);
+        }
+
+        // Meshes with both textures in atlas are drawn by shader batch.
+        if (DRAW_TEXTURE && DRAW_SHADOW && shader.isBatching() && mTextureRegistry != null
+                && mTextureRegistry.isInAtlas(mTextures[0])
+                && mTextureRegistry.isInAtlas(mTextures[1])) {
+            int front = mFlipTexture ? 1 : 0;
+            RectF frontRect = mFlipTexture ? mTextureRectBack : mTextureRectFront;
+            RectF backRect = mFlipTexture ? mTextureRectFront : mTextureRectBack;
+            mapTextureRect(mTextures[front], frontRect, mTextureRectShader);
+            mapTextureRect(mTextures[1 - front], backRect, mTextureRectShaderBack);
+            shader.addToBatch(mTextures[front].mTextureId, mTextureRectShader,
+                    mTextureRectShaderBack, mTexMatrix);
+            mVertexCount = (shader.getShadowVertexCount() + shader.getPageVertexCount()) * 2;
+            return;
+        }
+
+        if (DRAW_SHADOW) {
+            shader.drawShadow(false);
+            ++mDrawCallCount;
+            mVertexCount += shader.getShadowVertexCount();
+        }
+
+        if (DRAW_TEXTURE) {
+            // Front facing part uses back texture if in flip texture mode and
+            // vice versa.
+            int front = mFlipTexture ? 1 : 0;
+            RectF frontRect = mFlipTexture ? mTextureRectBack : mTextureRectFront;
+            RectF backRect = mFlipTexture ? mTextureRectFront : mTextureRectBack;
+            drawPage(shader, mTextures[front], frontRect, false);
+            drawPage(shader, mTextures[1 - front], backRect, true);
+            mDrawCallCount += 2;
+            mVertexCount += shader.getPageVertexCount() * 2;
+        }
+
+        if (DRAW_SHADOW) {
+            shader.drawShadow(true);
+            ++mDrawCallCount;
+            mVertexCount += shader.getShadowVertexCount();
+        }
+    }
+
+    /**
+     * Renders page curl as part of given batch. Vertices are appended to
+     * batch vertex stream in the same order they are drawn in
+     * onDrawFrame(GL10). If textures didn't fit into texture registry atlas,
+     * batch is flushed and mesh is drawn on its own instead.
+     */
+    public void onDrawFrame(GL10 gl, CurlBatch batch) {
+        updateTextures(gl);
+        if (!DRAW_TEXTURE || !batch.canDraw(mTextures[0], mTextures[1])) {
+            batch.flush(gl);
+            onDrawFrame(gl);
+            batch.addDrawCalls(mDrawCallCount);
+            return;
+        }
+
+        mDrawCallCount = 0;
+        mVertexCount = getMeshVertexCount();
+        if (DRAW_SHADOW) {
+            batch.addShadowVertices(mBufShadowVertices, 0, mDropShadowCount,
+                    mGeometryRevision);
+        }
+        // Front facing part uses back texture if in flip texture mode and
+        // vice versa.
+        int front = mFlipTexture ? 1 : 0;
+        batch.addPageVertices(mBufVertices, 0, mVerticesCountFront, mGeometryRevision,
+                mTextures[front]);
+        int backStartIdx = Math.max(0, mVerticesCountFront - 2);
+        int backCount = mVerticesCountFront + mVerticesCountBack - backStartIdx;
+        batch.addPageVertices(mBufVertices, backStartIdx, backCount, mGeometryRevision,
+                mTextures[1 - front]);
+        if (DRAW_SHADOW) {
+            batch.addShadowVertices(mBufShadowVertices, mDropShadowCount, mSelfShadowCount,
+                    mGeometryRevision);
         }
+    }
+
+    /**
+     * Returns number of draw calls issued by latest onDrawFrame call. Meshes
+     * drawn through CurlBatch issue none of their own.
+     */
+    public int getDrawCallCount() {
+        return mDrawCallCount;
+    }
 
+    /**
+     * Returns number of vertices drawn by latest onDrawFrame call, including
+     * ones appended to CurlBatch.
+     */
+    public int getVertexCount() {
+        return mVertexCount;
+    }
+
+    /**
+     * Returns number of page and shadow vertices drawn for current curl on
+     * OpenGL ES 1.x.
+     */
+    private int getMeshVertexCount() {
+        int count = 0;
+        if (DRAW_TEXTURE) {
+            int backStartIdx = Math.max(0, mVerticesCountFront - 2);
+            count += mVerticesCountFront * 2 + mVerticesCountBack - backStartIdx;
+        }
         if (DRAW_SHADOW) {
-            gl.glEnable(GL10.GL_BLEND);
-            gl.glBlendFunc(GL10.GL_SRC_ALPHA, GL10.GL_ONE_MINUS_SRC_ALPHA);
-            gl.glEnableClientState(GL10.GL_COLOR_ARRAY);
-            gl.glColorPointer(4, GL10.GL_FLOAT, 0, mBufShadowColors);
-            gl.glVertexPointer(3, GL10.GL_FLOAT, 0, mBufShadowVertices);
-            gl.glDrawArrays(GL10.GL_TRIANGLE_STRIP, mDropShadowCount,
-                    mSelfShadowCount);
-            gl.glDisableClientState(GL10.GL_COLOR_ARRAY);
-            gl.glDisable(GL10.GL_BLEND);
+            count += mDropShadowCount + mSelfShadowCount;
+        }
+        return count;
+    }
+
+    /**
+     * Draws front or back facing part of page using given shader. Texture
+     * rect is mapped into the area texture occupies.
+     */
+    private void drawPage(CurlShader shader, CurlTextureRegistry.Texture texture,
+                          RectF textureRect, boolean backFacing) {
+        if (texture == null) {
+            shader.drawPage(0, 0, textureRect, mTexMatrix, backFacing);
+            return;
+        }
+        mapTextureRect(texture, textureRect, mTextureRectShader);
+        shader.drawPage(texture.mTextureId, texture.mAlphaId, mTextureRectShader,
+                mTexMatrix, backFacing);
+    }
+
+    /**
+     * Maps texture rect into the area given texture occupies, e.g its atlas
+     * cell, and sets result into out.
+     */
+    private static void mapTextureRect(CurlTextureRegistry.Texture texture,
+                                       RectF textureRect, RectF out) {
+        float offsetS = texture.mOffsetS / TEXCOORD_SCALE;
+        float offsetT = texture.mOffsetT / TEXCOORD_SCALE;
+        out.set(offsetS + textureRect.left * texture.mScaleS,
+                offsetT + textureRect.top * texture.mScaleT,
+                offsetS + textureRect.right * texture.mScaleS,
+                offsetT + textureRect.bottom * texture.mScaleT);
+    }
+
+    /**
+     * Converts color channel value from [0, 1] range into unsigned byte.
+     */
+    private static byte toColorByte(float value) {
+        return (byte) (value * 255f + .5f);
+    }
+
+    /**
+     * Puts position as shorts scaled by POSITION_SCALE followed by padding.
+     */
+    private static void putPosition(ByteBuffer buf, float x, float y, float z) {
+        buf.putShort(toPositionShort(x));
+        buf.putShort(toPositionShort(y));
+        buf.putShort(toPositionShort(z));
+        buf.putShort((short) 0);
+    }
+
+    private static short toPositionShort(float value) {
+        int scaled = Math.round(value * POSITION_SCALE);
+        return (short) Math.max(Short.MIN_VALUE, Math.min(Short.MAX_VALUE, scaled));
+    }
+
+    /**
+     * Returns true if vertex buffer objects can be used with given GL.
+     * OpenGL ES 1.0 implementations may implement GL11 interface without
+     * supporting buffer objects.
+     */
+    static boolean isVboSupported(GL10 gl) {
+        if (!(gl instanceof GL11)) {
+            return false;
+        }
+        String version = gl.glGetString(GL10.GL_VERSION);
+        return version != null && !version.startsWith("OpenGL ES-CM 1.0")
+                && !version.startsWith("OpenGL ES-CL 1.0");
+    }
+
+    /**
+     * Sets vertex, color and texture coordinate pointers for page vertices,
+     * either into vertex buffer object or into client side buffer.
+     */
+    private void setVertexPointers(GL10 gl, boolean useVbo) {
+        int stride = VERTEX_SIZE;
+        CurlGlState state = mGlState;
+        if (useVbo) {
+            GL11 gl11 = (GL11) gl;
+            state.bindArrayBuffer(gl11, mVboIds[0]);
+            state.vertexPointer(gl11, 3, GL10.GL_SHORT, stride, POSITION_OFFSET);
+            state.colorPointer(gl11, 4, GL10.GL_UNSIGNED_BYTE, stride, COLOR_OFFSET);
+            if (DRAW_TEXTURE) {
+                state.texCoordPointer(gl11, 2, GL10.GL_SHORT, stride, TEXCOORD_OFFSET);
+            }
+        } else {
+            mBufVertices.position(POSITION_OFFSET);
+            state.vertexPointer(gl, 3, GL10.GL_SHORT, stride, mBufVertices);
+            mBufVertices.position(COLOR_OFFSET);
+            state.colorPointer(gl, 4, GL10.GL_UNSIGNED_BYTE, stride, mBufVertices);
+            if (DRAW_TEXTURE) {
+                mBufVertices.position(TEXCOORD_OFFSET);
+                state.texCoordPointer(gl, 2, GL10.GL_SHORT, stride, mBufVertices);
+            }
+            mBufVertices.position(0);
+        }
+    }
+
+    /**
+     * Sets vertex and texture coordinate pointers for shadow vertices, either
+     * into vertex buffer object or into client side buffer.
+     */
+    private void setShadowVertexPointers(GL10 gl, boolean useVbo) {
+        int stride = SHADOW_VERTEX_SIZE;
+        CurlGlState state = mGlState;
+        if (useVbo) {
+            GL11 gl11 = (GL11) gl;
+            state.bindArrayBuffer(gl11, mVboIds[0]);
+            state.vertexPointer(gl11, 3, GL10.GL_SHORT, stride,
+                    mVboShadowOffset + POSITION_OFFSET);
+            state.texCoordPointer(gl11, 2, GL10.GL_SHORT, stride,
+                    mVboShadowOffset + SHADOW_TEXCOORD_OFFSET);
+        } else {
+            mBufShadowVertices.position(POSITION_OFFSET);
+            state.vertexPointer(gl, 3, GL10.GL_SHORT, stride, mBufShadowVertices);
+            mBufShadowVertices.position(SHADOW_TEXCOORD_OFFSET);
+            state.texCoordPointer(gl, 2, GL10.GL_SHORT, stride, mBufShadowVertices);
+            mBufShadowVertices.position(0);
+        }
+    }
+
+    /**
+     * Draws shadow strip using shadow gradient texture.
+     */
+    private void drawShadow(GL10 gl, boolean useVbo, int first, int count) {
+        CurlGlState state = mGlState;
+        state.enable(gl, GL10.GL_TEXTURE_2D);
+        state.bindTexture(gl, mShadowTextureIds[0]);
+        state.enable(gl, GL10.GL_BLEND);
+        state.blendFunc(gl, GL10.GL_SRC_ALPHA, GL10.GL_ONE_MINUS_SRC_ALPHA);
+        state.enableClientState(gl, GL10.GL_TEXTURE_COORD_ARRAY);
+        // Shadow vertices have no colors.
+        state.disableClientState(gl, GL10.GL_COLOR_ARRAY);
+        // Color comes from gradient texture only.
+        gl.glColor4f(1f, 1f, 1f, 1f);
+        // Map short texture coordinates into gradient texel centers.
+        gl.glMatrixMode(GL10.GL_TEXTURE);
+        gl.glLoadIdentity();
+        gl.glTranslatef(.5f / SHADOW_GRADIENT_SIZE, 0f, 0f);
+        gl.glScalef((SHADOW_GRADIENT_SIZE - 1f) / SHADOW_GRADIENT_SIZE
+                / TEXCOORD_SCALE, 1f, 1f);
+        gl.glMatrixMode(GL10.GL_MODELVIEW);
+        setShadowVertexPointers(gl, useVbo);
+        gl.glDrawArrays(GL10.GL_TRIANGLE_STRIP, first, count);
+        ++mDrawCallCount;
+        gl.glMatrixMode(GL10.GL_TEXTURE);
+        gl.glLoadIdentity();
+        gl.glMatrixMode(GL10.GL_MODELVIEW);
+    }
+
+    /**
+     * Creates shadow gradient texture data, SHADOW_GRADIENT_SIZE x 1 RGBA
+     * texels going from outer to inner shadow color.
+     */
+    private static ByteBuffer createShadowGradient() {
+        ByteBuffer buf = ByteBuffer.allocateDirect(SHADOW_GRADIENT_SIZE * 4);
+        buf.order(ByteOrder.nativeOrder());
+        for (int i = 0; i < SHADOW_GRADIENT_SIZE; ++i) {
+            float t = (float) i / (SHADOW_GRADIENT_SIZE - 1);
+            for (int j = 0; j < 4; ++j) {
+                buf.put(toColorByte(SHADOW_OUTER_COLOR[j]
+                        + (SHADOW_INNER_COLOR[j] - SHADOW_OUTER_COLOR[j]) * t));
+            }
         }
+        buf.position(0);
+        return buf;
+    }
 
-        gl.glDisableClientState(GL10.GL_VERTEX_ARRAY);
+    /**
+     * Re-specifies vertex buffer object contents from vertex buffers. Previous
+     * storage is orphaned so that the driver doesn't have to wait for pending
+     * draws still using it.
+     */
+    private void updateVbo(GL11 gl) {
+        mGlState.bindArrayBuffer(gl, mVboIds[0]);
+        gl.glBufferData(GL11.GL_ARRAY_BUFFER, mVboSize, null, GL11.GL_DYNAMIC_DRAW);
+        mBufVertices.position(0);
+        gl.glBufferSubData(GL11.GL_ARRAY_BUFFER, 0,
+                (mVerticesCountFront + mVerticesCountBack) * VERTEX_SIZE,
+                mBufVertices);
+        if (DRAW_SHADOW) {
+            mBufShadowVertices.position(0);
+            gl.glBufferSubData(GL11.GL_ARRAY_BUFFER, mVboShadowOffset,
+                    (mDropShadowCount + mSelfShadowCount) * SHADOW_VERTEX_SIZE,
+                    mBufShadowVertices);
+        }
+        mGeometryChanged = false;
     }
 
     /**
      * Resets mesh to 'initial' state. Meaning this mesh will draw a plain
      * textured rectangle after call to this method.
      */
-    public synchronized void reset() {
+    public void reset() {
+        // Rectangle is written over the buffers of current cache entry.
+        mCurlCacheCurrent.mValid = false;
         mBufVertices.position(0);
-        mBufColors.position(0);
-        if (DRAW_TEXTURE) {
-            mBufTexCoords.position(0);
-        }
+        int tmp = mVertices.obtain();
         for (int i = 0; i < 4; ++i) {
-            Vertex tmp = mArrTempVertices.get(0);
-            tmp.set(mRectangle[i]);
+            mVertices.set(tmp, RECTANGLE + i);
 
             if (mFlipTexture) {
-                tmp.mTexX *= mTextureRectBack.right;
-                tmp.mTexY *= mTextureRectBack.bottom;
+                mapTexCoords(tmp, mTextureRectBack);
             } else {
-                tmp.mTexX *= mTextureRectFront.right;
-                tmp.mTexY *= mTextureRectFront.bottom;
+                mapTexCoords(tmp, mTextureRectFront);
             }
 
             addVertex(tmp);
         }
+        mVertices.recycle(tmp);
         mVerticesCountFront = 4;
         mVerticesCountBack = 0;
         mBufVertices.position(0);
-        mBufColors.position(0);
-        if (DRAW_TEXTURE) {
-            mBufTexCoords.position(0);
-        }
 
         mDropShadowCount = mSelfShadowCount = 0;
+        mGeometryChanged = true;
+        ++mGeometryRevision;
+        mCurled = false;
     }
 
     /**
-     * Resets allocated texture id forcing creation of new one. After calling
-     * this method you most likely want to set bitmap too as it's lost. This
-     * method should be called only once e.g GL context is re-created as this
-     * method does not release previous texture id, only makes sure new one is
-     * requested on next render.
+     * Releases page textures to texture registry forcing new ones to be
+     * requested. After calling this method you most likely want to set bitmap
+     * too as it's lost. Shadow texture id and vertex buffer object are not
+     * released, only requested again on next render, so this method should
+     * be called e.g once GL context is re-created.
      */
-    public synchronized void resetTexture() {
-        mTextureIds = null;
+    public void resetTexture() {
+        if (mTextureRegistry != null) {
+            mTextureRegistry.release(mTextures[0]);
+            mTextureRegistry.release(mTextures[1]);
+        }
+        mTextures[0] = mTextures[1] = null;
+        mShadowTextureIds = null;
+        mVboIds = null;
+    }
+
+    /**
+     * If true, curl() only stores curl parameters and deformation is done in
+     * vertex shader while rendering with CurlShader.
+     */
+    public void setDeformOnGpu(boolean deformOnGpu) {
+        mDeformOnGpu = deformOnGpu;
+    }
+
+    /**
+     * Sets OpenGL ES 1.x state tracker meshes drawn into the same context
+     * share. Called by CurlRenderer.
+     */
+    public void setGlState(CurlGlState glState) {
+        mGlState = glState;
+    }
+
+    /**
+     * Sets metrics curl and texture upload times are added into, null if
+     * none. Called by CurlRenderer.
+     */
+    public void setFrameMetrics(CurlFrameMetrics frameMetrics) {
+        mFrameMetrics = frameMetrics;
+    }
+
+    /**
+     * Sets registry page textures are shared through. Textures acquired from
+     * previous registry are released and page needs to be set again.
+     */
+    public void setTextureRegistry(CurlTextureRegistry textureRegistry) {
+        if (textureRegistry == mTextureRegistry) {
+            return;
+        }
+        resetTexture();
+        mTextureRegistry = textureRegistry;
+    }
+
+    /**
+     * Sets maximum distance in pixels allowed between curl and its polygonal
+     * approximation. Zero or less always uses maximum split count.
+     */
+    public void setMaxChordError(float pixels) {
+        mMaxChordError = pixels;
+        clearCurlCache();
+    }
+
+    /**
+     * Sets quantization step in pixels for reusing previously generated
+     * curls. Zero reuses curls only for exactly the same parameters.
+     */
+    public void setCurlCacheStep(float pixels) {
+        mCurlCacheStep = pixels;
+        clearCurlCache();
+    }
+
+    /**
+     * Returns number of curl() calls served from curl cache.
+     */
+    public int getCurlCacheHits() {
+        return mCurlCacheHits;
+    }
+
+    /**
+     * Returns number of curl() calls which needed generating a new curl.
+     */
+    public int getCurlCacheMisses() {
+        return mCurlCacheMisses;
+    }
+
+    /**
+     * Sets how many pixels one unit of mesh coordinates covers on screen.
+     * Used for choosing curl split count, zero or less always uses maximum
+     * split count.
+     */
+    public void setPixelsPerUnit(float pixelsPerUnit) {
+        mPixelsPerUnit = pixelsPerUnit;
+        clearCurlCache();
     }
 
     /**
      * If true, flips texture sideways.
      */
-    public synchronized void setFlipTexture(boolean flipTexture) {
+    public void setFlipTexture(boolean flipTexture) {
         mFlipTexture = flipTexture;
-        if (flipTexture) {
-            setTexCoords(0f, 0f, 1f, 1f);
-        } else {
-            setTexCoords(0f, 1f, 1f, 0f);
+        updateTexMatrix();
+    }
+
+    /**
+     * Rotates textures clockwise by given number of quarter turns, which
+     * lets the same textures be shown in any orientation. Bitmaps should be
+     * given as they are shown without rotation, and landscape pages are
+     * covered by portrait bitmaps rotated by one or three quarter turns.
+     */
+    public void setTextureRotation(int quarterTurns) {
+        quarterTurns = ((quarterTurns % 4) + 4) % 4;
+        if (quarterTurns != mTextureRotation) {
+            mTextureRotation = quarterTurns;
+            clearCurlCache();
+            updateTexMatrix();
         }
     }
 
@@ -810,159 +1571,224 @@ public class CurlMesh {
      * Update mesh bounds.
      */
     public void setRect(RectF r) {
-        mRectangle[0].mPosX = r.left;
-        mRectangle[0].mPosY = r.top;
-        mRectangle[1].mPosX = r.left;
-        mRectangle[1].mPosY = r.bottom;
-        mRectangle[2].mPosX = r.right;
-        mRectangle[2].mPosY = r.top;
-        mRectangle[3].mPosX = r.right;
-        mRectangle[3].mPosY = r.bottom;
+        mRect.set(r);
+        clearCurlCache();
+        float[] posX = mVertices.mPosX;
+        float[] posY = mVertices.mPosY;
+        posX[RECTANGLE] = r.left;
+        posY[RECTANGLE] = r.top;
+        posX[RECTANGLE + 1] = r.left;
+        posY[RECTANGLE + 1] = r.bottom;
+        posX[RECTANGLE + 2] = r.right;
+        posY[RECTANGLE + 2] = r.top;
+        posX[RECTANGLE + 3] = r.right;
+        posY[RECTANGLE + 3] = r.bottom;
     }
 
     /**
-     * Sets texture coordinates to mRectangle vertices.
+     * Updates texture matrix for current flipping and rotation, and sets
+     * rectangle vertex texture coordinates with it. Curl vertices get theirs
+     * by interpolating between rectangle corners.
      */
-    private synchronized void setTexCoords(float left, float top, float right,
-                                           float bottom) {
-        mRectangle[0].mTexX = left;
-        mRectangle[0].mTexY = top;
-        mRectangle[1].mTexX = left;
-        mRectangle[1].mTexY = bottom;
-        mRectangle[2].mTexX = right;
-        mRectangle[2].mTexY = top;
-        mRectangle[3].mTexX = right;
-        mRectangle[3].mTexY = bottom;
+    private void updateTexMatrix() {
+        // Grid (x, y) maps into (a * x + c * y + tx, b * x + d * y + ty).
+        float a = 1f, b = 0f, c = 0f, d = 1f, tx = 0f, ty = 0f;
+        if (!mFlipTexture) {
+            d = -1f;
+            ty = 1f;
+        }
+        // Texture rotated clockwise is sampled at (s, t) = (t', 1 - s').
+        for (int i = 0; i < mTextureRotation; ++i) {
+            float a0 = a, c0 = c, tx0 = tx;
+            a = b;
+            c = d;
+            tx = ty;
+            b = -a0;
+            d = -c0;
+            ty = 1f - tx0;
+        }
+        float[] m = mTexMatrix;
+        m[0] = a;
+        m[1] = b;
+        m[2] = 0f;
+        m[3] = c;
+        m[4] = d;
+        m[5] = 0f;
+        m[6] = tx;
+        m[7] = ty;
+        m[8] = 1f;
+
+        float[] texX = mVertices.mTexX;
+        float[] texY = mVertices.mTexY;
+        for (int i = 0; i < 4; ++i) {
+            // Corner order is top-left, bottom-left, top-right, bottom-right.
+            float x = i < 2 ? 0f : 1f;
+            float y = (i & 1) == 0 ? 0f : 1f;
+            texX[RECTANGLE + i] = a * x + c * y + tx;
+            texY[RECTANGLE + i] = b * x + d * y + ty;
+        }
     }
 
     /**
-     * Simple fixed size array implementation.
+     * Generated curl buffers and vertex counts together with quantized curl
+     * parameters they were generated for.
      */
-    private class Array<T> {
-        private Object[] mArray;
-        private int mCapacity;
-        private int mSize;
-
-        public Array(int capacity) {
-            mCapacity = capacity;
-            mArray = new Object[capacity];
-        }
-
-        public void add(int index, T item) {
-            if (index < 0 || index > mSize || mSize >= mCapacity) {
-                throw new IndexOutOfBoundsException();
-            }
-            for (int i = mSize; i > index; --i) {
-                mArray[i] = mArray[i - 1];
-            }
-            mArray[index] = item;
-            ++mSize;
+    private static class CurlCacheEntry {
+        public final ByteBuffer mBufShadowVertices;
+        public final ByteBuffer mBufVertices;
+        public int mDropShadowCount;
+        public boolean mKeyFlipTexture;
+        public int mKeyDirX, mKeyDirY;
+        public int mKeyPosX, mKeyPosY;
+        public int mKeyRadius;
+        public long mLastUsed;
+        public int mSelfShadowCount;
+        public boolean mValid;
+        public int mVerticesCountBack;
+        public int mVerticesCountFront;
+
+        public CurlCacheEntry(int verticesSize, int shadowVerticesSize) {
+            mBufVertices = ByteBuffer.allocateDirect(verticesSize);
+            mBufVertices.order(ByteOrder.nativeOrder());
+            mBufShadowVertices = ByteBuffer.allocateDirect(shadowVerticesSize);
+            mBufShadowVertices.order(ByteOrder.nativeOrder());
         }
+    }
 
-        public void add(T item) {
-            if (mSize >= mCapacity) {
-                throw new IndexOutOfBoundsException();
-            }
-            mArray[mSize++] = item;
+    /**
+     * Holder for shadow vertex information. Vertices are stored in the order
+     * they were found and getStripIndex maps them into triangle strip order.
+     */
+    private static class ShadowVertices {
+        public final float[] mPenumbraColor;
+        public final float[] mPenumbraX;
+        public final float[] mPenumbraY;
+        public final float[] mPosX;
+        public final float[] mPosY;
+        public final float[] mPosZ;
+        public int mCount;
+
+        public ShadowVertices(int capacity) {
+            mPenumbraColor = new float[capacity];
+            mPenumbraX = new float[capacity];
+            mPenumbraY = new float[capacity];
+            mPosX = new float[capacity];
+            mPosY = new float[capacity];
+            mPosZ = new float[capacity];
         }
 
-        public void addAll(Array<T> array) {
-            if (mSize + array.size() > mCapacity) {
+        public void add(float posX, float posY, float posZ,
+                        float penumbraX, float penumbraY, float penumbraColor) {
+            if (mCount >= mPosX.length) {
                 throw new IndexOutOfBoundsException();
             }
-            for (int i = 0; i < array.size(); ++i) {
-                mArray[mSize++] = array.get(i);
-            }
+            mPosX[mCount] = posX;
+            mPosY[mCount] = posY;
+            mPosZ[mCount] = posZ;
+            mPenumbraX[mCount] = penumbraX;
+            mPenumbraY[mCount] = penumbraY;
+            mPenumbraColor[mCount] = penumbraColor;
+            ++mCount;
         }
 
         public void clear() {
-            mSize = 0;
+            mCount = 0;
         }
 
-        @SuppressWarnings("unchecked")
-        public T get(int index) {
-            if (index < 0 || index >= mSize) {
-                throw new IndexOutOfBoundsException();
+        /**
+         * Returns index of vertex at given triangle strip position. Vertices
+         * with even index run from the start of the strip and odd ones
+         * backwards from the end of it.
+         */
+        public int getStripIndex(int position) {
+            int half = (mCount + 1) / 2;
+            if (position < half) {
+                return position * 2;
             }
-            return (T) mArray[index];
+            return (mCount - 1 - position) * 2 + 1;
         }
+    }
 
-        @SuppressWarnings("unchecked")
-        public T remove(int index) {
-            if (index < 0 || index >= mSize) {
-                throw new IndexOutOfBoundsException();
+    /**
+     * Holder for vertex information. Attributes are stored in primitive
+     * columns indexed by vertex and unused indices are kept in a free list.
+     */
+    private static class Vertices {
+        public final float[] mColorFactor;
+        public final float[] mPenumbraX;
+        public final float[] mPenumbraY;
+        public final float[] mPosX;
+        public final float[] mPosY;
+        public final float[] mPosZ;
+        public final float[] mTexX;
+        public final float[] mTexY;
+
+        private final int[] mFree;
+        private int mFreeCount;
+
+        /**
+         * Creates vertex columns for capacity vertices. First reserved
+         * indices are never handed out by obtain.
+         */
+        public Vertices(int capacity, int reserved) {
+            mColorFactor = new float[capacity];
+            mPenumbraX = new float[capacity];
+            mPenumbraY = new float[capacity];
+            mPosX = new float[capacity];
+            mPosY = new float[capacity];
+            mPosZ = new float[capacity];
+            mTexX = new float[capacity];
+            mTexY = new float[capacity];
+            for (int i = 0; i < capacity; ++i) {
+                mColorFactor[i] = 1.0f;
             }
-            T item = (T) mArray[index];
-            for (int i = index; i < mSize - 1; ++i) {
-                mArray[i] = mArray[i + 1];
+
+            mFree = new int[capacity];
+            for (int i = capacity - 1; i >= reserved; --i) {
+                mFree[mFreeCount++] = i;
             }
-            --mSize;
-            return item;
         }
 
-        public int size() {
-            return mSize;
+        public int obtain() {
+            if (mFreeCount == 0) {
+                throw new IndexOutOfBoundsException();
+            }
+            return mFree[--mFreeCount];
         }
 
-    }
-
-    /**
-     * Holder for shadow vertex information.
-     */
-    private class ShadowVertex {
-        public double mPenumbraColor;
-        public double mPenumbraX;
-        public double mPenumbraY;
-        public double mPosX;
-        public double mPosY;
-        public double mPosZ;
-    }
-
-    /**
-     * Holder for vertex information.
-     */
-    private class Vertex {
-        public float mColorFactor;
-        public double mPenumbraX;
-        public double mPenumbraY;
-        public double mPosX;
-        public double mPosY;
-        public double mPosZ;
-        public double mTexX;
-        public double mTexY;
-
-        public Vertex() {
-            mPosX = mPosY = mPosZ = mTexX = mTexY = 0;
-            mColorFactor = 1.0f;
+        public void recycle(int index) {
+            mFree[mFreeCount++] = index;
         }
 
-        public void rotateZ(double theta) {
-            double cos = Math.cos(theta);
-            double sin = Math.sin(theta);
-            double x = mPosX * cos + mPosY * sin;
-            double y = mPosX * -sin + mPosY * cos;
-            mPosX = x;
-            mPosY = y;
-            double px = mPenumbraX * cos + mPenumbraY * sin;
-            double py = mPenumbraX * -sin + mPenumbraY * cos;
-            mPenumbraX = px;
-            mPenumbraY = py;
+        /**
+         * Rotates vertex around z -axis by an angle given as its cosine and
+         * sine.
+         */
+        public void rotateZ(int index, float cos, float sin) {
+            float x = mPosX[index] * cos + mPosY[index] * sin;
+            float y = mPosX[index] * -sin + mPosY[index] * cos;
+            mPosX[index] = x;
+            mPosY[index] = y;
+            float px = mPenumbraX[index] * cos + mPenumbraY[index] * sin;
+            float py = mPenumbraX[index] * -sin + mPenumbraY[index] * cos;
+            mPenumbraX[index] = px;
+            mPenumbraY[index] = py;
         }
 
-        public void set(Vertex vertex) {
-            mPosX = vertex.mPosX;
-            mPosY = vertex.mPosY;
-            mPosZ = vertex.mPosZ;
-            mTexX = vertex.mTexX;
-            mTexY = vertex.mTexY;
-            mPenumbraX = vertex.mPenumbraX;
-            mPenumbraY = vertex.mPenumbraY;
-            mColorFactor = vertex.mColorFactor;
+        public void set(int index, int src) {
+            mPosX[index] = mPosX[src];
+            mPosY[index] = mPosY[src];
+            mPosZ[index] = mPosZ[src];
+            mTexX[index] = mTexX[src];
+            mTexY[index] = mTexY[src];
+            mPenumbraX[index] = mPenumbraX[src];
+            mPenumbraY[index] = mPenumbraY[src];
+            mColorFactor[index] = mColorFactor[src];
         }
 
-        public void translate(double dx, double dy) {
-            mPosX += dx;
-            mPosY += dy;
+        public void translate(int index, float dx, float dy) {
+            mPosX[index] += dx;
+            mPosY[index] += dy;
         }
     }
 }
@@ -30,10 +30,28 @@ public class CurlPage {
     public static final int SIDE_BACK = 2;
     public static final int SIDE_FRONT = 1;
 
+    // True once GL is known to support non power of two textures with
+    // CLAMP_TO_EDGE wrapping, see setNpotSupported.
+    private static volatile boolean sNpotSupported;
+
     private Bitmap mTextureBack;
     private Bitmap mTextureFront;
+    // Compressed textures, used instead of bitmaps if set.
+    private CurlEtc1Texture mEtc1Back;
+    private CurlEtc1Texture mEtc1Front;
+    // Uncompressed textures ready for upload, used instead of bitmaps if set.
+    private CurlRawTexture mRawBack;
+    private CurlRawTexture mRawFront;
     private RectF mRectBack;
     private RectF mRectFront;
+    // Sides pointing at a region of shared atlas bitmap. Shared bitmaps are
+    // owned by the caller and never recycled here.
+    private boolean mSharedBack;
+    private boolean mSharedFront;
+    // Keys textures are registered with into CurlTextureRegistry, null for
+    // textures which are not shared.
+    private Object mKeyBack;
+    private Object mKeyFront;
     private boolean mTexturesChanged;
 
     /**
@@ -48,7 +66,7 @@ public class CurlPage {
     /**
      * Calculates the next highest power of two for a given integer.
      */
-    private int getNextHighestPO2(int n) {
+    private static int getNextHighestPO2(int n) {
         n -= 1;
         n = n | (n >> 1);
         n = n | (n >> 2);
@@ -59,15 +77,40 @@ public class CurlPage {
         return n + 1;
     }
 
+    /**
+     * Sets whether non power of two textures can be used, in which case
+     * bitmaps are used as they are instead of being padded. Called by
+     * CurlRenderer once GL capabilities are known.
+     */
+    public static void setNpotSupported(boolean npotSupported) {
+        sNpotSupported = npotSupported;
+    }
+
+    /**
+     * Returns texture storage size for given bitmap width or height, which
+     * is padded to power of two unless non power of two textures are
+     * supported.
+     */
+    static int getStorageSize(int size) {
+        return sNpotSupported ? size : getNextHighestPO2(size);
+    }
+
     /**
      * Generates nearest power of two sized Bitmap for give Bitmap. Returns this
      * new Bitmap using default return statement + original texture coordinates
-     * are stored into RectF.
+     * are stored into RectF. Given bitmap is returned as it is if non power of
+     * two textures are supported or it's power of two sized already, and
+     * returned into BitmapPool otherwise.
      */
     private Bitmap getTexture(Bitmap bitmap, RectF textureRect) {
         // Bitmap original size.
         int w = bitmap.getWidth();
         int h = bitmap.getHeight();
+        if (sNpotSupported || (w == getNextHighestPO2(w) && h == getNextHighestPO2(h))) {
+            textureRect.set(0f, 0f, 1f, 1f);
+            return bitmap;
+        }
+
         // Bitmap size expanded to next power of two. This is done due to
         // the requirement on many devices, texture width and height should
         // be power of two.
@@ -76,9 +119,11 @@ public class CurlPage {
 
         // Is there another way to create a bigger Bitmap and copy
         // original Bitmap to it more efficiently? Immutable bitmap anyone?
-        Bitmap bitmapTex = Bitmap.createBitmap(newW, newH, bitmap.getConfig());
+        BitmapPool pool = BitmapPool.getInstance();
+        Bitmap bitmapTex = pool.get(newW, newH, bitmap.getConfig());
         Canvas c = new Canvas(bitmapTex);
         c.drawBitmap(bitmap, 0, 0, null);
+        pool.put(bitmap);
 
         // Calculate final texture coordinates.
         float texX = (float) w / newW;
@@ -107,6 +152,32 @@ public class CurlPage {
         }
     }
 
+    /**
+     * Getter for compressed textures, null if side has a bitmap instead. RectF
+     * given as parameter is filled with texture coordinates of page area.
+     */
+    public CurlEtc1Texture getEtc1Texture(RectF textureRect, int side) {
+        CurlEtc1Texture texture = side == SIDE_FRONT ? mEtc1Front : mEtc1Back;
+        if (texture != null) {
+            texture.getTextureRect(textureRect);
+        }
+        return texture;
+    }
+
+    /**
+     * Getter for uncompressed textures ready for upload, null if side has a
+     * bitmap instead. RectF given as parameter is filled with texture
+     * coordinates of page area within padded texture storage.
+     */
+    public CurlRawTexture getRawTexture(RectF textureRect, int side) {
+        CurlRawTexture texture = side == SIDE_FRONT ? mRawFront : mRawBack;
+        if (texture != null) {
+            textureRect.set(0f, 0f, (float) texture.mWidth / getStorageSize(texture.mWidth),
+                    (float) texture.mHeight / getStorageSize(texture.mHeight));
+        }
+        return texture;
+    }
+
     /**
      * Returns true if textures have changed.
      */
@@ -118,31 +189,138 @@ public class CurlPage {
      * Resets this CurlPage into its initial state.
      */
     public void reset() {
-        if (mTextureFront != null) {
-            mTextureFront.recycle();
-            mTextureFront = null;
+        if (mTextureFront != null && !mSharedFront) {
+            BitmapPool.getInstance().put(mTextureFront);
         }
-        if (mTextureBack != null) {
-            mTextureBack.recycle();
-            mTextureBack = null;
+        mTextureFront = null;
+        if (mTextureBack != null && !mSharedBack) {
+            BitmapPool.getInstance().put(mTextureBack);
         }
+        mTextureBack = null;
+        mEtc1Front = mEtc1Back = null;
+        mRawFront = mRawBack = null;
+        mKeyFront = mKeyBack = null;
         mTexturesChanged = false;
     }
 
     /**
-     * Setter for textures.
+     * Returns key of given side texture, null if there is none.
+     */
+    public Object getTextureKey(int side) {
+        return side == SIDE_FRONT ? mKeyFront : mKeyBack;
+    }
+
+    /**
+     * Returns true if given side points at a region of shared atlas bitmap.
+     */
+    public boolean isTextureShared(int side) {
+        return side == SIDE_FRONT ? mSharedFront : mSharedBack;
+    }
+
+    /**
+     * Setter for textures. Page takes ownership of given bitmap and returns
+     * it into BitmapPool once it's no longer needed.
      */
     public void setTexture(Bitmap texture, int side) {
+        setTexture(texture, side, null);
+    }
+
+    /**
+     * Setter for textures which registers texture with given key. Pages
+     * later given the same key share the texture, see CurlView.hasTexture.
+     */
+    public void setTexture(Bitmap texture, int side, Object key) {
+        switch (side) {
+            case SIDE_FRONT:
+                setSide(side, getTexture(texture, mRectFront), false, key);
+                break;
+            case SIDE_BACK:
+                setSide(side, getTexture(texture, mRectBack), false, key);
+                break;
+        }
+    }
+
+    /**
+     * Setter for ETC1 compressed textures which are uploaded as they are.
+     * Compressed textures can be drawn with OpenGL ES 2.0 rendering only, see
+     * CurlView.isEtc1Supported.
+     */
+    public void setTexture(CurlEtc1Texture texture, int side, Object key) {
+        setSide(side, null, false, key);
+        if (side == SIDE_FRONT) {
+            mEtc1Front = texture;
+        } else if (side == SIDE_BACK) {
+            mEtc1Back = texture;
+        }
+    }
+
+    /**
+     * Setter for uncompressed textures ready for upload, which are uploaded
+     * without copying or converting. Texture data is only read once page is
+     * drawn next time.
+     */
+    public void setTexture(CurlRawTexture texture, int side, Object key) {
+        setSide(side, null, false, key);
+        if (side == SIDE_FRONT) {
+            mRawFront = texture;
+        } else if (side == SIDE_BACK) {
+            mRawBack = texture;
+        }
+    }
+
+    /**
+     * Sets side to use texture registered earlier with given key. Bitmap is
+     * not needed as long as CurlView.hasTexture returns true for the key.
+     */
+    public void setTexture(Object key, int side) {
+        setSide(side, null, false, key);
+    }
+
+    /**
+     * Points given side at a region of shared atlas bitmap. Region is given
+     * in normalized texture coordinates. Atlas is neither copied nor recycled,
+     * and once it has been uploaded switching between its regions changes
+     * texture coordinates only. Atlas size should be power of two.
+     */
+    public void setTextureRegion(Bitmap atlas, RectF region, int side) {
+        setTextureRegion(atlas, region, side, null);
+    }
+
+    /**
+     * Points given side at a region of shared atlas bitmap and registers it
+     * with given key.
+     */
+    public void setTextureRegion(Bitmap atlas, RectF region, int side, Object key) {
+        switch (side) {
+            case SIDE_FRONT:
+                mRectFront.set(region);
+                break;
+            case SIDE_BACK:
+                mRectBack.set(region);
+                break;
+        }
+        setSide(side, atlas, true, key);
+    }
+
+    private void setSide(int side, Bitmap texture, boolean shared, Object key) {
         switch (side) {
             case SIDE_FRONT:
-                if (mTextureFront != null)
-                    mTextureFront.recycle();
-                mTextureFront = getTexture(texture, mRectFront);
+                if (mTextureFront != null && !mSharedFront)
+                    BitmapPool.getInstance().put(mTextureFront);
+                mTextureFront = texture;
+                mEtc1Front = null;
+                mRawFront = null;
+                mSharedFront = shared;
+                mKeyFront = key;
                 break;
             case SIDE_BACK:
-                if (mTextureBack != null)
-                    mTextureBack.recycle();
-                mTextureBack = getTexture(texture, mRectBack);
+                if (mTextureBack != null && !mSharedBack)
+                    BitmapPool.getInstance().put(mTextureBack);
+                mTextureBack = texture;
+                mEtc1Back = null;
+                mRawBack = null;
+                mSharedBack = shared;
+                mKeyBack = key;
                 break;
         }
         mTexturesChanged = true;
@@ -0,0 +1,55 @@
+/**
+ * Copyright (c) 2018 mobdev313. Allright reserved.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package com.mobdev.card.curl;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Uncompressed page texture given as texels ready for upload, e.g memory
+ * mapped from a file. Texels are rows of RGBA bytes with premultiplied
+ * alpha, as ARGB_8888 bitmaps are uploaded, starting from top left corner.
+ * Texture is padded to power of two size on upload if needed, not in memory.
+ */
+public class CurlRawTexture {
+
+    public static final int BYTES_PER_TEXEL = 4;
+
+    public final ByteBuffer mData;
+    public final int mWidth, mHeight;
+
+    /**
+     * Constructor for texture of given size. Data should be a direct buffer
+     * of width * height * BYTES_PER_TEXEL bytes.
+     */
+    public CurlRawTexture(ByteBuffer data, int width, int height) {
+        mData = data;
+        mWidth = width;
+        mHeight = height;
+    }
+
+    /**
+     * Returns bytes of texel data.
+     */
+    public int getByteCount() {
+        return mWidth * mHeight * BYTES_PER_TEXEL;
+    }
+}
@@ -21,17 +21,24 @@
  */
 package com.mobdev.card.curl;
 
-import java.util.Vector;
-
 import javax.microedition.khronos.egl.EGLConfig;
 import javax.microedition.khronos.opengles.GL10;
 
 import android.graphics.Color;
 import android.graphics.PointF;
 import android.graphics.RectF;
+import android.opengl.ETC1Util;
+import android.opengl.GLES20;
 import android.opengl.GLSurfaceView;
 import android.opengl.GLU;
+import android.opengl.Matrix;
 
+/**
+ * Renderer for curl meshes. Mesh list and page rects are published as
+ * immutable snapshots, so onDrawFrame and getPageRect never wait for other
+ * threads. Meshes themselves should be modified on GL thread only, e.g using
+ * GLSurfaceView.queueEvent.
+ */
 public class CurlRenderer implements GLSurfaceView.Renderer {
 
     // Constant for requesting left page rect.
@@ -41,15 +48,25 @@ public class CurlRenderer implements GLSurfaceView.Renderer {
 
     // Set to true for checking quickly how perspective projection looks.
     private static final boolean USE_PERSPECTIVE_PROJECTION = true;
+    // Set to true for drawing meshes whose textures fit into texture atlas
+    // with one draw call, through one vertex stream with OpenGL ES 1.x and
+    // CurlShader batch with OpenGL ES 2.0 rendering.
+    private static final boolean USE_BATCHING = true;
+    // Most page textures atlas is given room for, front and back for six
+    // cards. Atlas is sized for the meshes drawn below that.
+    private static final int BATCH_ATLAS_CELLS = 12;
+    // Grid tessellation used with OpenGL ES 2.0 rendering.
+    private static final int SHADER_GRID_COLUMNS = 40;
+    private static final int SHADER_GRID_ROWS = 60;
     // Background fill color.
     private int mBackgroundColor;
-    // Curl meshes used for static and dynamic rendering.
-    private Vector<CurlMesh> mCurlMeshes;
+    // Curl meshes used for static and dynamic rendering. Array is copied on
+    // write and never modified once published.
+    private volatile CurlMesh[] mCurlMeshes;
     private RectF mMargins = new RectF();
     private CurlRenderer.Observer mObserver;
-    // Page rectangles.
-    private RectF mPageRectTop;
-    private RectF mPageRectBottom;
+    // Page rectangles, replaced as a whole once they change.
+    private volatile PageRects mPageRects;
     // View mode.
 //	private int mViewMode = SHOW_ONE_PAGE;
     // Screen size.
@@ -61,14 +78,53 @@ public class CurlRenderer implements GLSurfaceView.Renderer {
     private boolean hasCurled = false;
     public float rotation = 0;
 
+    // OpenGL ES 2.0 rendering, curl is done in vertex shader if enabled.
+    private final boolean mUseGles20;
+    private CurlShader mCurlShader;
+    private final float[] mMvpMatrix = new float[16];
+    private final float[] mProjectionMatrix = new float[16];
+    private final float[] mViewMatrix = new float[16];
+
+    // Page textures shared by all meshes drawn within this renderer.
+    private final CurlTextureRegistry mTextureRegistry;
+    // Batch used for OpenGL ES 1.x rendering.
+    private final CurlBatch mCurlBatch;
+    // OpenGL ES 1.x state shared by meshes and batch.
+    private final CurlGlState mGlState = new CurlGlState();
+    // Number of draw calls issued for latest frame.
+    private volatile int mDrawCallCount;
+    // Bytes of texture storage allocated after latest frame.
+    private volatile int mTextureBytes;
+    // Metrics meshes and CurlView record into, ended after each frame.
+    private final CurlFrameMetrics mFrameMetrics = new CurlFrameMetrics();
+    // Bytes uploaded by registry before current frame was drawn.
+    private long mUploadedBytes;
+    // True if ETC1 compressed page textures can be drawn.
+    private volatile boolean mEtc1Supported;
+
     /**
      * Basic constructor.
      */
     public CurlRenderer(CurlRenderer.Observer observer) {
+        this(observer, false);
+    }
+
+    /**
+     * Constructor for choosing between OpenGL ES 1.x and 2.0 rendering. In
+     * latter case GLSurfaceView should be set to create an OpenGL ES 2.0
+     * context too.
+     */
+    public CurlRenderer(CurlRenderer.Observer observer, boolean useGles20) {
         mObserver = observer;
-        mCurlMeshes = new Vector<CurlMesh>();
-        mPageRectTop = new RectF();
-        mPageRectBottom = new RectF();
+        mUseGles20 = useGles20;
+        if (useGles20) {
+            mCurlShader = new CurlShader(SHADER_GRID_COLUMNS, SHADER_GRID_ROWS,
+                    USE_BATCHING);
+        }
+        mTextureRegistry = new CurlTextureRegistry(USE_BATCHING, BATCH_ATLAS_CELLS);
+        mCurlBatch = new CurlBatch(mTextureRegistry, mGlState);
+        mCurlMeshes = new CurlMesh[0];
+        mPageRects = new PageRects(new RectF(), new RectF());
         mBackgroundColor = Color.TRANSPARENT;
     }
 
@@ -77,24 +133,54 @@ public class CurlRenderer implements GLSurfaceView.Renderer {
      */
     public synchronized void addCurlMesh(CurlMesh mesh) {
         removeCurlMesh(mesh);
-        mCurlMeshes.add(mesh);
+        mesh.setDeformOnGpu(mUseGles20);
+        mesh.setTextureRegistry(mTextureRegistry);
+        mesh.setFrameMetrics(mFrameMetrics);
+        mesh.setGlState(mGlState);
+        CurlMesh[] meshes = mCurlMeshes;
+        CurlMesh[] newMeshes = new CurlMesh[meshes.length + 1];
+        System.arraycopy(meshes, 0, newMeshes, 0, meshes.length);
+        newMeshes[meshes.length] = mesh;
+        mCurlMeshes = newMeshes;
     }
 
     /**
      * Returns rect reserved for left or right page. Value page should be
-     * PAGE_LEFT or PAGE_RIGHT.
+     * PAGE_LEFT or PAGE_RIGHT. Returned rect is a shared snapshot and must
+     * not be modified, use offsetPageRect for moving pages.
      */
-    public synchronized RectF getPageRect(int page) {
+    public RectF getPageRect(int page) {
+        PageRects rects = mPageRects;
         if (page == PAGE_TOP) {
-            return mPageRectTop;
+            return rects.mTop;
         } else if (page == PAGE_BOTTOM) {
-            return mPageRectBottom;
+            return rects.mBottom;
         }
         return null;
     }
 
+    /**
+     * Moves left or right page rect by given offset. Page size does not
+     * change so observer is not notified.
+     */
+    public synchronized void offsetPageRect(int page, float dx, float dy) {
+        PageRects rects = mPageRects;
+        RectF top = new RectF(rects.mTop);
+        RectF bottom = new RectF(rects.mBottom);
+        if (page == PAGE_TOP) {
+            top.offset(dx, dy);
+        } else if (page == PAGE_BOTTOM) {
+            bottom.offset(dx, dy);
+        }
+        mPageRects = new PageRects(top, bottom);
+    }
+
     @Override
-    public synchronized void onDrawFrame(GL10 gl) {
+    public void onDrawFrame(GL10 gl) {
+        if (mUseGles20) {
+            onDrawFrameGles20(gl);
+            return;
+        }
 
         gl.glClear(GL10.GL_COLOR_BUFFER_BIT | GL10.GL_DEPTH_BUFFER_BIT);
         gl.glMatrixMode(GL10.GL_MODELVIEW);
@@ -116,10 +202,132 @@ public class CurlRenderer implements GLSurfaceView.Renderer {
             gl.glRotatef(-rotation, 0, 0, 1);
         }
 
-        for (int i = 0; i < mCurlMeshes.size(); ++i) {
-            mCurlMeshes.get(i).onDrawFrame(gl);
+        mTextureRegistry.deleteReleased(gl);
+        // Deleting bound texture reverts binding to zero.
+        mGlState.invalidateTexture();
+        CurlMesh[] meshes = mCurlMeshes;
+        long drawStart = System.nanoTime();
+        long uploadTime = mFrameMetrics.getFrameValue(CurlFrameMetrics.UPLOAD_TIME);
+        if (USE_BATCHING) {
+            mTextureRegistry.setAtlasCells(meshes.length * 2);
+            mCurlBatch.begin();
+            for (int i = 0; i < meshes.length; ++i) {
+                meshes[i].onDrawFrame(gl, mCurlBatch);
+            }
+            mCurlBatch.flush(gl);
+            mDrawCallCount = mCurlBatch.getDrawCallCount();
+        } else {
+            int drawCallCount = 0;
+            for (int i = 0; i < meshes.length; ++i) {
+                meshes[i].onDrawFrame(gl);
+                drawCallCount += meshes[i].getDrawCallCount();
+            }
+            mDrawCallCount = drawCallCount;
+        }
+        mTextureBytes = mTextureRegistry.getTextureBytes();
+        endFrame(meshes, drawStart, uploadTime);
+    }
+
+    /**
+     * OpenGL ES 2.0 version of onDrawFrame.
+     */
+    private void onDrawFrameGles20(GL10 gl) {
+        GLES20.glClearColor(Color.red(mBackgroundColor) / 255f,
+                Color.green(mBackgroundColor) / 255f,
+                Color.blue(mBackgroundColor) / 255f,
+                Color.alpha(mBackgroundColor) / 255f);
+        GLES20.glClear(GLES20.GL_COLOR_BUFFER_BIT | GLES20.GL_DEPTH_BUFFER_BIT);
+
+        Matrix.setIdentityM(mViewMatrix, 0);
+        if (USE_PERSPECTIVE_PROJECTION) {
+            Matrix.translateM(mViewMatrix, 0, 0, 0, -6f);
+        }
+
+        mObserver.onDrawFrame();
+
+        //rotate the view
+        if (rotation != 0) {
+            Matrix.rotateM(mViewMatrix, 0, -rotation, 0, 0, 1);
+        }
+        Matrix.multiplyMM(mMvpMatrix, 0, mProjectionMatrix, 0, mViewMatrix, 0);
+
+        mTextureRegistry.deleteReleased(gl);
+        CurlMesh[] meshes = mCurlMeshes;
+        long drawStart = System.nanoTime();
+        long uploadTime = mFrameMetrics.getFrameValue(CurlFrameMetrics.UPLOAD_TIME);
+        if (USE_BATCHING) {
+            mTextureRegistry.setAtlasCells(meshes.length * 2);
+        }
+        int drawCallCount = 0;
+        for (int i = 0; i < meshes.length; ++i) {
+            meshes[i].onDrawFrame(gl, mCurlShader, mMvpMatrix);
+            drawCallCount += meshes[i].getDrawCallCount();
+        }
+        mCurlShader.flushBatch();
+        mDrawCallCount = drawCallCount + mCurlShader.takeBatchDrawCallCount();
+        mTextureBytes = mTextureRegistry.getTextureBytes();
+        endFrame(meshes, drawStart, uploadTime);
+    }
+
+    /**
+     * Records metrics of meshes drawn since drawStart and ends frame. Upload
+     * time recorded by meshes while drawing is excluded from draw time.
+     */
+    private void endFrame(CurlMesh[] meshes, long drawStart, long uploadTime) {
+        CurlFrameMetrics metrics = mFrameMetrics;
+        long drawTime = System.nanoTime() - drawStart;
+        metrics.add(CurlFrameMetrics.DRAW_TIME, drawTime
+                - (metrics.getFrameValue(CurlFrameMetrics.UPLOAD_TIME) - uploadTime));
+        int vertexCount = 0;
+        for (int i = 0; i < meshes.length; ++i) {
+            vertexCount += meshes[i].getVertexCount();
         }
+        metrics.add(CurlFrameMetrics.VERTICES, vertexCount);
+        metrics.add(CurlFrameMetrics.DRAW_CALLS, mDrawCallCount);
+        long uploadedBytes = mTextureRegistry.getUploadedBytes();
+        metrics.add(CurlFrameMetrics.UPLOAD_BYTES, uploadedBytes - mUploadedBytes);
+        mUploadedBytes = uploadedBytes;
+        metrics.endFrame();
+    }
 
+    /**
+     * Returns registry page textures are shared through. Registry should be
+     * accessed on GL thread only.
+     */
+    public CurlTextureRegistry getTextureRegistry() {
+        return mTextureRegistry;
+    }
+
+    /**
+     * Returns OpenGL ES 1.x state tracker, whose counters tell how many
+     * state changes were issued and skipped. Should be accessed on GL thread
+     * only, e.g from CurlFrameMetrics listener.
+     */
+    public CurlGlState getGlState() {
+        return mGlState;
+    }
+
+    /**
+     * Returns metrics recorded for frames drawn by this renderer.
+     */
+    public CurlFrameMetrics getFrameMetrics() {
+        return mFrameMetrics;
+    }
+
+    /**
+     * Returns number of draw calls issued for latest frame. Can be called
+     * from any thread.
+     */
+    public int getDrawCallCount() {
+        return mDrawCallCount;
+    }
+
+    /**
+     * Returns bytes of texture storage allocated for page textures after
+     * latest frame. Can be called from any thread.
+     */
+    public int getTextureBytes() {
+        return mTextureBytes;
     }
 
     public void setCurlState(boolean isCurled) {
@@ -132,15 +340,29 @@ public class CurlRenderer implements GLSurfaceView.Renderer {
 
     @Override
     public void onSurfaceChanged(GL10 gl, int width, int height) {
-        gl.glViewport(0, 0, width, height);
-        mViewportWidth = width;
-        mViewportHeight = height;
         float ratio = (float) width / height;
-        mViewRect.top = 1.0f;
-        mViewRect.bottom = -1.0f;
-        mViewRect.left = -ratio;
-        mViewRect.right = ratio;
-        updatePageRects();
+        synchronized (this) {
+            mViewportWidth = width;
+            mViewportHeight = height;
+            mViewRect.top = 1.0f;
+            mViewRect.bottom = -1.0f;
+            mViewRect.left = -ratio;
+            mViewRect.right = ratio;
+            updatePageRects();
+        }
+
+        if (mUseGles20) {
+            GLES20.glViewport(0, 0, width, height);
+            if (USE_PERSPECTIVE_PROJECTION) {
+                Matrix.perspectiveM(mProjectionMatrix, 0, 20f, ratio, .1f, 100f);
+            } else {
+                Matrix.orthoM(mProjectionMatrix, 0, mViewRect.left,
+                        mViewRect.right, mViewRect.bottom, mViewRect.top, -1f, 1f);
+            }
+            return;
+        }
+
+        gl.glViewport(0, 0, width, height);
 
         gl.glMatrixMode(GL10.GL_PROJECTION);
         gl.glLoadIdentity();
@@ -157,6 +379,23 @@ public class CurlRenderer implements GLSurfaceView.Renderer {
 
     @Override
     public void onSurfaceCreated(GL10 gl, EGLConfig config) {
+        if (mUseGles20) {
+            GLES20.glClearColor(0f, 0f, 0f, 0f);
+            GLES20.glDisable(GLES20.GL_DEPTH_TEST);
+            GLES20.glDisable(GLES20.GL_CULL_FACE);
+            // Everything drawn is blended, pages may have transparent areas.
+            GLES20.glEnable(GLES20.GL_BLEND);
+            GLES20.glBlendFunc(GLES20.GL_SRC_ALPHA, GLES20.GL_ONE_MINUS_SRC_ALPHA);
+            mCurlShader.init();
+            mTextureRegistry.reset();
+            // Non power of two textures without mipmaps are core in 2.0.
+            CurlPage.setNpotSupported(true);
+            mEtc1Supported = ETC1Util.isETC1Supported();
+
+            mObserver.onSurfaceCreated();
+            return;
+        }
+
         gl.glClearColor(0f, 0f, 0f, 0f);
         gl.glShadeModel(GL10.GL_SMOOTH);
         gl.glHint(GL10.GL_PERSPECTIVE_CORRECTION_HINT, GL10.GL_NICEST);
@@ -165,16 +404,57 @@ public class CurlRenderer implements GLSurfaceView.Renderer {
         gl.glEnable(GL10.GL_LINE_SMOOTH);
         gl.glDisable(GL10.GL_DEPTH_TEST);
         gl.glDisable(GL10.GL_CULL_FACE);
+        mTextureRegistry.reset();
+        mCurlBatch.resetBuffers();
+        mGlState.reset();
+        CurlPage.setNpotSupported(isNpotSupported(gl));
 
         mObserver.onSurfaceCreated();
     }
 
+    /**
+     * Returns true if ETC1 compressed page textures can be used. They need
+     * OpenGL ES 2.0 rendering for their separate alpha texture. Can be called
+     * from any thread, false until surface has been created.
+     */
+    public boolean isEtc1Supported() {
+        return mEtc1Supported;
+    }
+
+    /**
+     * Returns true if given OpenGL ES 1.x context supports non power of two
+     * textures, at least with CLAMP_TO_EDGE wrapping and no mipmaps.
+     */
+    private static boolean isNpotSupported(GL10 gl) {
+        String extensions = gl.glGetString(GL10.GL_EXTENSIONS);
+        return extensions != null && (extensions.contains("GL_OES_texture_npot")
+                || extensions.contains("GL_ARB_texture_non_power_of_two")
+                || extensions.contains("GL_IMG_texture_npot")
+                || extensions.contains("GL_APPLE_texture_2D_limited_npot"));
+    }
+
     /**
      * Removes CurlMesh from this renderer.
      */
     public synchronized void removeCurlMesh(CurlMesh mesh) {
-        while (mCurlMeshes.remove(mesh))
-            ;
+        CurlMesh[] meshes = mCurlMeshes;
+        int count = 0;
+        for (CurlMesh m : meshes) {
+            if (m != mesh) {
+                ++count;
+            }
+        }
+        if (count == meshes.length) {
+            return;
+        }
+        CurlMesh[] newMeshes = new CurlMesh[count];
+        int i = 0;
+        for (CurlMesh m : meshes) {
+            if (m != mesh) {
+                newMeshes[i++] = m;
+            }
+        }
+        mCurlMeshes = newMeshes;
     }
 
     /**
@@ -220,25 +500,39 @@ public class CurlRenderer implements GLSurfaceView.Renderer {
         if (mViewRect.width() == 0 || mViewRect.height() == 0) {
             return;
         } else {
-            mPageRectBottom.set(mViewRect);
-            mPageRectBottom.left += mViewRect.width() * mMargins.left;
-            mPageRectBottom.right -= mViewRect.width() * mMargins.right;
-            mPageRectBottom.top += mViewRect.height() * mMargins.top;
-            mPageRectBottom.bottom -= mViewRect.height() * mMargins.bottom;
+            RectF pageRectBottom = new RectF(mViewRect);
+            pageRectBottom.left += mViewRect.width() * mMargins.left;
+            pageRectBottom.right -= mViewRect.width() * mMargins.right;
+            pageRectBottom.top += mViewRect.height() * mMargins.top;
+            pageRectBottom.bottom -= mViewRect.height() * mMargins.bottom;
 
-            mPageRectTop.set(mPageRectBottom);
+            RectF pageRectTop = new RectF(pageRectBottom);
             if (!hasCurled) {
-                mPageRectTop.offset(0, -mPageRectBottom.height() / 2);
+                pageRectTop.offset(0, -pageRectBottom.height() / 2);
             }
+            mPageRects = new PageRects(pageRectTop, pageRectBottom);
 
-            int bitmapW = (int) ((mPageRectBottom.width() * mViewportWidth) / mViewRect
+            int bitmapW = (int) ((pageRectBottom.width() * mViewportWidth) / mViewRect
                     .width());
-            int bitmapH = (int) ((mPageRectBottom.height() * mViewportHeight) / mViewRect
+            int bitmapH = (int) ((pageRectBottom.height() * mViewportHeight) / mViewRect
                     .height());
             mObserver.onPageSizeChanged(bitmapW, bitmapH);
         }
     }
 
+    /**
+     * Snapshot of page rectangles. Never modified once published.
+     */
+    private static final class PageRects {
+        public final RectF mTop;
+        public final RectF mBottom;
+
+        public PageRects(RectF top, RectF bottom) {
+            mTop = top;
+            mBottom = bottom;
+        }
+    }
+
     /**
      * Observer for waiting render engine/state updates.
      */
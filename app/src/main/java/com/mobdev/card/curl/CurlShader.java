@@ -0,0 +1,736 @@
+/**
+ * Copyright (c) 2018 mobdev313. Allright reserved.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package com.mobdev.card.curl;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.nio.ShortBuffer;
+
+import android.graphics.RectF;
+import android.opengl.GLES20;
+
+/**
+ * OpenGL ES 2.0 counterpart of the curl calculations done in CurlMesh. Page is
+ * uploaded once as a static grid and the cylinder deformation, back face
+ * texture selection, shading and shadow penumbra are calculated in vertex
+ * shader. Per frame only curl position, direction and radius change.
+ * <p>
+ * Meshes whose textures are in the same atlas can be added into a batch
+ * instead, which draws up to MAX_BATCH_MESHES of them with their shadows in
+ * one draw call. Static grids are then uploaded once per batch slot, tagged
+ * with slot index selecting the curl parameters from uniform arrays. Batch
+ * is flushed before anything else is drawn to keep the drawing order.
+ */
+public class CurlShader {
+
+    /** Maximum number of meshes drawn by one batch draw call. */
+    public static final int MAX_BATCH_MESHES = 8;
+
+    // Shadow alpha at the inner edge of penumbra. Outer edge is transparent.
+    private static final float SHADOW_INNER_ALPHA = .5f;
+    // Batch vertex attributes, grid (u, v) followed by slot index, part and
+    // outer flag of shadow vertices.
+    private static final int BATCH_VERTEX_SIZE = 5;
+    // Parts of a batch slot in drawing order, shadow parts map to self
+    // shadow flag once PART_DROP_SHADOW is subtracted.
+    private static final int PART_FRONT = 0;
+    private static final int PART_BACK = 1;
+    private static final int PART_DROP_SHADOW = 2;
+    private static final int PART_SELF_SHADOW = 3;
+    // Uniform vec4 arrays set per batch slot, see addToBatch.
+    private static final int BATCH_UNIFORMS = 6;
+
+    // Curl and shadow functions shared by all programs. Grid coordinates are
+    // within [0, 1] with (0, 0) at top-left corner of page rectangle. Curl
+    // returns curled position in xyz and color factor in w. Works the same
+    // way as CurlMesh.curl() but for a single vertex only. Shadow returns
+    // position moved to penumbra in xyz and shadow alpha in w.
+    private static final String SHADER_FUNCTIONS = ""
+            + "vec4 curl(vec2 grid, vec4 rect, vec2 curlPos, vec2 curlDir, float radius,\n"
+            + "          out vec2 penumbra, out float back) {\n"
+            + "  vec2 pos = mix(rect.xy, rect.zw, grid);\n"
+            + "  vec2 perp = vec2(-curlDir.y, curlDir.x);\n"
+            + "  float x = dot(pos - curlPos, curlDir);\n"
+            + "  float y = dot(pos - curlPos, perp);\n"
+            + "  vec2 pen = vec2(grid.x * 2.0 - 1.0, 1.0 - grid.y * 2.0);\n"
+            + "  float penX = dot(pen, curlDir);\n"
+            + "  float penY = dot(pen, perp);\n"
+            + "  float z = 0.0;\n"
+            + "  float color = 1.0;\n"
+            + "  float curlLength = 3.14159265 * radius;\n"
+            + "  back = 0.0;\n"
+            + "  if (x < 0.0) {\n"
+            + "    if (x <= -curlLength || curlLength == 0.0) {\n"
+            + "      x = -(curlLength + x);\n"
+            + "      z = 2.0 * radius;\n"
+            + "      penX = -penX;\n"
+            + "      back = 1.0;\n"
+            + "    } else {\n"
+            + "      float sinY = sin(x / radius);\n"
+            + "      float cosY = cos(x / radius);\n"
+            + "      x = radius * sinY;\n"
+            + "      z = radius - radius * cosY;\n"
+            + "      penX *= cosY;\n"
+            + "      color = .1 + .9 * sqrt(sinY + 1.0);\n"
+            + "      back = step(radius, z);\n"
+            + "    }\n"
+            + "  }\n"
+            + "  penumbra = penX * curlDir + penY * perp;\n"
+            + "  return vec4(curlPos + x * curlDir + y * perp, z, color);\n"
+            + "}\n"
+            + "vec4 shadow(vec4 pos, vec2 penumbra, vec2 curlDir, float radius,\n"
+            + "            float selfShadow, float outer) {\n"
+            + "  float r = max(radius, .0001);\n"
+            + "  vec2 offset;\n"
+            + "  float alpha;\n"
+            + "  if (selfShadow > .5) {\n"
+            + "    offset = penumbra * (pos.z - r) / 3.0;\n"
+            + "    alpha = pos.z > radius ? (pos.z - r) / (2.0 * r) : 0.0;\n"
+            + "  } else {\n"
+            + "    offset = -curlDir * pos.z / 2.0;\n"
+            + "    alpha = pos.z > 0.0 && pos.z <= radius ? pos.z / r : 0.0;\n"
+            + "  }\n"
+            + "  return vec4(pos.xy + offset * outer, pos.z,\n"
+            + "      " + SHADOW_INNER_ALPHA + " * alpha * (1.0 - outer));\n"
+            + "}\n";
+
+    // Curl uniforms of page and shadow programs drawing a single mesh.
+    private static final String SHADER_CURL = SHADER_FUNCTIONS
+            + "uniform mat4 uMvpMatrix;\n"
+            + "uniform vec4 uRect;\n"
+            + "uniform vec2 uCurlPos;\n"
+            + "uniform vec2 uCurlDir;\n"
+            + "uniform float uRadius;\n"
+            + "vec4 curl(vec2 grid, out vec2 penumbra, out float back) {\n"
+            + "  return curl(grid, uRect, uCurlPos, uCurlDir, uRadius, penumbra, back);\n"
+            + "}\n";
+
+    private static final String SHADER_PAGE_VERTEX = SHADER_CURL
+            + "uniform mat3 uTexMatrix;\n"
+            + "attribute vec2 aGrid;\n"
+            + "varying vec2 vTexCoord;\n"
+            + "varying float vBack;\n"
+            + "varying float vColor;\n"
+            + "void main() {\n"
+            + "  vec2 penumbra;\n"
+            + "  float back;\n"
+            + "  vec4 pos = curl(aGrid, penumbra, back);\n"
+            + "  vBack = back;\n"
+            + "  vTexCoord = (uTexMatrix * vec3(aGrid, 1.0)).xy;\n"
+            + "  vColor = pos.w;\n"
+            + "  gl_Position = uMvpMatrix * vec4(pos.xyz, 1.0);\n"
+            + "}\n";
+
+    // Front and back facing parts are drawn in separate passes for getting
+    // back facing part on top of front facing one without depth testing.
+    private static final String SHADER_PAGE_FRAGMENT = ""
+            + "precision mediump float;\n"
+            + "uniform sampler2D uTexture;\n"
+            + "uniform sampler2D uAlpha;\n"
+            + "uniform float uHasAlpha;\n"
+            + "uniform vec2 uTexOffset;\n"
+            + "uniform vec2 uTexScale;\n"
+            + "uniform float uBackPass;\n"
+            + "varying vec2 vTexCoord;\n"
+            + "varying float vBack;\n"
+            + "varying float vColor;\n"
+            + "void main() {\n"
+            + "  if (step(.5, vBack) != uBackPass) discard;\n"
+            + "  vec2 texCoord = uTexOffset + vTexCoord * uTexScale;\n"
+            + "  vec4 color = texture2D(uTexture, texCoord);\n"
+            + "  color.a *= mix(1.0, texture2D(uAlpha, texCoord).r, uHasAlpha);\n"
+            + "  gl_FragColor = color * vec4(vColor, vColor, vColor, 1.0);\n"
+            + "}\n";
+
+    // Shadows are drawn using a strip around page perimeter. Inner vertices
+    // follow the curled page and outer ones are moved to penumbra. Vertices
+    // not casting shadow are left transparent.
+    private static final String SHADER_SHADOW_VERTEX = SHADER_CURL
+            + "uniform float uSelfShadow;\n"
+            + "attribute vec2 aGrid;\n"
+            + "attribute float aOuter;\n"
+            + "varying float vAlpha;\n"
+            + "void main() {\n"
+            + "  vec2 penumbra;\n"
+            + "  float back;\n"
+            + "  vec4 pos = curl(aGrid, penumbra, back);\n"
+            + "  pos = shadow(pos, penumbra, uCurlDir, uRadius, uSelfShadow, aOuter);\n"
+            + "  vAlpha = pos.w;\n"
+            + "  gl_Position = uMvpMatrix * vec4(pos.xyz, 1.0);\n"
+            + "}\n";
+
+    private static final String SHADER_SHADOW_FRAGMENT = ""
+            + "precision mediump float;\n"
+            + "varying float vAlpha;\n"
+            + "void main() {\n"
+            + "  gl_FragColor = vec4(0.0, 0.0, 0.0, vAlpha);\n"
+            + "}\n";
+
+    // Batch program draws every part of a slot. Curl parameters are read
+    // from uniform arrays by slot index, texture matrix is given as (a, b,
+    // c, d) and its translation in xy of uParams, radius in z. Texture rects
+    // are given as offset in xy and scale in zw. Front and back facing parts
+    // are separate copies of the grid, as are drop and self shadows.
+    private static final String SHADER_BATCH_VERTEX = SHADER_FUNCTIONS
+            + "uniform mat4 uMvpMatrix;\n"
+            + "uniform vec4 uRects[" + MAX_BATCH_MESHES + "];\n"
+            + "uniform vec4 uCurls[" + MAX_BATCH_MESHES + "];\n"
+            + "uniform vec4 uTexMatrices[" + MAX_BATCH_MESHES + "];\n"
+            + "uniform vec4 uParams[" + MAX_BATCH_MESHES + "];\n"
+            + "uniform vec4 uTexFronts[" + MAX_BATCH_MESHES + "];\n"
+            + "uniform vec4 uTexBacks[" + MAX_BATCH_MESHES + "];\n"
+            + "attribute vec2 aGrid;\n"
+            + "attribute vec3 aSlot;\n"
+            + "varying vec2 vTexFront;\n"
+            + "varying vec2 vTexBack;\n"
+            + "varying float vBack;\n"
+            + "varying float vColor;\n"
+            + "varying float vPart;\n"
+            + "void main() {\n"
+            + "  int i = int(aSlot.x + .5);\n"
+            + "  vec4 curlParams = uCurls[i];\n"
+            + "  vec4 params = uParams[i];\n"
+            + "  vec2 penumbra;\n"
+            + "  float back;\n"
+            + "  vec4 pos = curl(aGrid, uRects[i], curlParams.xy, curlParams.zw, params.z,\n"
+            + "      penumbra, back);\n"
+            + "  vColor = pos.w;\n"
+            + "  if (aSlot.y > " + (PART_DROP_SHADOW - .5f) + ") {\n"
+            + "    pos = shadow(pos, penumbra, curlParams.zw, params.z,\n"
+            + "        aSlot.y - " + (float) PART_DROP_SHADOW + ", aSlot.z);\n"
+            + "    vColor = pos.w;\n"
+            + "  }\n"
+            + "  vec4 m = uTexMatrices[i];\n"
+            + "  vec2 tex = vec2(m.x * aGrid.x + m.z * aGrid.y, m.y * aGrid.x + m.w * aGrid.y)\n"
+            + "      + params.xy;\n"
+            + "  vTexFront = uTexFronts[i].xy + tex * uTexFronts[i].zw;\n"
+            + "  vTexBack = uTexBacks[i].xy + tex * uTexBacks[i].zw;\n"
+            + "  vBack = back;\n"
+            + "  vPart = aSlot.y;\n"
+            + "  gl_Position = uMvpMatrix * vec4(pos.xyz, 1.0);\n"
+            + "}\n";
+
+    // Shadow parts get their alpha in vColor.
+    private static final String SHADER_BATCH_FRAGMENT = ""
+            + "precision mediump float;\n"
+            + "uniform sampler2D uTexture;\n"
+            + "varying vec2 vTexFront;\n"
+            + "varying vec2 vTexBack;\n"
+            + "varying float vBack;\n"
+            + "varying float vColor;\n"
+            + "varying float vPart;\n"
+            + "void main() {\n"
+            + "  if (vPart > " + (PART_DROP_SHADOW - .5f) + ") {\n"
+            + "    gl_FragColor = vec4(0.0, 0.0, 0.0, vColor);\n"
+            + "  } else {\n"
+            + "    float back = step(.5, vBack);\n"
+            + "    if (abs(back - vPart) > .5) discard;\n"
+            + "    vec4 color = texture2D(uTexture, mix(vTexFront, vTexBack, back));\n"
+            + "    gl_FragColor = color * vec4(vColor, vColor, vColor, 1.0);\n"
+            + "  }\n"
+            + "}\n";
+
+    private final int mGridColumns;
+    private final int mGridRows;
+    private int mGridIndexCount;
+    private int mPerimeterVertexCount;
+
+    // Buffer ids for grid vertices, grid indices and perimeter strip, and
+    // batch vertices and indices if batching.
+    private int[] mBufferIds;
+
+    // Meshes a batch draw call can hold, zero if not batching, and indices
+    // drawn per mesh.
+    private final int mBatchSize;
+    private int mBatchIndexCount;
+    private Program mBatchProgram;
+    private int mBatchSlot;
+    private int mBatchTexture;
+    private final int[] mBatchUniforms = new int[BATCH_UNIFORMS];
+    // Uniform array values of meshes added into batch, and their atlas.
+    private final float[][] mBatchValues = new float[BATCH_UNIFORMS][];
+    private int mBatchCount;
+    private int mBatchTextureId;
+    private int mBatchDrawCallCount;
+
+    private Program mPageProgram;
+    private Program mShadowProgram;
+    private int mPageTexMatrix;
+    private int mPageTexture;
+    private int mPageAlpha;
+    private int mPageHasAlpha;
+    private int mPageTexOffset;
+    private int mPageTexScale;
+    private int mPageBackPass;
+    private int mShadowOuter;
+    private int mShadowSelfShadow;
+
+    // Curl uniform values for the mesh being drawn.
+    private float[] mMvpMatrix;
+    private final RectF mRect = new RectF();
+    private float mCurlPosX, mCurlPosY;
+    private float mCurlDirX, mCurlDirY;
+    private float mRadius;
+
+    /**
+     * Constructor for grid with given tessellation. Higher values give a
+     * smoother curl with the cost of having more vertices to shade. Batch
+     * is limited so that its vertices can be indexed with shorts.
+     */
+    public CurlShader(int gridColumns, int gridRows, boolean batching) {
+        mGridColumns = gridColumns < 1 ? 1 : gridColumns;
+        mGridRows = gridRows < 1 ? 1 : gridRows;
+        int slotVertices = getBatchSlotVertexCount();
+        mBatchSize = batching ? Math.min(MAX_BATCH_MESHES, 65536 / slotVertices) : 0;
+        for (int i = 0; i < BATCH_UNIFORMS; ++i) {
+            mBatchValues[i] = new float[MAX_BATCH_MESHES * 4];
+        }
+    }
+
+    /**
+     * Compiles programs and uploads static grid. Should be called once GL
+     * context is (re)created.
+     */
+    public void init() {
+        mPageProgram = new Program(SHADER_PAGE_VERTEX, SHADER_PAGE_FRAGMENT);
+        mPageTexMatrix = mPageProgram.getUniform("uTexMatrix");
+        mPageTexture = mPageProgram.getUniform("uTexture");
+        mPageAlpha = mPageProgram.getUniform("uAlpha");
+        mPageHasAlpha = mPageProgram.getUniform("uHasAlpha");
+        mPageTexOffset = mPageProgram.getUniform("uTexOffset");
+        mPageTexScale = mPageProgram.getUniform("uTexScale");
+        mPageBackPass = mPageProgram.getUniform("uBackPass");
+
+        mShadowProgram = new Program(SHADER_SHADOW_VERTEX, SHADER_SHADOW_FRAGMENT);
+        mShadowOuter = GLES20.glGetAttribLocation(mShadowProgram.mHandle, "aOuter");
+        mShadowSelfShadow = mShadowProgram.getUniform("uSelfShadow");
+
+        mBufferIds = new int[5];
+        GLES20.glGenBuffers(mBatchSize > 0 ? 5 : 3, mBufferIds, 0);
+
+        // Grid vertices, (u, v) pairs.
+        int columns = mGridColumns + 1;
+        int rows = mGridRows + 1;
+        FloatBuffer grid = allocateDirect(columns * rows * 2 * 4).asFloatBuffer();
+        for (int y = 0; y < rows; ++y) {
+            for (int x = 0; x < columns; ++x) {
+                grid.put((float) x / mGridColumns);
+                grid.put((float) y / mGridRows);
+            }
+        }
+        grid.position(0);
+        GLES20.glBindBuffer(GLES20.GL_ARRAY_BUFFER, mBufferIds[0]);
+        GLES20.glBufferData(GLES20.GL_ARRAY_BUFFER, grid.capacity() * 4, grid,
+                GLES20.GL_STATIC_DRAW);
+
+        // Two triangles per grid cell.
+        mGridIndexCount = mGridColumns * mGridRows * 6;
+        ShortBuffer indices = allocateDirect(mGridIndexCount * 2).asShortBuffer();
+        for (int y = 0; y < mGridRows; ++y) {
+            for (int x = 0; x < mGridColumns; ++x) {
+                short i = (short) (y * columns + x);
+                indices.put(i);
+                indices.put((short) (i + columns));
+                indices.put((short) (i + 1));
+                indices.put((short) (i + 1));
+                indices.put((short) (i + columns));
+                indices.put((short) (i + columns + 1));
+            }
+        }
+        indices.position(0);
+        GLES20.glBindBuffer(GLES20.GL_ELEMENT_ARRAY_BUFFER, mBufferIds[1]);
+        GLES20.glBufferData(GLES20.GL_ELEMENT_ARRAY_BUFFER, mGridIndexCount * 2,
+                indices, GLES20.GL_STATIC_DRAW);
+
+        // Perimeter strip going clockwise around page starting from top-left
+        // corner, (u, v, outer) triplets. Last point closes the loop.
+        int perimeterPoints = (mGridColumns + mGridRows) * 2;
+        mPerimeterVertexCount = (perimeterPoints + 1) * 2;
+        FloatBuffer perimeter = allocateDirect(mPerimeterVertexCount * 3 * 4)
+                .asFloatBuffer();
+        for (int i = 0; i <= perimeterPoints; ++i) {
+            int p = i % perimeterPoints;
+            float u, v;
+            if (p < mGridColumns) {
+                u = (float) p / mGridColumns;
+                v = 0f;
+            } else if ((p -= mGridColumns) < mGridRows) {
+                u = 1f;
+                v = (float) p / mGridRows;
+            } else if ((p -= mGridRows) < mGridColumns) {
+                u = 1f - (float) p / mGridColumns;
+                v = 1f;
+            } else {
+                p -= mGridColumns;
+                u = 0f;
+                v = 1f - (float) p / mGridRows;
+            }
+            perimeter.put(u).put(v).put(0f);
+            perimeter.put(u).put(v).put(1f);
+        }
+        perimeter.position(0);
+        GLES20.glBindBuffer(GLES20.GL_ARRAY_BUFFER, mBufferIds[2]);
+        GLES20.glBufferData(GLES20.GL_ARRAY_BUFFER, perimeter.capacity() * 4,
+                perimeter, GLES20.GL_STATIC_DRAW);
+
+        if (mBatchSize > 0) {
+            initBatch(grid, indices, perimeter);
+        }
+
+        GLES20.glBindBuffer(GLES20.GL_ARRAY_BUFFER, 0);
+        GLES20.glBindBuffer(GLES20.GL_ELEMENT_ARRAY_BUFFER, 0);
+        mBatchCount = 0;
+    }
+
+    /**
+     * Compiles batch program and uploads batch slots made of given grid,
+     * grid indices and perimeter strip. Slot parts are laid out in drawing
+     * order, drop shadow, front and back facing part and self shadow, with
+     * strips turned into triangles.
+     */
+    private void initBatch(FloatBuffer grid, ShortBuffer indices, FloatBuffer perimeter) {
+        mBatchProgram = new Program(SHADER_BATCH_VERTEX, SHADER_BATCH_FRAGMENT);
+        mBatchSlot = GLES20.glGetAttribLocation(mBatchProgram.mHandle, "aSlot");
+        mBatchTexture = mBatchProgram.getUniform("uTexture");
+        String[] names = { "uRects", "uCurls", "uTexMatrices", "uParams", "uTexFronts",
+                "uTexBacks" };
+        for (int i = 0; i < BATCH_UNIFORMS; ++i) {
+            mBatchUniforms[i] = mBatchProgram.getUniform(names[i]);
+        }
+
+        int gridVertices = grid.capacity() / 2;
+        int strips = mPerimeterVertexCount - 2;
+        mBatchIndexCount = (mGridIndexCount + strips * 3) * 2;
+        int slotVertices = getBatchSlotVertexCount();
+        FloatBuffer vertices = allocateDirect(mBatchSize * slotVertices
+                * BATCH_VERTEX_SIZE * 4).asFloatBuffer();
+        ShortBuffer slotIndices = allocateDirect(mBatchSize * mBatchIndexCount * 2)
+                .asShortBuffer();
+        for (int slot = 0; slot < mBatchSize; ++slot) {
+            int base = slot * slotVertices;
+            int[] parts = { PART_DROP_SHADOW, PART_FRONT, PART_BACK, PART_SELF_SHADOW };
+            for (int part : parts) {
+                if (part >= PART_DROP_SHADOW) {
+                    for (int i = 0; i < mPerimeterVertexCount; ++i) {
+                        vertices.put(perimeter.get(i * 3)).put(perimeter.get(i * 3 + 1));
+                        vertices.put(slot).put(part).put(perimeter.get(i * 3 + 2));
+                    }
+                    // Every other triangle of a strip is wound the other
+                    // way, which doesn't matter without culling.
+                    for (int i = 0; i < strips; ++i) {
+                        slotIndices.put((short) (base + i));
+                        slotIndices.put((short) (base + i + 1));
+                        slotIndices.put((short) (base + i + 2));
+                    }
+                    base += mPerimeterVertexCount;
+                } else {
+                    for (int i = 0; i < gridVertices; ++i) {
+                        vertices.put(grid.get(i * 2)).put(grid.get(i * 2 + 1));
+                        vertices.put(slot).put(part).put(0f);
+                    }
+                    for (int i = 0; i < mGridIndexCount; ++i) {
+                        slotIndices.put((short) (base + (indices.get(i) & 0xFFFF)));
+                    }
+                    base += gridVertices;
+                }
+            }
+        }
+        vertices.position(0);
+        slotIndices.position(0);
+        GLES20.glBindBuffer(GLES20.GL_ARRAY_BUFFER, mBufferIds[3]);
+        GLES20.glBufferData(GLES20.GL_ARRAY_BUFFER, vertices.capacity() * 4, vertices,
+                GLES20.GL_STATIC_DRAW);
+        GLES20.glBindBuffer(GLES20.GL_ELEMENT_ARRAY_BUFFER, mBufferIds[4]);
+        GLES20.glBufferData(GLES20.GL_ELEMENT_ARRAY_BUFFER, slotIndices.capacity() * 2,
+                slotIndices, GLES20.GL_STATIC_DRAW);
+    }
+
+    /**
+     * Returns number of vertices in a batch slot, two grids and two
+     * perimeter strips.
+     */
+    private int getBatchSlotVertexCount() {
+        int gridVertices = (mGridColumns + 1) * (mGridRows + 1);
+        int perimeterVertices = ((mGridColumns + mGridRows) * 2 + 1) * 2;
+        return (gridVertices + perimeterVertices) * 2;
+    }
+
+    /**
+     * Sets curl uniform values used for following draw calls. Curl direction
+     * should be normalized. Zero radius with curl position outside of rect
+     * gives a plain rectangle.
+     */
+    public void setCurl(float[] mvpMatrix, RectF rect, float curlPosX,
+                        float curlPosY, float curlDirX, float curlDirY, float radius) {
+        mMvpMatrix = mvpMatrix;
+        mRect.set(rect);
+        mCurlPosX = curlPosX;
+        mCurlPosY = curlPosY;
+        mCurlDirX = curlDirX;
+        mCurlDirY = curlDirY;
+        mRadius = radius;
+    }
+
+    /**
+     * Draws front or back facing part of page using given texture. Texture
+     * matrix maps [0, 1] grid into texture coordinates, which texture rect
+     * maps into the used area of texture. Matrix is 3x3 in column major
+     * order.
+     */
+    public void drawPage(int textureId, RectF textureRect,
+                         float[] texMatrix, boolean backFacing) {
+        drawPage(textureId, 0, textureRect, texMatrix, backFacing);
+    }
+
+    /**
+     * Draws front or back facing part of page using given texture and alpha
+     * texture, alpha is read from its red channel. Alpha texture is ignored
+     * if zero.
+     */
+    public void drawPage(int textureId, int alphaId, RectF textureRect,
+                         float[] texMatrix, boolean backFacing) {
+        flushBatch();
+        mPageProgram.use();
+        GLES20.glUniformMatrix3fv(mPageTexMatrix, 1, false, texMatrix, 0);
+        GLES20.glUniform1f(mPageBackPass, backFacing ? 1f : 0f);
+        GLES20.glUniform2f(mPageTexOffset, textureRect.left, textureRect.top);
+        GLES20.glUniform2f(mPageTexScale, textureRect.width(), textureRect.height());
+        GLES20.glActiveTexture(GLES20.GL_TEXTURE0);
+        GLES20.glBindTexture(GLES20.GL_TEXTURE_2D, textureId);
+        GLES20.glUniform1i(mPageTexture, 0);
+        GLES20.glUniform1f(mPageHasAlpha, alphaId != 0 ? 1f : 0f);
+        if (alphaId != 0) {
+            GLES20.glActiveTexture(GLES20.GL_TEXTURE1);
+            GLES20.glBindTexture(GLES20.GL_TEXTURE_2D, alphaId);
+            GLES20.glActiveTexture(GLES20.GL_TEXTURE0);
+        }
+        GLES20.glUniform1i(mPageAlpha, 1);
+
+        GLES20.glBindBuffer(GLES20.GL_ARRAY_BUFFER, mBufferIds[0]);
+        GLES20.glEnableVertexAttribArray(mPageProgram.mGrid);
+        GLES20.glVertexAttribPointer(mPageProgram.mGrid, 2, GLES20.GL_FLOAT,
+                false, 2 * 4, 0);
+        GLES20.glBindBuffer(GLES20.GL_ELEMENT_ARRAY_BUFFER, mBufferIds[1]);
+        GLES20.glDrawElements(GLES20.GL_TRIANGLES, mGridIndexCount,
+                GLES20.GL_UNSIGNED_SHORT, 0);
+        GLES20.glDisableVertexAttribArray(mPageProgram.mGrid);
+        GLES20.glBindBuffer(GLES20.GL_ELEMENT_ARRAY_BUFFER, 0);
+        GLES20.glBindBuffer(GLES20.GL_ARRAY_BUFFER, 0);
+    }
+
+    /**
+     * Draws drop shadow cast behind the curl or self shadow cast over the
+     * page.
+     */
+    public void drawShadow(boolean selfShadow) {
+        flushBatch();
+        mShadowProgram.use();
+        GLES20.glUniform1f(mShadowSelfShadow, selfShadow ? 1f : 0f);
+
+        GLES20.glBindBuffer(GLES20.GL_ARRAY_BUFFER, mBufferIds[2]);
+        GLES20.glEnableVertexAttribArray(mShadowProgram.mGrid);
+        GLES20.glEnableVertexAttribArray(mShadowOuter);
+        GLES20.glVertexAttribPointer(mShadowProgram.mGrid, 2, GLES20.GL_FLOAT,
+                false, 3 * 4, 0);
+        GLES20.glVertexAttribPointer(mShadowOuter, 1, GLES20.GL_FLOAT, false,
+                3 * 4, 2 * 4);
+        GLES20.glDrawArrays(GLES20.GL_TRIANGLE_STRIP, 0, mPerimeterVertexCount);
+        GLES20.glDisableVertexAttribArray(mShadowOuter);
+        GLES20.glDisableVertexAttribArray(mShadowProgram.mGrid);
+        GLES20.glBindBuffer(GLES20.GL_ARRAY_BUFFER, 0);
+    }
+
+    /**
+     * Returns true if meshes can be added into batch.
+     */
+    public boolean isBatching() {
+        return mBatchSize > 0;
+    }
+
+    /**
+     * Adds mesh with current curl values into batch, drawn with its shadows
+     * by flushBatch. Front and back facing parts are drawn from given atlas
+     * texture at given texture rects, texture matrix is as for drawPage.
+     * Batch is flushed first if it's full or uses another texture.
+     */
+    public void addToBatch(int textureId, RectF frontRect, RectF backRect,
+                           float[] texMatrix) {
+        if (mBatchCount == mBatchSize
+                || (mBatchCount > 0 && textureId != mBatchTextureId)) {
+            flushBatch();
+        }
+        mBatchTextureId = textureId;
+        int i = mBatchCount++ * 4;
+        float[][] v = mBatchValues;
+        set(v[0], i, mRect.left, mRect.top, mRect.right, mRect.bottom);
+        set(v[1], i, mCurlPosX, mCurlPosY, mCurlDirX, mCurlDirY);
+        set(v[2], i, texMatrix[0], texMatrix[1], texMatrix[3], texMatrix[4]);
+        set(v[3], i, texMatrix[6], texMatrix[7], mRadius, 0f);
+        set(v[4], i, frontRect.left, frontRect.top, frontRect.width(), frontRect.height());
+        set(v[5], i, backRect.left, backRect.top, backRect.width(), backRect.height());
+    }
+
+    /**
+     * Draws meshes added into batch so far with one draw call.
+     */
+    public void flushBatch() {
+        if (mBatchCount == 0) {
+            return;
+        }
+        mBatchProgram.use();
+        for (int i = 0; i < BATCH_UNIFORMS; ++i) {
+            GLES20.glUniform4fv(mBatchUniforms[i], mBatchCount, mBatchValues[i], 0);
+        }
+        GLES20.glActiveTexture(GLES20.GL_TEXTURE0);
+        GLES20.glBindTexture(GLES20.GL_TEXTURE_2D, mBatchTextureId);
+        GLES20.glUniform1i(mBatchTexture, 0);
+
+        int stride = BATCH_VERTEX_SIZE * 4;
+        GLES20.glBindBuffer(GLES20.GL_ARRAY_BUFFER, mBufferIds[3]);
+        GLES20.glEnableVertexAttribArray(mBatchProgram.mGrid);
+        GLES20.glEnableVertexAttribArray(mBatchSlot);
+        GLES20.glVertexAttribPointer(mBatchProgram.mGrid, 2, GLES20.GL_FLOAT, false,
+                stride, 0);
+        GLES20.glVertexAttribPointer(mBatchSlot, 3, GLES20.GL_FLOAT, false, stride, 2 * 4);
+        GLES20.glBindBuffer(GLES20.GL_ELEMENT_ARRAY_BUFFER, mBufferIds[4]);
+        GLES20.glDrawElements(GLES20.GL_TRIANGLES, mBatchIndexCount * mBatchCount,
+                GLES20.GL_UNSIGNED_SHORT, 0);
+        GLES20.glDisableVertexAttribArray(mBatchSlot);
+        GLES20.glDisableVertexAttribArray(mBatchProgram.mGrid);
+        GLES20.glBindBuffer(GLES20.GL_ELEMENT_ARRAY_BUFFER, 0);
+        GLES20.glBindBuffer(GLES20.GL_ARRAY_BUFFER, 0);
+        mBatchCount = 0;
+        ++mBatchDrawCallCount;
+    }
+
+    /**
+     * Returns number of batch draw calls issued since previous call.
+     */
+    public int takeBatchDrawCallCount() {
+        int count = mBatchDrawCallCount;
+        mBatchDrawCallCount = 0;
+        return count;
+    }
+
+    private static void set(float[] values, int index, float x, float y, float z, float w) {
+        values[index] = x;
+        values[index + 1] = y;
+        values[index + 2] = z;
+        values[index + 3] = w;
+    }
+
+    /**
+     * Returns number of vertices drawn by a drawPage call.
+     */
+    public int getPageVertexCount() {
+        return mGridIndexCount;
+    }
+
+    /**
+     * Returns number of vertices drawn by a drawShadow call.
+     */
+    public int getShadowVertexCount() {
+        return mPerimeterVertexCount;
+    }
+
+    /**
+     * Allocates direct buffer in native byte order.
+     */
+    private static ByteBuffer allocateDirect(int size) {
+        ByteBuffer buf = ByteBuffer.allocateDirect(size);
+        buf.order(ByteOrder.nativeOrder());
+        return buf;
+    }
+
+    /**
+     * Compiles shader of given type. Throws RuntimeException on failure.
+     */
+    private static int loadShader(int type, String source) {
+        int shader = GLES20.glCreateShader(type);
+        GLES20.glShaderSource(shader, source);
+        GLES20.glCompileShader(shader);
+        int[] status = new int[1];
+        GLES20.glGetShaderiv(shader, GLES20.GL_COMPILE_STATUS, status, 0);
+        if (status[0] == 0) {
+            String log = GLES20.glGetShaderInfoLog(shader);
+            GLES20.glDeleteShader(shader);
+            throw new RuntimeException("Compiling shader failed: " + log);
+        }
+        return shader;
+    }
+
+    /**
+     * Linked program with locations of the uniforms used by curl function.
+     */
+    private class Program {
+        private final int mHandle;
+        private final int mGrid;
+        private final int mMvpMatrixLoc;
+        private final int mRectLoc;
+        private final int mCurlPosLoc;
+        private final int mCurlDirLoc;
+        private final int mRadiusLoc;
+
+        public Program(String vertexSource, String fragmentSource) {
+            int vertexShader = loadShader(GLES20.GL_VERTEX_SHADER, vertexSource);
+            int fragmentShader = loadShader(GLES20.GL_FRAGMENT_SHADER, fragmentSource);
+            mHandle = GLES20.glCreateProgram();
+            GLES20.glAttachShader(mHandle, vertexShader);
+            GLES20.glAttachShader(mHandle, fragmentShader);
+            GLES20.glLinkProgram(mHandle);
+            // Shaders are released once program is.
+            GLES20.glDeleteShader(vertexShader);
+            GLES20.glDeleteShader(fragmentShader);
+            int[] status = new int[1];
+            GLES20.glGetProgramiv(mHandle, GLES20.GL_LINK_STATUS, status, 0);
+            if (status[0] == 0) {
+                String log = GLES20.glGetProgramInfoLog(mHandle);
+                GLES20.glDeleteProgram(mHandle);
+                throw new RuntimeException("Linking program failed: " + log);
+            }
+            mGrid = GLES20.glGetAttribLocation(mHandle, "aGrid");
+            mMvpMatrixLoc = getUniform("uMvpMatrix");
+            mRectLoc = getUniform("uRect");
+            mCurlPosLoc = getUniform("uCurlPos");
+            mCurlDirLoc = getUniform("uCurlDir");
+            mRadiusLoc = getUniform("uRadius");
+        }
+
+        public int getUniform(String name) {
+            return GLES20.glGetUniformLocation(mHandle, name);
+        }
+
+        /**
+         * Activates program and sets current curl uniform values.
+         */
+        public void use() {
+            GLES20.glUseProgram(mHandle);
+            GLES20.glUniformMatrix4fv(mMvpMatrixLoc, 1, false, mMvpMatrix, 0);
+            GLES20.glUniform4f(mRectLoc, mRect.left, mRect.top, mRect.right,
+                    mRect.bottom);
+            GLES20.glUniform2f(mCurlPosLoc, mCurlPosX, mCurlPosY);
+            GLES20.glUniform2f(mCurlDirLoc, mCurlDirX, mCurlDirY);
+            GLES20.glUniform1f(mRadiusLoc, mRadius);
+        }
+    }
+}
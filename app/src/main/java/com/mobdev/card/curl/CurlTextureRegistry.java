@@ -0,0 +1,884 @@
+/**
+ * Copyright (c) 2018 mobdev313. Allright reserved.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package com.mobdev.card.curl;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.HashMap;
+
+import javax.microedition.khronos.opengles.GL10;
+
+import android.graphics.Bitmap;
+import android.graphics.Canvas;
+import android.graphics.RectF;
+import android.opengl.ETC1;
+import android.opengl.ETC1Util;
+import android.opengl.GLUtils;
+
+/**
+ * Reference counted page textures shared by all meshes of a renderer.
+ * Textures are keyed by their source, e.g drawable, orientation and side, so
+ * meshes showing the same page share the same texture and swapping meshes
+ * moves texture references only. Textures no longer referenced are kept for
+ * a while in case they are needed again.
+ * <p>
+ * If atlas is enabled, textures are placed into equally sized cells of one
+ * atlas texture whenever they fit, which lets CurlBatch draw many meshes at
+ * once. Shadow gradient is kept in a band at the bottom of atlas. Texture
+ * names are per GL context, so registry can't be shared between views. Not
+ * thread safe, all methods should be called on GL thread.
+ * <p>
+ * Storage of removed textures is reused for new ones of the same size and
+ * format, which are then uploaded with texSubImage2D instead of allocating
+ * storage again. On low memory devices bitmaps can be uploaded in 16 bit
+ * formats, see setTextureFormat.
+ */
+public class CurlTextureRegistry {
+
+    // Atlas is never made bigger than this even if GL allows it.
+    private static final int MAX_ATLAS_SIZE = 2048;
+    // Rows reserved for shadow gradient at the bottom of atlas.
+    private static final int GRADIENT_ROWS = 4;
+    // Number of textures without references kept for reuse.
+    private static final int IDLE_TEXTURES = 4;
+
+    /** Bitmaps are uploaded in their own format. */
+    public static final int FORMAT_BITMAP = 0;
+    /**
+     * Bitmaps are uploaded in 16 bit formats, RGB 565 if opaque, RGBA 5551
+     * if only few pixels are partially transparent, e.g antialiased rounded
+     * corners of card faces, and RGBA 4444 otherwise. Atlas is RGBA 4444.
+     */
+    public static final int FORMAT_16_BIT = 1;
+
+    private final boolean mUseAtlas;
+    private final int mMaxCells;
+    private int mTextureFormat = FORMAT_BITMAP;
+    // Pixels packed for 16 bit uploads and a bitmap row read at a time,
+    // reused between uploads.
+    private ByteBuffer mPackBuffer;
+    private int[] mRowPixels = new int[0];
+
+    // Live textures and keyed ones by their key. Idle textures are ordered
+    // from least recently released.
+    private final ArrayList<Texture> mTextures = new ArrayList<Texture>();
+    private final HashMap<Object, Texture> mKeyedTextures = new HashMap<Object, Texture>();
+    private final ArrayList<Texture> mIdleTextures = new ArrayList<Texture>();
+    // Removed textures whose names are waiting for deleteReleased. Their
+    // storage can be reused until then.
+    private final ArrayList<Texture> mReleased = new ArrayList<Texture>();
+    // Increased once GL context is lost, older textures are ignored.
+    private int mGeneration;
+    // Increased on each deleteReleased call, which is made once per frame.
+    private int mFrame;
+    // Bytes of texture storage currently allocated, atlas included.
+    private int mTextureBytes;
+    // Bytes of texture data uploaded since registry was created.
+    private long mUploadedBytes;
+
+    // Atlas texture and layout.
+    private int[] mAtlasIds = null;
+    private int mAtlasWidth, mAtlasHeight;
+    private int mCellWidth, mCellHeight;
+    private int mCellColumns;
+    private Texture[] mCells = new Texture[0];
+    // Cells atlas should have room for and cells it was laid out for.
+    private int mWantedCells;
+    private int mAtlasCells;
+    // Type atlas was allocated with, see getAtlasType.
+    private int mAtlasType;
+    private Texture mShadowGradient;
+
+    /**
+     * Constructor for registry placing at most maxCells textures into atlas,
+     * atlas is not used if useAtlas is false.
+     */
+    public CurlTextureRegistry(boolean useAtlas, int maxCells) {
+        mUseAtlas = useAtlas;
+        mMaxCells = maxCells;
+        mWantedCells = maxCells;
+    }
+
+    /**
+     * Sets number of textures atlas should have room for, e.g front and back
+     * of each mesh drawn, at most maxCells given to constructor. Atlas is
+     * laid out again for it once no texture in atlas is in use, so storage
+     * follows the meshes actually drawn instead of being allocated for
+     * maxCells up front.
+     */
+    public void setAtlasCells(int cells) {
+        mWantedCells = Math.max(1, Math.min(cells, mMaxCells));
+    }
+
+    /**
+     * Sets format bitmaps are uploaded in, FORMAT_BITMAP or FORMAT_16_BIT.
+     * Applies to textures registered afterwards, atlas follows the format
+     * once it's laid out again.
+     */
+    public void setTextureFormat(int textureFormat) {
+        mTextureFormat = textureFormat;
+    }
+
+    /**
+     * Returns true if there is a texture registered for given key. Once true
+     * it remains so until the next texture is released, and its storage is
+     * not taken for reuse until the frame drawn next, so that pages can be
+     * set to use it by key.
+     */
+    public boolean contains(Object key) {
+        Texture texture = key != null ? mKeyedTextures.get(key) : null;
+        if (texture == null) {
+            return false;
+        }
+        // Frame counter is increased by deleteReleased before drawing.
+        texture.mPinnedFrame = mFrame + 1;
+        return true;
+    }
+
+    /**
+     * Returns texture registered for given key with its reference count
+     * increased, or null if there is none.
+     */
+    public Texture acquire(Object key) {
+        Texture texture = key != null ? mKeyedTextures.get(key) : null;
+        if (texture != null) {
+            if (texture.mRefs++ == 0) {
+                mIdleTextures.remove(texture);
+            }
+        }
+        return texture;
+    }
+
+    /**
+     * Uploads bitmap area given in texture rect and registers it for given
+     * key, which may be null for textures not to be shared. Returned texture
+     * has reference count of one. Shared bitmap is owned by caller and can
+     * hold several textures, it's uploaded once and only texture coordinates
+     * differ unless texture ends up in atlas.
+     */
+    public Texture register(GL10 gl, Object key, Bitmap bitmap, RectF textureRect,
+                            boolean shared) {
+        return register(gl, key, bitmap, textureRect, shared, null);
+    }
+
+    /**
+     * Registers texture replacing given one, which is released first so that
+     * its storage can be reused if nothing else uses it, see takeStorage.
+     */
+    public Texture register(GL10 gl, Object key, Bitmap bitmap, RectF textureRect,
+                            boolean shared, Texture replaced) {
+        Texture texture = acquire(key);
+        release(replaced);
+        if (texture != null) {
+            return texture;
+        }
+        texture = new Texture(key, mGeneration);
+        texture.mRect.set(textureRect);
+        texture.mRefs = 1;
+
+        int srcX = Math.round(bitmap.getWidth() * textureRect.left);
+        int srcY = Math.round(bitmap.getHeight() * textureRect.top);
+        int width = Math.round(bitmap.getWidth() * textureRect.right) - srcX;
+        int height = Math.round(bitmap.getHeight() * textureRect.bottom) - srcY;
+        int cell = mUseAtlas ? obtainCell(gl, width, height) : -1;
+        if (cell >= 0) {
+            int x = (cell % mCellColumns) * mCellWidth;
+            int y = (cell / mCellColumns) * mCellHeight;
+            // Only used area of bitmap is copied into atlas.
+            Bitmap region = bitmap;
+            if (width != bitmap.getWidth() || height != bitmap.getHeight()) {
+                region = crop(bitmap, srcX, srcY, width, height);
+            }
+            gl.glBindTexture(GL10.GL_TEXTURE_2D, mAtlasIds[0]);
+            if (mAtlasType == GL10.GL_UNSIGNED_BYTE) {
+                GLUtils.texSubImage2D(GL10.GL_TEXTURE_2D, 0, x, y, region);
+                mUploadedBytes += region.getRowBytes() * region.getHeight();
+            } else {
+                upload(gl, region, x, y, GL10.GL_RGBA, mAtlasType, true);
+            }
+            if (region != bitmap) {
+                BitmapPool.getInstance().put(region);
+            }
+            mCells[cell] = texture;
+            texture.mCell = cell;
+            texture.mTextureId = mAtlasIds[0];
+            texture.mOffsetS = CurlMesh.TEXCOORD_SCALE * (x - srcX) / mAtlasWidth;
+            texture.mOffsetT = CurlMesh.TEXCOORD_SCALE * (y - srcY) / mAtlasHeight;
+            texture.mScaleS = (float) bitmap.getWidth() / mAtlasWidth;
+            texture.mScaleT = (float) bitmap.getHeight() / mAtlasHeight;
+        } else {
+            Texture storage = shared ? findShared(bitmap) : null;
+            int format = storage != null ? storage.mFormat : GLUtils.getInternalFormat(bitmap);
+            int type = storage != null ? storage.mType : GLUtils.getType(bitmap);
+            if (storage == null && mTextureFormat == FORMAT_16_BIT
+                    && type == GL10.GL_UNSIGNED_BYTE && format != GL10.GL_ALPHA) {
+                type = getPackedType(bitmap);
+                format = type == GL10.GL_UNSIGNED_SHORT_5_6_5 ? GL10.GL_RGB : GL10.GL_RGBA;
+            }
+            if (storage == null) {
+                storage = takeStorage(bitmap.getWidth(), bitmap.getHeight(), format, type);
+                if (storage != null) {
+                    gl.glBindTexture(GL10.GL_TEXTURE_2D, storage.mTextureId);
+                    upload(gl, bitmap, 0, 0, format, type, true);
+                }
+            }
+            int bytes = bitmap.getRowBytes() * bitmap.getHeight();
+            if (type != GLUtils.getType(bitmap)) {
+                bytes = bitmap.getWidth() * bitmap.getHeight() * 2;
+            }
+            if (storage != null) {
+                texture.mTextureId = storage.mTextureId;
+            } else {
+                texture.mTextureId = createTexture(gl);
+                upload(gl, bitmap, 0, 0, format, type, false);
+                mTextureBytes += bytes;
+            }
+            texture.mWidth = bitmap.getWidth();
+            texture.mHeight = bitmap.getHeight();
+            texture.mBytes = bytes;
+            texture.mFormat = format;
+            texture.mType = type;
+            texture.mShared = shared ? bitmap : null;
+        }
+
+        mTextures.add(texture);
+        if (key != null) {
+            mKeyedTextures.put(key, texture);
+        }
+        return texture;
+    }
+
+    /**
+     * Uploads ETC1 compressed texture and registers it for given key, see
+     * register. Compressed textures are never placed into atlas and their
+     * storage is not reused. Alpha texture name is given in mAlphaId.
+     */
+    public Texture registerEtc1(GL10 gl, Object key, CurlEtc1Texture etc1,
+                                RectF textureRect, Texture replaced) {
+        Texture texture = acquire(key);
+        release(replaced);
+        if (texture != null) {
+            return texture;
+        }
+        texture = new Texture(key, mGeneration);
+        texture.mRect.set(textureRect);
+        texture.mRefs = 1;
+        texture.mTextureId = createTexture(gl);
+        uploadEtc1(gl, etc1.mColor);
+        if (etc1.mAlpha != null) {
+            texture.mAlphaId = createTexture(gl);
+            uploadEtc1(gl, etc1.mAlpha);
+        }
+        texture.mWidth = etc1.mColor.getWidth();
+        texture.mHeight = etc1.mColor.getHeight();
+        texture.mFormat = ETC1.ETC1_RGB8_OES;
+        texture.mBytes = etc1.getByteCount();
+        mTextureBytes += texture.mBytes;
+        mUploadedBytes += texture.mBytes;
+
+        mTextures.add(texture);
+        if (key != null) {
+            mKeyedTextures.put(key, texture);
+        }
+        return texture;
+    }
+
+    /**
+     * Uploads uncompressed texels and registers them for given key, see
+     * register. Texels are uploaded as they are into storage padded to the
+     * size CurlPage.getStorageSize gives, reusing storage of a removed
+     * texture if there is one of that size. Raw textures are never placed
+     * into atlas nor converted into 16 bit formats.
+     */
+    public Texture registerRaw(GL10 gl, Object key, CurlRawTexture raw,
+                               RectF textureRect, Texture replaced) {
+        Texture texture = acquire(key);
+        release(replaced);
+        if (texture != null) {
+            return texture;
+        }
+        texture = new Texture(key, mGeneration);
+        texture.mRect.set(textureRect);
+        texture.mRefs = 1;
+
+        int width = CurlPage.getStorageSize(raw.mWidth);
+        int height = CurlPage.getStorageSize(raw.mHeight);
+        boolean padded = width != raw.mWidth || height != raw.mHeight;
+        Texture storage = takeStorage(width, height, GL10.GL_RGBA, GL10.GL_UNSIGNED_BYTE);
+        raw.mData.position(0);
+        if (storage != null) {
+            texture.mTextureId = storage.mTextureId;
+            gl.glBindTexture(GL10.GL_TEXTURE_2D, texture.mTextureId);
+        } else {
+            texture.mTextureId = createTexture(gl);
+            gl.glTexImage2D(GL10.GL_TEXTURE_2D, 0, GL10.GL_RGBA, width, height, 0,
+                    GL10.GL_RGBA, GL10.GL_UNSIGNED_BYTE, padded ? null : raw.mData);
+            mTextureBytes += width * height * CurlRawTexture.BYTES_PER_TEXEL;
+        }
+        if (storage != null || padded) {
+            gl.glTexSubImage2D(GL10.GL_TEXTURE_2D, 0, 0, 0, raw.mWidth, raw.mHeight,
+                    GL10.GL_RGBA, GL10.GL_UNSIGNED_BYTE, raw.mData);
+        }
+        mUploadedBytes += raw.getByteCount();
+        texture.mWidth = width;
+        texture.mHeight = height;
+        texture.mBytes = width * height * CurlRawTexture.BYTES_PER_TEXEL;
+        texture.mFormat = GL10.GL_RGBA;
+        texture.mType = GL10.GL_UNSIGNED_BYTE;
+
+        mTextures.add(texture);
+        if (key != null) {
+            mKeyedTextures.put(key, texture);
+        }
+        return texture;
+    }
+
+    /**
+     * Returns format bitmaps are uploaded in, see setTextureFormat.
+     */
+    public int getTextureFormat() {
+        return mTextureFormat;
+    }
+
+    /**
+     * Decreases texture reference count. Keyed textures are kept for reuse
+     * until IDLE_TEXTURES newer ones have been released, others are deleted
+     * at once. Names are deleted on next deleteReleased call.
+     */
+    public void release(Texture texture) {
+        if (texture == null || texture.mGeneration != mGeneration || --texture.mRefs > 0) {
+            return;
+        }
+        if (texture.mKey == null) {
+            remove(texture);
+            return;
+        }
+        mIdleTextures.add(texture);
+        if (mIdleTextures.size() > IDLE_TEXTURES) {
+            remove(mIdleTextures.remove(0));
+        }
+    }
+
+    /**
+     * Deletes names of textures removed since last call. Should be called
+     * once per frame before drawing.
+     */
+    public void deleteReleased(GL10 gl) {
+        ++mFrame;
+        if (mReleased.isEmpty()) {
+            return;
+        }
+        int[] ids = new int[mReleased.size() * 2];
+        int count = 0;
+        for (Texture t : mReleased) {
+            ids[count++] = t.mTextureId;
+            if (t.mAlphaId != 0) {
+                ids[count++] = t.mAlphaId;
+            }
+            mTextureBytes -= t.mBytes;
+        }
+        gl.glDeleteTextures(count, ids, 0);
+        mReleased.clear();
+    }
+
+    /**
+     * Returns bytes of texture storage allocated through this registry,
+     * atlas included. Power of two padded textures count padding too.
+     */
+    public int getTextureBytes() {
+        return mTextureBytes;
+    }
+
+    /**
+     * Returns bytes of texture data uploaded through this registry since it
+     * was created, padding excluded. Never decreases, so bytes uploaded
+     * between two calls are their difference.
+     */
+    public long getUploadedBytes() {
+        return mUploadedBytes;
+    }
+
+    /**
+     * Returns true if texture is placed into atlas.
+     */
+    public boolean isInAtlas(Texture texture) {
+        return texture != null && texture.mCell >= 0 && texture.mGeneration == mGeneration;
+    }
+
+    /**
+     * Returns atlas texture name, zero if there is no atlas.
+     */
+    public int getAtlasId() {
+        return mAtlasIds != null ? mAtlasIds[0] : 0;
+    }
+
+    /**
+     * Returns mapping of shadow gradient band in atlas, null if there is no
+     * atlas. Short gradient coordinates map into texel centers of the band.
+     */
+    public Texture getShadowGradient() {
+        return mAtlasIds != null ? mShadowGradient : null;
+    }
+
+    /**
+     * Forgets all textures without deleting them. Should be called once GL
+     * context is re-created. Textures handed out earlier can still be
+     * released, which does nothing.
+     */
+    public void reset() {
+        ++mGeneration;
+        mTextures.clear();
+        mKeyedTextures.clear();
+        mIdleTextures.clear();
+        mReleased.clear();
+        mTextureBytes = 0;
+        mAtlasIds = null;
+        mCellWidth = mCellHeight = 0;
+        mCells = new Texture[0];
+    }
+
+    /**
+     * Removes texture from registry and queues its name for deletion unless
+     * it's atlas or still used by another texture.
+     */
+    private void remove(Texture texture) {
+        mTextures.remove(texture);
+        if (texture.mKey != null && mKeyedTextures.get(texture.mKey) == texture) {
+            mKeyedTextures.remove(texture.mKey);
+        }
+        texture.mGeneration = -1;
+        if (texture.mCell >= 0) {
+            mCells[texture.mCell] = null;
+            return;
+        }
+        for (Texture t : mTextures) {
+            if (t.mTextureId == texture.mTextureId) {
+                return;
+            }
+        }
+        mReleased.add(texture);
+    }
+
+    /**
+     * Returns texture shared bitmap has been uploaded into, null if there is
+     * none.
+     */
+    private Texture findShared(Bitmap shared) {
+        for (Texture t : mTextures) {
+            if (t.mShared == shared) {
+                return t;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Takes texture with storage matching given size and format for reuse.
+     * Returns null if there is none. Removed textures waiting for deletion are taken first, then idle
+     * ones least recently released first. Taken idle texture is removed from
+     * registry, so page textures which are all keyed get their storage
+     * reused once pushed out by new ones, e.g when a card is dealt again.
+     */
+    private Texture takeStorage(int width, int height, int format, int type) {
+        // Compressed formats never match as they are not bitmap formats.
+        for (int i = 0; i < mReleased.size(); ++i) {
+            Texture t = mReleased.get(i);
+            if (t.mWidth == width && t.mHeight == height
+                    && t.mFormat == format && t.mType == type) {
+                return mReleased.remove(i);
+            }
+        }
+        for (int i = 0; i < mIdleTextures.size(); ++i) {
+            Texture t = mIdleTextures.get(i);
+            if (t.mCell < 0 && t.mWidth == width && t.mHeight == height
+                    && t.mFormat == format && t.mType == type
+                    && t.mPinnedFrame < mFrame && !isStorageShared(t)) {
+                mIdleTextures.remove(i);
+                mTextures.remove(t);
+                if (mKeyedTextures.get(t.mKey) == t) {
+                    mKeyedTextures.remove(t.mKey);
+                }
+                t.mGeneration = -1;
+                return t;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Returns true if another registered texture uses storage of given one,
+     * as textures of a shared bitmap do.
+     */
+    private boolean isStorageShared(Texture texture) {
+        for (Texture t : mTextures) {
+            if (t != texture && t.mTextureId == texture.mTextureId) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Copies area of bitmap into a bitmap from BitmapPool.
+     */
+    private static Bitmap crop(Bitmap bitmap, int x, int y, int width, int height) {
+        Bitmap.Config config = bitmap.getConfig() != null
+                ? bitmap.getConfig() : Bitmap.Config.ARGB_8888;
+        Bitmap region = BitmapPool.getInstance().get(width, height, config);
+        new Canvas(region).drawBitmap(bitmap, -x, -y, null);
+        return region;
+    }
+
+    /**
+     * Uploads compressed texture into bound texture.
+     */
+    private static void uploadEtc1(GL10 gl, ETC1Util.ETC1Texture etc1) {
+        ByteBuffer data = etc1.getData();
+        gl.glCompressedTexImage2D(GL10.GL_TEXTURE_2D, 0, ETC1.ETC1_RGB8_OES,
+                etc1.getWidth(), etc1.getHeight(), 0, data.capacity(), data);
+    }
+
+    /**
+     * Returns 16 bit type bitmap is packed into, GL_UNSIGNED_SHORT_5_6_5 if
+     * it's opaque, GL_UNSIGNED_SHORT_5_5_5_1 if at most 1/64 of its pixels
+     * are partially transparent, which card faces with antialiased rounded
+     * corners are, and GL_UNSIGNED_SHORT_4_4_4_4 otherwise.
+     */
+    private int getPackedType(Bitmap bitmap) {
+        if (!bitmap.hasAlpha()) {
+            return GL10.GL_UNSIGNED_SHORT_5_6_5;
+        }
+        int width = bitmap.getWidth();
+        int height = bitmap.getHeight();
+        int maxPartial = width * height / 64;
+        int partial = 0;
+        boolean opaque = true;
+        int[] row = getRowPixels(width);
+        for (int y = 0; y < height; ++y) {
+            bitmap.getPixels(row, 0, width, 0, y, width, 1);
+            for (int x = 0; x < width; ++x) {
+                int a = row[x] >>> 24;
+                if (a != 0xFF) {
+                    opaque = false;
+                    if (a != 0 && ++partial > maxPartial) {
+                        return GL10.GL_UNSIGNED_SHORT_4_4_4_4;
+                    }
+                }
+            }
+        }
+        return opaque ? GL10.GL_UNSIGNED_SHORT_5_6_5 : GL10.GL_UNSIGNED_SHORT_5_5_5_1;
+    }
+
+    /**
+     * Uploads bitmap into bound texture in given format, at given position
+     * with texSubImage2D if sub is true. Bitmaps are packed into 16 bit
+     * pixels first unless uploaded in their own format.
+     */
+    private void upload(GL10 gl, Bitmap bitmap, int x, int y, int format, int type,
+                        boolean sub) {
+        if (type == GLUtils.getType(bitmap)) {
+            mUploadedBytes += bitmap.getRowBytes() * bitmap.getHeight();
+            if (sub) {
+                GLUtils.texSubImage2D(GL10.GL_TEXTURE_2D, 0, x, y, bitmap);
+            } else {
+                GLUtils.texImage2D(GL10.GL_TEXTURE_2D, 0, bitmap, 0);
+            }
+            return;
+        }
+        int width = bitmap.getWidth();
+        int height = bitmap.getHeight();
+        ByteBuffer data = pack(bitmap, type);
+        mUploadedBytes += data.limit();
+        if (sub) {
+            gl.glTexSubImage2D(GL10.GL_TEXTURE_2D, 0, x, y, width, height, format, type, data);
+        } else {
+            gl.glTexImage2D(GL10.GL_TEXTURE_2D, 0, format, width, height, 0, format, type,
+                    data);
+        }
+    }
+
+    /**
+     * Packs bitmap pixels into shorts of given 16 bit type, the buffer is
+     * reused by the next call. Colors are not premultiplied by alpha, which
+     * suits the SRC_ALPHA blending pages are drawn with.
+     */
+    private ByteBuffer pack(Bitmap bitmap, int type) {
+        int width = bitmap.getWidth();
+        int height = bitmap.getHeight();
+        int pixels = width * height;
+        if (mPackBuffer == null || mPackBuffer.capacity() < pixels * 2) {
+            mPackBuffer = ByteBuffer.allocateDirect(pixels * 2);
+            mPackBuffer.order(ByteOrder.nativeOrder());
+        }
+        mPackBuffer.clear();
+        int[] row = getRowPixels(width);
+        for (int y = 0; y < height; ++y) {
+            bitmap.getPixels(row, 0, width, 0, y, width, 1);
+            for (int x = 0; x < width; ++x) {
+                mPackBuffer.putShort(packPixel(row[x], type));
+            }
+        }
+        mPackBuffer.flip();
+        return mPackBuffer;
+    }
+
+    /**
+     * Packs ARGB color into a pixel of given 16 bit type. Alpha bit of 5551
+     * is set for alpha of at least half.
+     */
+    static short packPixel(int c, int type) {
+        switch (type) {
+            case GL10.GL_UNSIGNED_SHORT_5_5_5_1:
+                return (short) (((c >> 8) & 0xF800) | ((c >> 5) & 0x07C0)
+                        | ((c >> 2) & 0x003E) | (c >>> 31));
+            case GL10.GL_UNSIGNED_SHORT_4_4_4_4:
+                return (short) (((c >> 8) & 0xF000) | ((c >> 4) & 0x0F00)
+                        | (c & 0x00F0) | (c >>> 28));
+            default:
+                return (short) (((c >> 8) & 0xF800) | ((c >> 5) & 0x07E0)
+                        | ((c >> 3) & 0x001F));
+        }
+    }
+
+    /**
+     * Returns shadow gradient packed into RGBA 4444 for 16 bit atlas.
+     */
+    private static ByteBuffer packShadowGradient() {
+        ByteBuffer src = CurlMesh.SHADOW_GRADIENT;
+        ByteBuffer buf = ByteBuffer.allocateDirect(CurlMesh.SHADOW_GRADIENT_SIZE * 2);
+        buf.order(ByteOrder.nativeOrder());
+        for (int i = 0; i < CurlMesh.SHADOW_GRADIENT_SIZE; ++i) {
+            int r = src.get(i * 4) & 0xFF;
+            int g = src.get(i * 4 + 1) & 0xFF;
+            int b = src.get(i * 4 + 2) & 0xFF;
+            int a = src.get(i * 4 + 3) & 0xFF;
+            buf.putShort(packPixel((a << 24) | (r << 16) | (g << 8) | b,
+                    GL10.GL_UNSIGNED_SHORT_4_4_4_4));
+        }
+        buf.position(0);
+        return buf;
+    }
+
+    /**
+     * Returns array for reading a bitmap row of given width, reused by the
+     * next call.
+     */
+    private int[] getRowPixels(int width) {
+        if (mRowPixels.length < width) {
+            mRowPixels = new int[width];
+        }
+        return mRowPixels;
+    }
+
+    /**
+     * Generates and binds new texture name with page texture parameters.
+     */
+    private static int createTexture(GL10 gl) {
+        int[] ids = new int[1];
+        gl.glGenTextures(1, ids, 0);
+        gl.glBindTexture(GL10.GL_TEXTURE_2D, ids[0]);
+        // Nearest filtering keeps atlas cells from bleeding into each other.
+        gl.glTexParameterf(GL10.GL_TEXTURE_2D,
+                GL10.GL_TEXTURE_MIN_FILTER, GL10.GL_NEAREST);
+        gl.glTexParameterf(GL10.GL_TEXTURE_2D,
+                GL10.GL_TEXTURE_MAG_FILTER, GL10.GL_NEAREST);
+        gl.glTexParameterf(GL10.GL_TEXTURE_2D, GL10.GL_TEXTURE_WRAP_S,
+                GL10.GL_CLAMP_TO_EDGE);
+        gl.glTexParameterf(GL10.GL_TEXTURE_2D, GL10.GL_TEXTURE_WRAP_T,
+                GL10.GL_CLAMP_TO_EDGE);
+        return ids[0];
+    }
+
+    /**
+     * Returns free atlas cell for texture of given size, -1 if it doesn't fit
+     * into atlas. Idle textures are dropped from atlas if there is no room
+     * otherwise. Atlas is laid out again for bigger cells, or for the number
+     * of cells wanted or texture format once they change, when no texture in
+     * atlas is in use.
+     */
+    private int obtainCell(GL10 gl, int width, int height) {
+        if (mAtlasIds == null || width > mCellWidth || height > mCellHeight) {
+            if (!clearAtlas()) {
+                return -1;
+            }
+            layout(gl, Math.max(width, mCellWidth), Math.max(height, mCellHeight));
+        } else if ((mAtlasCells != mWantedCells || mAtlasType != getAtlasType())
+                && clearAtlas()) {
+            layout(gl, mCellWidth, mCellHeight);
+        }
+        for (int i = 0; i < mCells.length; ++i) {
+            if (mCells[i] == null) {
+                return i;
+            }
+        }
+        for (int i = 0; i < mIdleTextures.size(); ++i) {
+            Texture idle = mIdleTextures.get(i);
+            if (idle.mCell >= 0) {
+                int cell = idle.mCell;
+                remove(mIdleTextures.remove(i));
+                return cell;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Removes idle textures from atlas, returns false leaving them in place
+     * if a texture in atlas is still in use or pinned by contains.
+     */
+    private boolean clearAtlas() {
+        for (Texture t : mCells) {
+            if (t != null && (t.mRefs > 0 || t.mPinnedFrame >= mFrame)) {
+                return false;
+            }
+        }
+        for (int i = mIdleTextures.size() - 1; i >= 0; --i) {
+            if (mIdleTextures.get(i).mCell >= 0) {
+                remove(mIdleTextures.remove(i));
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Lays out atlas for cells of given size and (re)allocates atlas
+     * texture. Atlas is grown in powers of two until mWantedCells fit or
+     * maximum size is reached. Atlas should be empty.
+     */
+    private void layout(GL10 gl, int cellWidth, int cellHeight) {
+        int[] maxSize = new int[1];
+        gl.glGetIntegerv(GL10.GL_MAX_TEXTURE_SIZE, maxSize, 0);
+        int max = maxSize[0] > 0 ? Math.min(maxSize[0], MAX_ATLAS_SIZE) : MAX_ATLAS_SIZE;
+
+        int width = CurlMesh.SHADOW_GRADIENT_SIZE;
+        int height = GRADIENT_ROWS;
+        while (width < cellWidth && width * 2 <= max) {
+            width *= 2;
+        }
+        while (height < cellHeight + GRADIENT_ROWS && height * 2 <= max) {
+            height *= 2;
+        }
+        while (getCellCount(width, height, cellWidth, cellHeight) < mWantedCells) {
+            if (width <= height && width * 2 <= max) {
+                width *= 2;
+            } else if (height * 2 <= max) {
+                height *= 2;
+            } else if (width * 2 <= max) {
+                width *= 2;
+            } else {
+                break;
+            }
+        }
+
+        // Atlas is RGBA, storage is replaced as a whole.
+        int type = getAtlasType();
+        if (mAtlasIds != null) {
+            mTextureBytes -= mAtlasWidth * mAtlasHeight * getTexelBytes(mAtlasType);
+        }
+        mTextureBytes += width * height * getTexelBytes(type);
+        mAtlasType = type;
+        mAtlasWidth = width;
+        mAtlasHeight = height;
+        mCellWidth = cellWidth;
+        mCellHeight = cellHeight;
+        mCellColumns = Math.max(1, width / cellWidth);
+        mCells = new Texture[Math.min(getCellCount(width, height, cellWidth, cellHeight),
+                mWantedCells)];
+        mAtlasCells = mWantedCells;
+
+        if (mAtlasIds == null) {
+            mAtlasIds = new int[] { createTexture(gl) };
+        }
+        gl.glBindTexture(GL10.GL_TEXTURE_2D, mAtlasIds[0]);
+        gl.glTexImage2D(GL10.GL_TEXTURE_2D, 0, GL10.GL_RGBA, width, height, 0,
+                GL10.GL_RGBA, type, null);
+        ByteBuffer gradient = CurlMesh.SHADOW_GRADIENT;
+        if (type != GL10.GL_UNSIGNED_BYTE) {
+            gradient = packShadowGradient();
+        }
+        for (int i = 0; i < GRADIENT_ROWS; ++i) {
+            gl.glTexSubImage2D(GL10.GL_TEXTURE_2D, 0, 0, height - GRADIENT_ROWS + i,
+                    CurlMesh.SHADOW_GRADIENT_SIZE, 1, GL10.GL_RGBA, type, gradient);
+        }
+
+        // Shadow t coordinate is always zero and maps into the band center.
+        mShadowGradient = new Texture(null, mGeneration);
+        mShadowGradient.mTextureId = mAtlasIds[0];
+        mShadowGradient.mOffsetS = CurlMesh.TEXCOORD_SCALE * .5f / width;
+        mShadowGradient.mOffsetT = CurlMesh.TEXCOORD_SCALE
+                * (height - GRADIENT_ROWS / 2f) / height;
+        mShadowGradient.mScaleS = (CurlMesh.SHADOW_GRADIENT_SIZE - 1f) / width;
+        mShadowGradient.mScaleT = 0f;
+    }
+
+    /**
+     * Returns type atlas is allocated with for current texture format.
+     * 16 bit atlas is RGBA 4444 as shadow gradient in it needs alpha.
+     */
+    private int getAtlasType() {
+        return mTextureFormat == FORMAT_16_BIT ? GL10.GL_UNSIGNED_SHORT_4_4_4_4
+                : GL10.GL_UNSIGNED_BYTE;
+    }
+
+    private static int getTexelBytes(int type) {
+        return type == GL10.GL_UNSIGNED_BYTE ? 4 : 2;
+    }
+
+    private static int getCellCount(int width, int height, int cellWidth, int cellHeight) {
+        if (cellWidth <= 0 || cellHeight <= 0) {
+            return 0;
+        }
+        return (width / cellWidth) * ((height - GRADIENT_ROWS) / cellHeight);
+    }
+
+    /**
+     * Registered texture. Short texture coordinates s, t generated for used
+     * area rect map into texture at (offsetS + s * scaleS, offsetT + t *
+     * scaleT), given in short texture coordinate units too.
+     */
+    public static class Texture {
+        public final Object mKey;
+        public final RectF mRect = new RectF();
+        public int mTextureId;
+        // Name of alpha texture of ETC1 compressed texture, zero if none.
+        public int mAlphaId;
+        public float mOffsetS, mOffsetT;
+        public float mScaleS = 1f, mScaleT = 1f;
+
+        private int mCell = -1;
+        private int mGeneration;
+        // Allocated storage of textures not in atlas.
+        private int mWidth, mHeight;
+        private int mFormat, mType;
+        private int mBytes;
+        private int mRefs;
+        private Bitmap mShared;
+        // Frame until which storage is not taken for reuse, see contains.
+        private int mPinnedFrame = -1;
+
+        private Texture(Object key, int generation) {
+            mKey = key;
+            mGeneration = generation;
+        }
+    }
+}
@@ -21,12 +21,16 @@
  */
 package com.mobdev.card.curl;
 
+import android.app.ActivityManager;
 import android.content.Context;
+import android.content.pm.ConfigurationInfo;
 import android.graphics.PixelFormat;
 import android.graphics.PointF;
 import android.graphics.RectF;
 import android.opengl.GLSurfaceView;
+import android.os.Build;
 import android.util.AttributeSet;
+import android.view.Choreographer;
 import android.view.MotionEvent;
 import android.view.View;
 
@@ -40,27 +44,45 @@ public class CurlView extends GLSurfaceView implements View.OnTouchListener, Cur
     public static final int PORTRAITUPSIDEDOWN = 2;
     public static final int LANDSCAPELEFT = 3;
 
-    // Constants for mAnimationTargetEvent.
-    private static final int SET_CURL_TO_TOP = 1;
-    private static final int SET_CURL_TO_BOTTOM = 2;
+    // Latest vsync is used as frame time if it's at most this old.
+    private static final long MAX_VSYNC_AGE_NANOS = 2 * CurlAnimator.NOMINAL_FRAME_NANOS;
+    private static final long NANOS_PER_MILLI = 1000000L;
 
-    private static final float MAX_DEGREES = 90.f;
-    private static final float STEP_DEGREES = 3.f;
+    // Upper limit for curl splits, meshes allocate their buffers for this
+    // many and use less if it's enough for a smooth curl.
+    private static final int MAX_CURL_SPLITS = 32;
+
+    // Set to false for forcing OpenGL ES 1.x rendering even if 2.0 is
+    // supported.
+    private static final boolean USE_GLES20 = true;
+
+    // Capacity of touch sample queue drained once per frame.
+    private static final int TOUCH_QUEUE_CAPACITY = 64;
+
+    // Devices with memory class up to this many megabytes upload textures in
+    // 16 bit formats, as do devices reporting low RAM.
+    private static final int LOW_MEMORY_CLASS = 64;
 
     // remember some things for rotating
-    private boolean isRotating = false;		// flag to show rotating be doing.
+    private volatile boolean isRotating = false;		// flag to show rotating be doing.
 
     private long mAnimationDurationTime = 500;
-    private PointF mAnimationSource = new PointF();
-    private long mAnimationStartTime;
-    private PointF mAnimationTarget = new PointF();
-    private int mAnimationTargetEvent;
+    // Frame time in nanoseconds from animation clock.
+    private long mFrameTime;
+    // Curl, curled page slide and rotation snap, computed from frame time
+    // on GL thread.
+    private final CurlAnimator mAnimator =
+            new CurlAnimator(mAnimationDurationTime * NANOS_PER_MILLI);
+    private final VsyncClock mVsyncClock = new VsyncClock();
+    private volatile AnimationClock mAnimationClock = mVsyncClock;
 
     // Settings for rotate config
 
-    private boolean isCurled = false;
-    private boolean mAnimate = false;
-    private boolean curling = false;
+    // Flags below are changed on GL thread and read on UI thread for
+    // filtering touch events.
+    private volatile boolean isCurled = false;
+    private volatile boolean mAnimate = false;
+    private volatile boolean curling = false;
     //	private boolean isCurling = false;
     public int orientation = 0;
 
@@ -82,8 +104,18 @@ public class CurlView extends GLSurfaceView implements View.OnTouchListener, Cur
 
     private PointF mPointerPos = new PointF();
 
+    // Set on UI thread once a touch goes down where it starts a curl, until
+    // the touch ends. Keeps rotation gestures from starting under a curl
+    // before GL thread has handled the queued touch samples.
+    private boolean mTouchClaimed;
+    private final PointF mTouchPos = new PointF();
+
+    // Touch samples are queued on UI thread and handled on GL thread so
+    // that curl meshes are only ever modified on GL thread.
+    private final TouchQueue mTouchQueue = new TouchQueue(TOUCH_QUEUE_CAPACITY);
+
     private CurlRenderer mRenderer;
-    private PageProvider mPageProvider;
+    private volatile PageProvider mPageProvider;
     private SizeChangedObserver mSizeChangedObserver;
 
     private RotationGestureDetector gestureDetector;
@@ -137,10 +169,19 @@ public class CurlView extends GLSurfaceView implements View.OnTouchListener, Cur
         gestureDetector = new RotationGestureDetector();
         gestureDetector.setOnRotationListener(this);
 
-        mRenderer = new CurlRenderer(this);
+        boolean useGles20 = USE_GLES20 && isGles20Supported();
+        mRenderer = new CurlRenderer(this, useGles20);
+        // GL thread hasn't started yet, registry can be accessed here.
+        if (isLowMemoryDevice()) {
+            mRenderer.getTextureRegistry().setTextureFormat(
+                    CurlTextureRegistry.FORMAT_16_BIT);
+        }
 
         this.setZOrderOnTop(true);
         this.getHolder().setFormat(PixelFormat.TRANSLUCENT);
+        if (useGles20) {
+            setEGLContextClientVersion(2);
+        }
         this.setEGLConfigChooser(8, 8, 8, 8, 16, 0);
         setRenderer(mRenderer);
         setRenderMode(GLSurfaceView.RENDERMODE_WHEN_DIRTY);
@@ -148,44 +189,82 @@ public class CurlView extends GLSurfaceView implements View.OnTouchListener, Cur
         // Even though left and right pages are static we have to allocate room
         // for curl on them too as we are switching meshes. Another way would be
         // to swap texture ids only.
-        mPageTop = new CurlMesh(10);
-        mPageBottom = new CurlMesh(10);
-        mPageCurl = new CurlMesh(10);
+        mPageTop = new CurlMesh(MAX_CURL_SPLITS);
+        mPageBottom = new CurlMesh(MAX_CURL_SPLITS);
+        mPageCurl = new CurlMesh(MAX_CURL_SPLITS);
         mPageTop.setFlipTexture(true);
         mPageBottom.setFlipTexture(false);
         requestRender();
     }
 
+    /**
+     * Returns true if device supports OpenGL ES 2.0.
+     */
+    private boolean isGles20Supported() {
+        ActivityManager am = (ActivityManager) getContext().getSystemService(
+                Context.ACTIVITY_SERVICE);
+        ConfigurationInfo info = am != null ? am.getDeviceConfigurationInfo() : null;
+        return info != null && info.reqGlEsVersion >= 0x20000;
+    }
+
+    /**
+     * Returns true if device reports low RAM or has small memory class.
+     */
+    private boolean isLowMemoryDevice() {
+        ActivityManager am = (ActivityManager) getContext().getSystemService(
+                Context.ACTIVITY_SERVICE);
+        if (am == null) {
+            return false;
+        }
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.KITKAT && am.isLowRamDevice()) {
+            return true;
+        }
+        return am.getMemoryClass() <= LOW_MEMORY_CLASS;
+    }
+
     public void reset() {
-        isCurled = false;
-        orientation = PORTRAIT;
-        isRotating = false;
-        curling = false;
+        // Margins are computed on UI thread for the orientation reset to.
+        final RectF margins = getMargins(PORTRAIT);
+        queueEvent(new Runnable() {
+            @Override
+            public void run() {
+                isCurled = false;
+                orientation = PORTRAIT;
+                isRotating = false;
+                curling = false;
 
-        mAnimate = false;
-        mPageBitmapHeight = -1;
-        mPageBitmapWidth = -1;
-        mPointerPos.x = 0;
-        mPointerPos.y = 0;
+                mAnimate = false;
+                mAnimator.stopCurl();
+                mPageBitmapHeight = -1;
+                mPageBitmapWidth = -1;
+                mPointerPos.x = 0;
+                mPointerPos.y = 0;
 
-        mPageTop.reset();
-        mPageBottom.reset();
-        mPageCurl.reset();
-        mPageTop.setFlipTexture(true);
-        mPageBottom.setFlipTexture(false);
-        setMargins();
-        updatePages();
-        requestRender();
+                mPageTop.reset();
+                mPageBottom.reset();
+                mPageCurl.reset();
+                mPageTop.setFlipTexture(true);
+                mPageBottom.setFlipTexture(false);
+                if (margins != null) {
+                    mRenderer.setMargins(margins.left, margins.top, margins.right,
+                            margins.bottom);
+                }
+                updatePages();
+                requestRender();
+            }
+        });
     }
 
 
     @Override
     public void onDrawFrame() {
+        mFrameTime = mAnimationClock.getFrameTimeNanos();
+        handleTouchSamples();
+
         if (mAnimate) {
-            long currentTime = System.currentTimeMillis();
             // If animation is done.
-            if (currentTime >= mAnimationStartTime + mAnimationDurationTime) {
-                if (mAnimationTargetEvent == SET_CURL_TO_BOTTOM) {
+            if (mAnimator.isCurlFinished(mFrameTime)) {
+                if (mAnimator.getCurlTarget() == CurlAnimator.SET_CURL_TO_BOTTOM) {
                     // Switch curled page to right.
                     CurlMesh bottomside = mPageCurl;
                     CurlMesh curl = mPageBottom;
@@ -197,52 +276,57 @@ public class CurlView extends GLSurfaceView implements View.OnTouchListener, Cur
                     mPageBottom = bottomside;
                     curling = false;
                     mAnimate = false;
+                    mAnimator.stopCurl();
                     requestRender();
-                } else if (mAnimationTargetEvent == SET_CURL_TO_TOP) {
+                } else if (mAnimator.getCurlTarget() == CurlAnimator.SET_CURL_TO_TOP) {
                     finishCurling();
                 }
             } else {
-                mPointerPos.set(mAnimationSource);
-                float t = 1f - ((float) (currentTime - mAnimationStartTime) / mAnimationDurationTime);
-                t = 1f - (t * t * t * (3 - 2 * t));
-                mPointerPos.x += (mAnimationTarget.x - mAnimationSource.x) * t;
-                mPointerPos.y += (mAnimationTarget.y - mAnimationSource.y) * t;
+                mPointerPos.set(mAnimator.getCurlX(mFrameTime), mAnimator.getCurlY(mFrameTime));
                 updateCurlPos(mPointerPos);
             }
         }
 
         if (isRotating) {
-            float rotation = mRenderer.rotation;
-            float degree = Math.abs(rotation);
-            if (degree == 0 || degree >= MAX_DEGREES) {
+            if (!mAnimator.isRotating()) {
+                mAnimator.startRotation(mRenderer.rotation, mFrameTime);
+            }
+            if (mAnimator.isRotationFinished(mFrameTime)) {
                 isRotating = false;
+                mAnimator.stopRotation();
                 mRenderer.rotation = 0;
                 mSizeChangedObserver.onSizeChanged(this); //rotate completed
             } else {
-                if (degree < 45) {
-                    if (rotation < 0) {
-                        rotation = Math.min(rotation + STEP_DEGREES, 0);
-                    } else {
-                        rotation = Math.max(rotation - STEP_DEGREES, 0);
-                    }
-                } else {
-                    if (rotation < 0) {
-                        rotation = Math.max(rotation - STEP_DEGREES, -MAX_DEGREES);
-                    } else {
-                        rotation = Math.min(rotation + STEP_DEGREES, MAX_DEGREES);
-                    }
-                }
-
-                mRenderer.rotation = rotation;
+                mRenderer.rotation = mAnimator.getRotation(mFrameTime);
                 requestRender();
             }
+        } else {
+            mAnimator.stopRotation();
+        }
+
+        if (mAnimate || isRotating) {
+            mVsyncClock.start();
         }
     }
 
+    /**
+     * Sets clock animations are computed from, null restores the default
+     * one following display vsync. Given clock is called on GL thread.
+     */
+    public void setAnimationClock(AnimationClock clock) {
+        mAnimationClock = clock != null ? clock : mVsyncClock;
+    }
+
     @Override
     public void onPageSizeChanged(int width, int height) {
         mPageBitmapWidth = width;
         mPageBitmapHeight = height;
+        // Let meshes choose curl split count based on on-screen page size.
+        RectF pageRect = mRenderer.getPageRect(CurlRenderer.PAGE_BOTTOM);
+        float pixelsPerUnit = pageRect.width() > 0 ? width / pageRect.width() : 0;
+        mPageTop.setPixelsPerUnit(pixelsPerUnit);
+        mPageBottom.setPixelsPerUnit(pixelsPerUnit);
+        mPageCurl.setPixelsPerUnit(pixelsPerUnit);
         updatePages();
         requestRender();
     }
@@ -272,37 +356,96 @@ public class CurlView extends GLSurfaceView implements View.OnTouchListener, Cur
             return true;
         }
 
-        switch (event.getAction() & MotionEvent.ACTION_MASK) {
+        int action = event.getAction() & MotionEvent.ACTION_MASK;
+        switch (action) {
             case MotionEvent.ACTION_DOWN:
-                touchCurlEvent(event);
+                mTouchClaimed = isCurlStart(event.getX(), event.getY());
+                queueTouchSample(event, false);
                 return true;
             case MotionEvent.ACTION_UP:
-                touchCurlEvent(event);
+                queueTouchSample(event, false);
                 break;
             case MotionEvent.ACTION_MOVE:
                 //Log.d("pid number", String.valueOf(event.getAction() >> MotionEvent.ACTION_POINTER_ID_SHIFT));
                 for (int i = 0; i < event.getPointerCount(); i++) {
-                    if (event.getPointerId(i) == 0) touchCurlEvent(event);
+                    if (event.getPointerId(i) == 0) queueTouchSample(event, true);
                 }
                 break;
         }
 
-        if (!curling) {
+        if (!mTouchClaimed && !curling) {
             gestureDetector.touchEvent(event);
         }
+        if (action == MotionEvent.ACTION_UP || action == MotionEvent.ACTION_CANCEL) {
+            mTouchClaimed = false;
+        }
 
         return true;
     }
 
-    private void touchCurlEvent(MotionEvent event) {
+    /**
+     * Returns true if touch going down at given screen position starts a
+     * curl, which is when it's on the bottom quarter of bottom page. Called
+     * on UI thread.
+     */
+    private boolean isCurlStart(float x, float y) {
+        if (isCurled) {
+            return false;
+        }
+        mTouchPos.set(x, y);
+        mRenderer.translate(mTouchPos);
+        return isCurlStartY(mTouchPos.y, mRenderer.getPageRect(CurlRenderer.PAGE_BOTTOM));
+    }
+
+    /**
+     * Returns true if given view y, clamped to page, is within the bottom
+     * quarter of given page rect curls start from.
+     */
+    private static boolean isCurlStartY(float y, RectF pageRect) {
+        y = Math.max(pageRect.bottom, Math.min(y, pageRect.top));
+        return y <= pageRect.bottom + (pageRect.top - pageRect.bottom) / 4;
+    }
+
+    /**
+     * Queues touch sample for handling on GL thread.
+     */
+    private void queueTouchSample(MotionEvent event, boolean droppable) {
+        mTouchQueue.offer(event.getAction(), event.getX(), event.getY(), droppable);
+        requestRender();
+    }
+
+    /**
+     * Handles touch samples queued since previous frame. Consecutive moves
+     * are coalesced so that curl is calculated only once for the latest
+     * pointer position.
+     */
+    private void handleTouchSamples() {
+        boolean movePending = false;
+        float moveX = 0, moveY = 0;
+        while (mTouchQueue.poll()) {
+            int action = mTouchQueue.getAction();
+            if (action == MotionEvent.ACTION_MOVE) {
+                movePending = true;
+                moveX = mTouchQueue.getX();
+                moveY = mTouchQueue.getY();
+                continue;
+            }
+            if (movePending) {
+                touchCurlEvent(MotionEvent.ACTION_MOVE, moveX, moveY);
+                movePending = false;
+            }
+            touchCurlEvent(action, mTouchQueue.getX(), mTouchQueue.getY());
+        }
+        if (movePending) {
+            touchCurlEvent(MotionEvent.ACTION_MOVE, moveX, moveY);
+        }
+    }
+
+    private void touchCurlEvent(int action, float x, float y) {
         // No dragging during animation at the moment.
         // Stop animation on touch event and return to drag mode.
         if (isCurled) return;
 
-        int action = event.getAction();
-        float x = event.getX();
-        float y = event.getY();
-
         // We need page rects quite extensively so get them for later use.
         RectF bottomRect = mRenderer.getPageRect(CurlRenderer.PAGE_BOTTOM);
         RectF topRect = mRenderer.getPageRect(CurlRenderer.PAGE_TOP);
@@ -330,8 +473,7 @@ public class CurlView extends GLSurfaceView implements View.OnTouchListener, Cur
 
                 // Then we have to make decisions for the user whether curl is going
                 // to happen from left or right, and on which page.
-                float startRangeY = bottomRect.bottom + (bottomRect.top - bottomRect.bottom) / 4;
-                if (mDragStartPos.y <= startRangeY) {
+                if (isCurlStartY(mDragStartPos.y, bottomRect)) {
                     mDragStartPos.y = bottomRect.bottom;
                     startCurl();
                 }
@@ -351,21 +493,17 @@ public class CurlView extends GLSurfaceView implements View.OnTouchListener, Cur
                     // result (which is easier done by altering curl position and/or
                     // direction directly), this is done in a hope it made code a
                     // bit more readable and easier to maintain.
-                    mAnimationSource.set(mPointerPos);
-                    mAnimationStartTime = System.currentTimeMillis();
-
                     // Given the explanation, here we decide whether to simulate
                     // drag to left or right end.
                     if ( mPointerPos.y < bottomRect.top) {
                         // On right side target is always right page's right border.
-                        mAnimationTarget.set(mDragStartPos);
-                        mAnimationTarget.y = mRenderer.getPageRect(CurlRenderer.PAGE_BOTTOM).bottom;
-                        mAnimationTargetEvent = SET_CURL_TO_BOTTOM;
+                        mAnimator.startCurl(mPointerPos.x, mPointerPos.y, mDragStartPos.x,
+                                mRenderer.getPageRect(CurlRenderer.PAGE_BOTTOM).bottom,
+                                CurlAnimator.SET_CURL_TO_BOTTOM, mFrameTime);
                     } else {
                         // On left side target depends on visible pages.
-                        mAnimationTarget.x = mDragStartPos.x;
-                        mAnimationTarget.y = topRect.top;
-                        mAnimationTargetEvent = SET_CURL_TO_TOP;
+                        mAnimator.startCurl(mPointerPos.x, mPointerPos.y, mDragStartPos.x,
+                                topRect.top, CurlAnimator.SET_CURL_TO_TOP, mFrameTime);
                     }
                     mAnimate = true;
                     requestRender();
@@ -375,15 +513,23 @@ public class CurlView extends GLSurfaceView implements View.OnTouchListener, Cur
         }
     }
 
+    /**
+     * Slides curled page into place once curl animation is done, taking as
+     * long as the curl animation did.
+     */
     private void finishCurling(){
-        long currentTime = System.currentTimeMillis();
-        if (currentTime >= mAnimationStartTime + 2 * mAnimationDurationTime) {
+        if (!mAnimator.isSliding()) {
+            mAnimator.startSlide(mRenderer.getPageRect(CurlRenderer.PAGE_TOP).top,
+                    mRenderer.getPageRect(CurlRenderer.PAGE_BOTTOM).top);
+        }
+        if (mAnimator.isSlideFinished(mFrameTime)) {
+            mAnimator.stopCurl();
             RectF rectf = mRenderer.getPageRect(CurlRenderer.PAGE_TOP);
             float boundY =  mRenderer.getPageRect(CurlRenderer.PAGE_BOTTOM).top;
             if (rectf.top > boundY) {
                 CurlMesh topside = mPageCurl;
-                rectf.offset(0f, boundY - rectf.top);
-                topside.setRect(rectf);
+                mRenderer.offsetPageRect(CurlRenderer.PAGE_TOP, 0f, boundY - rectf.top);
+                topside.setRect(mRenderer.getPageRect(CurlRenderer.PAGE_TOP));
                 topside.setFlipTexture(true);
                 topside.reset();
                 requestRender();
@@ -411,16 +557,10 @@ public class CurlView extends GLSurfaceView implements View.OnTouchListener, Cur
             CurlMesh topside = mPageCurl;
 //			CurlMesh curl = mPageTop;
             RectF rectf = mRenderer.getPageRect(CurlRenderer.PAGE_TOP);
-            float offsetY = (float) (currentTime - mAnimationStartTime) / (2 * mAnimationDurationTime);
-            offsetY = (1f - (float)Math.pow(offsetY, 4)) / 16;
-            float limitY =  mRenderer.getPageRect(CurlRenderer.PAGE_BOTTOM).top;
-            if ((rectf.top - offsetY) < limitY){
-                rectf.offset(0f, limitY - rectf.top);
-            } else {
-                rectf.offset(0f, -offsetY);
-            }
+            mRenderer.offsetPageRect(CurlRenderer.PAGE_TOP, 0f,
+                    mAnimator.getSlideY(mFrameTime) - rectf.top);
 //			rectf.offset(0f, -0.2f);
-            topside.setRect(rectf);
+            topside.setRect(mRenderer.getPageRect(CurlRenderer.PAGE_TOP));
             topside.setFlipTexture(true);
             topside.reset();
             requestRender();
@@ -520,7 +660,7 @@ public class CurlView extends GLSurfaceView implements View.OnTouchListener, Cur
         if (dist != 0) {
             mCurlDir.x /= dist;
             mCurlDir.y /= dist;
-            mPageCurl.curl(mCurlPos, mCurlDir, radius);
+            mPageCurl.curl(mCurlPos, mCurlDir, (float) radius);
         } else {
             mPageCurl.reset();
         }
@@ -535,7 +675,10 @@ public class CurlView extends GLSurfaceView implements View.OnTouchListener, Cur
         // First reset page to initial state.
         page.reset();
         // Ask page provider to fill it up with bitmaps and colors.
+        long start = System.nanoTime();
         mPageProvider.updatePage(this, page, mPageBitmapWidth, mPageBitmapHeight, index);
+        mRenderer.getFrameMetrics().add(CurlFrameMetrics.UPDATE_PAGE_TIME,
+                System.nanoTime() - start);
     }
 
     /**
@@ -551,6 +694,12 @@ public class CurlView extends GLSurfaceView implements View.OnTouchListener, Cur
         mRenderer.removeCurlMesh(mPageBottom);
         mRenderer.removeCurlMesh(mPageCurl);
 
+        // Orientation constants count quarter turns clockwise, pages are
+        // given unrotated textures.
+        mPageTop.setTextureRotation(orientation);
+        mPageBottom.setTextureRotation(orientation);
+        mPageCurl.setTextureRotation(orientation);
+
         if (isCurled) {
             updatePage(mPageTop.getTexturePage(), 0);
             mPageTop.setFlipTexture(true);
@@ -579,6 +728,25 @@ public class CurlView extends GLSurfaceView implements View.OnTouchListener, Cur
      * of .1f will produce a 10% margin.
      */
     public void setMargins() {
+        final RectF margins = getMargins(orientation);
+        if (margins != null) {
+            // Page rects and meshes are updated on GL thread.
+            queueEvent(new Runnable() {
+                @Override
+                public void run() {
+                    mRenderer.setMargins(margins.left, margins.top, margins.right,
+                            margins.bottom);
+                }
+            });
+        }
+    }
+
+    /**
+     * Returns margins for given orientation fitting card into view, null if
+     * view has no size yet. Reads view state, so should be called on UI
+     * thread.
+     */
+    private RectF getMargins(int orientation) {
         float width = getWidth();
         float height = getHeight();
 
@@ -606,8 +774,77 @@ public class CurlView extends GLSurfaceView implements View.OnTouchListener, Cur
                 bottom = top;
             }
 
-            mRenderer.setMargins(left, top, right, bottom);
+            return new RectF(left, top, right, bottom);
         }
+        return null;
+    }
+
+    /**
+     * Returns true if texture registered with given key is still available,
+     * in which case page can refer to it by key instead of providing bitmap
+     * again. Should be called from updatePage only as it runs on GL thread.
+     */
+    public boolean hasTexture(Object key) {
+        return mRenderer.getTextureRegistry().contains(key);
+    }
+
+    /**
+     * Sets format page bitmaps are uploaded in, see
+     * CurlTextureRegistry.setTextureFormat. Chosen by device memory unless
+     * set here.
+     */
+    public void setTextureFormat(final int textureFormat) {
+        queueEvent(new Runnable() {
+            @Override
+            public void run() {
+                mRenderer.getTextureRegistry().setTextureFormat(textureFormat);
+            }
+        });
+    }
+
+    /**
+     * Returns metrics of frames drawn, e.g for reading percentiles of curl,
+     * upload and draw times or setting a listener reporting them.
+     */
+    public CurlFrameMetrics getFrameMetrics() {
+        return mRenderer.getFrameMetrics();
+    }
+
+    /**
+     * Returns format page bitmaps are uploaded in, see setTextureFormat.
+     * Should be called from updatePage only as it runs on GL thread.
+     */
+    public int getTextureFormat() {
+        return mRenderer.getTextureRegistry().getTextureFormat();
+    }
+
+    /**
+     * Returns true if pages can be given ETC1 compressed textures.
+     */
+    public boolean isEtc1Supported() {
+        return mRenderer.isEtc1Supported();
+    }
+
+    /**
+     * Asks page provider to update pages shown again, e.g once a face it had
+     * to leave out has become available. Unlike changing pages this keeps
+     * their geometry, so a page being curled stays curled. Can be called from
+     * any thread.
+     */
+    public void requestPageUpdate() {
+        queueEvent(new Runnable() {
+            @Override
+            public void run() {
+                if (mPageProvider == null || mPageBitmapWidth <= 0 || mPageBitmapHeight <= 0) {
+                    return;
+                }
+                updatePage((isCurled ? mPageTop : mPageBottom).getTexturePage(), 0);
+                if (curling) {
+                    updatePage(mPageCurl.getTexturePage(), 0);
+                }
+                requestRender();
+            }
+        });
     }
 
     /**
@@ -615,8 +852,13 @@ public class CurlView extends GLSurfaceView implements View.OnTouchListener, Cur
      */
     public void setPageProvider(PageProvider pageProvider) {
         mPageProvider = pageProvider;
-        updatePages();
-        requestRender();
+        queueEvent(new Runnable() {
+            @Override
+            public void run() {
+                updatePages();
+                requestRender();
+            }
+        });
     }
 
 
@@ -666,26 +908,27 @@ public class CurlView extends GLSurfaceView implements View.OnTouchListener, Cur
 
     @Override
     public void onRotateBegan() {
-        mCurlPos.x = mCurlPos.y = 0;
-        mCurlDir.x = mCurlDir.y = 0;
-        curling = false;
-        mAnimationSource.x = 0;
-        mAnimationSource.y = 0;
-        mAnimationTarget.x = 0;
-        mAnimationTarget.y = 0;
-        mAnimationStartTime = 0;
-        mAnimationTargetEvent = 0;
-        mAnimate = false;
-        if (mPageCurl != null) {
-            mPageCurl.reset();
-        }
+        queueEvent(new Runnable() {
+            @Override
+            public void run() {
+                mCurlPos.x = mCurlPos.y = 0;
+                mCurlDir.x = mCurlDir.y = 0;
+                curling = false;
+                mAnimator.stopCurl();
+                mAnimate = false;
+                if (mPageCurl != null) {
+                    mPageCurl.reset();
+                }
 
-        requestRender();
+                requestRender();
+            }
+        });
     }
 
     @Override
     public void onRotation(float degrees) {
-        mRenderer.rotation = (degrees < 0) ? Math.max(degrees, -MAX_DEGREES) : Math.min(degrees, MAX_DEGREES);
+        mRenderer.rotation = (degrees < 0) ? Math.max(degrees, -CurlAnimator.MAX_DEGREES)
+                : Math.min(degrees, CurlAnimator.MAX_DEGREES);
         requestRender();
     }
 
@@ -702,6 +945,66 @@ public class CurlView extends GLSurfaceView implements View.OnTouchListener, Cur
         return (Math.abs(mRenderer.rotation) >= 45);
     }
 
+    /**
+     * Clock returning time of latest vsync while animations run, which keeps
+     * animation steps even. Falls back to System.nanoTime if there is no
+     * recent vsync, e.g before Choreographer is available in API 16.
+     */
+    private class VsyncClock implements AnimationClock {
+        private volatile long mVsyncTime;
+        private volatile boolean mRunning;
+        // Latest time returned, frame time never goes back from it.
+        private long mLastTime;
+        // Created on first start, as Choreographer classes can't be loaded
+        // on older platforms.
+        private Runnable mVsyncCallback;
+
+        @Override
+        public long getFrameTimeNanos() {
+            long now = System.nanoTime();
+            long vsync = mVsyncTime;
+            long time = now - vsync <= MAX_VSYNC_AGE_NANOS ? vsync : now;
+            mLastTime = Math.max(time, mLastTime);
+            return mLastTime;
+        }
+
+        /**
+         * Starts following vsync until animations end. Called on GL thread.
+         */
+        public void start() {
+            if (mRunning || Build.VERSION.SDK_INT < Build.VERSION_CODES.JELLY_BEAN) {
+                return;
+            }
+            mRunning = true;
+            if (mVsyncCallback == null) {
+                mVsyncCallback = new VsyncCallback();
+            }
+            post(mVsyncCallback);
+        }
+    }
+
+    /**
+     * Records vsync times on UI thread and requests rendering for each while
+     * animations run.
+     */
+    private class VsyncCallback implements Runnable, Choreographer.FrameCallback {
+        @Override
+        public void run() {
+            Choreographer.getInstance().postFrameCallback(this);
+        }
+
+        @Override
+        public void doFrame(long frameTimeNanos) {
+            mVsyncClock.mVsyncTime = frameTimeNanos;
+            if (mAnimate || isRotating) {
+                requestRender();
+                Choreographer.getInstance().postFrameCallback(this);
+            } else {
+                mVsyncClock.mRunning = false;
+            }
+        }
+    }
+
     /**
      * Provider for feeding 'book' with bitmaps which are used for rendering
      * pages.
@@ -0,0 +1,110 @@
+/**
+ * Copyright (c) 2018 mobdev313. Allright reserved.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package com.mobdev.card.curl;
+
+/**
+ * Value animated from a start value to an end value over given duration.
+ * Values are computed from start time and frame time only, so animation
+ * runs at the same speed at any frame rate and frames replayed from an
+ * AnimationClock give the same values. Has no Android dependencies, which
+ * lets animations be replayed in unit tests.
+ */
+public class TimedAnimation {
+
+    /** Value changes at constant speed. */
+    public static final int LINEAR = 0;
+    /** Value starts fast and slows down to a stop at end value. */
+    public static final int EASE_OUT = 1;
+
+    private float mFrom, mTo;
+    private long mStartTime;
+    private long mDuration;
+    private int mEasing;
+    private boolean mRunning;
+
+    /**
+     * Starts animating from given value to given one, beginning at given
+     * start time and lasting given duration, both in nanoseconds.
+     */
+    public void start(float from, float to, long startTime, long duration, int easing) {
+        mFrom = from;
+        mTo = to;
+        mStartTime = startTime;
+        mDuration = duration;
+        mEasing = easing;
+        mRunning = true;
+    }
+
+    /**
+     * Stops animation, isRunning returns false until started again.
+     */
+    public void stop() {
+        mRunning = false;
+    }
+
+    /**
+     * Returns true if animation has been started and not stopped since.
+     * Finished animation keeps running until stopped.
+     */
+    public boolean isRunning() {
+        return mRunning;
+    }
+
+    /**
+     * Returns time animation starts at in nanoseconds.
+     */
+    public long getStartTime() {
+        return mStartTime;
+    }
+
+    /**
+     * Returns true if animation has reached its end value at given frame
+     * time.
+     */
+    public boolean isFinished(long frameTime) {
+        return frameTime >= mStartTime + mDuration;
+    }
+
+    /**
+     * Returns value at given frame time, start value before start time and
+     * end value once finished.
+     */
+    public float getValue(long frameTime) {
+        return mFrom + (mTo - mFrom) * getProgress(frameTime);
+    }
+
+    /**
+     * Returns eased progress from 0 to 1 at given frame time. Animation
+     * without duration is at its end at any time.
+     */
+    public float getProgress(long frameTime) {
+        if (mDuration <= 0 || isFinished(frameTime)) {
+            return 1f;
+        }
+        float t = (float) Math.max(0, frameTime - mStartTime) / mDuration;
+        if (mEasing == EASE_OUT) {
+            float u = 1f - t;
+            return 1f - u * u * u * (3 - 2 * u);
+        }
+        return t;
+    }
+}
@@ -0,0 +1,110 @@
+/**
+ * Copyright (c) 2018 mobdev313. Allright reserved.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package com.mobdev.card.curl;
+
+/**
+ * Lock-free queue for passing touch samples from UI thread to GL thread. There
+ * must be only one thread calling offer() and one thread calling poll().
+ */
+public class TouchQueue {
+
+    // Samples are stored in primitive ring buffers. Size must be power of 2.
+    private final int[] mActions;
+    private final float[] mX;
+    private final float[] mY;
+    private final int mMask;
+
+    // Index of next sample to read, written by consumer only.
+    private volatile int mHead;
+    // Index of next sample to write, written by producer only.
+    private volatile int mTail;
+
+    // Latest sample returned from poll().
+    private int mAction;
+    private float mSampleX;
+    private float mSampleY;
+
+    /**
+     * Constructor for queue holding at least given number of samples.
+     */
+    public TouchQueue(int capacity) {
+        int size = 2;
+        while (size < capacity) {
+            size <<= 1;
+        }
+        mActions = new int[size];
+        mX = new float[size];
+        mY = new float[size];
+        mMask = size - 1;
+    }
+
+    /**
+     * Adds a sample to queue. Samples which can be dropped, like moves, are
+     * dropped if queue is nearly full. Keeping the last slot free leaves room
+     * for samples which should not be, like the final up event. Returns false
+     * if sample was dropped.
+     */
+    public boolean offer(int action, float x, float y, boolean droppable) {
+        int tail = mTail;
+        int free = mActions.length - (tail - mHead);
+        if (free == 0 || (droppable && free == 1)) {
+            return false;
+        }
+        int index = tail & mMask;
+        mActions[index] = action;
+        mX[index] = x;
+        mY[index] = y;
+        // Volatile write publishes the sample to consumer.
+        mTail = tail + 1;
+        return true;
+    }
+
+    /**
+     * Removes oldest sample from queue. Returns false if queue is empty,
+     * otherwise sample can be read using getAction(), getX() and getY().
+     */
+    public boolean poll() {
+        int head = mHead;
+        if (head == mTail) {
+            return false;
+        }
+        int index = head & mMask;
+        mAction = mActions[index];
+        mSampleX = mX[index];
+        mSampleY = mY[index];
+        // Volatile write releases the slot for producer.
+        mHead = head + 1;
+        return true;
+    }
+
+    public int getAction() {
+        return mAction;
+    }
+
+    public float getX() {
+        return mSampleX;
+    }
+
+    public float getY() {
+        return mSampleY;
+    }
+}
@@ -0,0 +1,212 @@
+/**
+ * Copyright (c) 2018 mobdev313. Allright reserved.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package com.mobdev.card.curl;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+
+import org.junit.Test;
+
+/**
+ * Replays CurlView animations frame by frame with clocks of 30, 60 and 120
+ * Hz, the way CurlView.onDrawFrame drives them, and checks they finish at
+ * the same time on the same positions and pass the same positions at
+ * frame times the clocks share.
+ */
+public class CurlAnimatorTest {
+
+    private static final long NANOS_PER_MILLI = 1000000L;
+    private static final long DURATION = 500 * NANOS_PER_MILLI;
+    private static final long START = 123456789L;
+    private static final int[] FRAME_RATES = { 30, 60, 120 };
+    private static final float EPSILON = 1e-4f;
+
+    // Page rects in view coordinates, curl starts from bottom of page.
+    private static final float PAGE_BOTTOM = -.8f;
+    private static final float TOP_PAGE_TOP = 1.6f;
+    private static final float BOTTOM_PAGE_TOP = .8f;
+
+    /**
+     * Clock at given frame rate starting from START, as vsync would be.
+     * Frame times at 30 Hz are frame times at 60 and 120 Hz too.
+     */
+    private static class ReplayClock implements AnimationClock {
+        private final int mFrameRate;
+        private long mFrame;
+
+        ReplayClock(int frameRate) {
+            mFrameRate = frameRate;
+        }
+
+        @Override
+        public long getFrameTimeNanos() {
+            return START + mFrame++ * 1000000000L / mFrameRate;
+        }
+    }
+
+    /**
+     * Frames replayed, values recorded for each frame time until finished.
+     */
+    private static class Replay {
+        final ArrayList<Long> mTimes = new ArrayList<Long>();
+        final ArrayList<Float> mValues = new ArrayList<Float>();
+        long mFinishTime;
+        float mEndValue;
+
+        void add(long time, float value) {
+            mTimes.add(time);
+            mValues.add(value);
+        }
+
+        float getValue(long time) {
+            int index = mTimes.indexOf(time);
+            assertTrue("no frame at " + time, index >= 0);
+            return mValues.get(index);
+        }
+    }
+
+    /**
+     * Replays curl from given pointer position to given page the way
+     * onDrawFrame and finishCurling do, recording pointer y during curl and
+     * page top during slide. Finishes when curled page is switched.
+     */
+    private static Replay replayCurl(AnimationClock clock, float fromY, int target) {
+        CurlAnimator animator = new CurlAnimator(DURATION);
+        Replay replay = new Replay();
+        float toY = target == CurlAnimator.SET_CURL_TO_TOP ? TOP_PAGE_TOP : PAGE_BOTTOM;
+        // Touch ends and animation starts on the frame handling it.
+        animator.startCurl(.2f, fromY, 0f, toY, target, clock.getFrameTimeNanos());
+        while (true) {
+            long time = clock.getFrameTimeNanos();
+            if (!animator.isCurlFinished(time)) {
+                replay.add(time, animator.getCurlY(time));
+                continue;
+            }
+            if (animator.getCurlTarget() == CurlAnimator.SET_CURL_TO_BOTTOM) {
+                replay.mFinishTime = time;
+                replay.mEndValue = animator.getCurlY(time);
+                return replay;
+            }
+            if (!animator.isSliding()) {
+                animator.startSlide(TOP_PAGE_TOP, BOTTOM_PAGE_TOP);
+            }
+            if (animator.isSlideFinished(time)) {
+                replay.mFinishTime = time;
+                replay.mEndValue = animator.getSlideY(time);
+                return replay;
+            }
+            replay.add(time, animator.getSlideY(time));
+        }
+    }
+
+    /**
+     * Replays rotation snap from given rotation the way onDrawFrame does.
+     */
+    private static Replay replayRotation(AnimationClock clock, float rotation) {
+        CurlAnimator animator = new CurlAnimator(DURATION);
+        Replay replay = new Replay();
+        while (true) {
+            long time = clock.getFrameTimeNanos();
+            if (!animator.isRotating()) {
+                animator.startRotation(rotation, time);
+            }
+            if (animator.isRotationFinished(time)) {
+                replay.mFinishTime = time;
+                replay.mEndValue = animator.getRotation(time);
+                return replay;
+            }
+            replay.add(time, animator.getRotation(time));
+        }
+    }
+
+    /**
+     * Checks replays at other frame rates against the one at the first
+     * frame rate, which has the fewest frames.
+     */
+    private static void assertSameReplays(Replay[] replays) {
+        Replay first = replays[0];
+        for (Replay replay : replays) {
+            assertEquals(first.mFinishTime, replay.mFinishTime);
+            assertEquals(first.mEndValue, replay.mEndValue, EPSILON);
+            for (int i = 0; i < first.mTimes.size(); ++i) {
+                long time = first.mTimes.get(i);
+                assertEquals(first.mValues.get(i), replay.getValue(time), EPSILON);
+            }
+        }
+    }
+
+    @Test
+    public void curlToBottomFinishesAtSameTimeAtAnyFrameRate() {
+        Replay[] replays = new Replay[FRAME_RATES.length];
+        for (int i = 0; i < FRAME_RATES.length; ++i) {
+            replays[i] = replayCurl(new ReplayClock(FRAME_RATES[i]), .3f,
+                    CurlAnimator.SET_CURL_TO_BOTTOM);
+        }
+        assertSameReplays(replays);
+        assertEquals(START + DURATION, replays[0].mFinishTime);
+        assertEquals(PAGE_BOTTOM, replays[0].mEndValue, EPSILON);
+    }
+
+    @Test
+    public void curlToTopAndSlideFinishAtSameTimeAtAnyFrameRate() {
+        Replay[] replays = new Replay[FRAME_RATES.length];
+        for (int i = 0; i < FRAME_RATES.length; ++i) {
+            replays[i] = replayCurl(new ReplayClock(FRAME_RATES[i]), .9f,
+                    CurlAnimator.SET_CURL_TO_TOP);
+        }
+        assertSameReplays(replays);
+        // Slide lasts as long as curl and ends on top of bottom page.
+        assertEquals(START + 2 * DURATION, replays[0].mFinishTime);
+        assertEquals(BOTTOM_PAGE_TOP, replays[0].mEndValue, EPSILON);
+    }
+
+    @Test
+    public void rotationSnapsToSameAngleAtSameTimeAtAnyFrameRate() {
+        // Angles snapping in an even number of nominal frames, so that the
+        // finishing frame time is on the 30 Hz grid.
+        float[] rotations = { 30f, 60f, -54f, -90f };
+        float[] targets = { 0f, 90f, -90f, -90f };
+        for (int r = 0; r < rotations.length; ++r) {
+            Replay[] replays = new Replay[FRAME_RATES.length];
+            for (int i = 0; i < FRAME_RATES.length; ++i) {
+                replays[i] = replayRotation(new ReplayClock(FRAME_RATES[i]), rotations[r]);
+            }
+            assertSameReplays(replays);
+            assertEquals(targets[r], replays[0].mEndValue, EPSILON);
+            // Snap speed is 3 degrees per nominal frame.
+            long duration = (long) (Math.abs(targets[r] - rotations[r]) / 3f
+                    * CurlAnimator.NOMINAL_FRAME_NANOS);
+            assertTrue(replays[0].mFinishTime >= START + duration);
+            assertTrue(replays[0].mFinishTime < START + duration + 1000000000L / 30);
+        }
+    }
+
+    @Test
+    public void snapTargetDependsOnHalfwayAngle() {
+        assertEquals(0f, CurlAnimator.getSnapTarget(44.9f), EPSILON);
+        assertEquals(90f, CurlAnimator.getSnapTarget(45f), EPSILON);
+        assertEquals(-90f, CurlAnimator.getSnapTarget(-45f), EPSILON);
+        assertEquals(0f, CurlAnimator.getSnapTarget(-10f), EPSILON);
+    }
+}
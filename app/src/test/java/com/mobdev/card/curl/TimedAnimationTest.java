@@ -0,0 +1,82 @@
+/**
+ * Copyright (c) 2018 mobdev313. Allright reserved.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package com.mobdev.card.curl;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+/**
+ * Checks values TimedAnimation computes from frame times.
+ */
+public class TimedAnimationTest {
+
+    private static final long NANOS_PER_MILLI = 1000000L;
+    private static final long DURATION = 500 * NANOS_PER_MILLI;
+    private static final float EPSILON = 1e-4f;
+
+    @Test
+    public void linearValuesDependOnTimeOnly() {
+        TimedAnimation animation = new TimedAnimation();
+        animation.start(45f, 90f, 1000L, DURATION, TimedAnimation.LINEAR);
+        assertEquals(45f, animation.getValue(0L), EPSILON);
+        assertEquals(45f, animation.getValue(1000L), EPSILON);
+        assertEquals(67.5f, animation.getValue(1000L + DURATION / 2), EPSILON);
+        assertEquals(90f, animation.getValue(1000L + DURATION), EPSILON);
+        assertEquals(90f, animation.getValue(1000L + 2 * DURATION), EPSILON);
+    }
+
+    @Test
+    public void easeOutStartsFastAndStopsAtEnd() {
+        TimedAnimation animation = new TimedAnimation();
+        animation.start(0f, 1f, 0L, DURATION, TimedAnimation.EASE_OUT);
+        assertEquals(0f, animation.getProgress(0L), EPSILON);
+        assertTrue(animation.getProgress(DURATION / 4) > .25f);
+        assertTrue(animation.getProgress(DURATION / 2) > .5f);
+        assertEquals(1f, animation.getProgress(DURATION - 1), 1e-3f);
+        assertEquals(1f, animation.getProgress(DURATION), EPSILON);
+    }
+
+    @Test
+    public void zeroDurationFinishesAtOnce() {
+        TimedAnimation animation = new TimedAnimation();
+        animation.start(30f, 30f, 10L, 0L, TimedAnimation.LINEAR);
+        assertTrue(animation.isFinished(10L));
+        assertEquals(30f, animation.getValue(10L), EPSILON);
+        // Frame times before start give end value too instead of NaN.
+        assertFalse(animation.isFinished(5L));
+        assertEquals(1f, animation.getProgress(5L), EPSILON);
+        assertEquals(30f, animation.getValue(5L), EPSILON);
+    }
+
+    @Test
+    public void stopEndsRunning() {
+        TimedAnimation animation = new TimedAnimation();
+        assertFalse(animation.isRunning());
+        animation.start(0f, 1f, 0L, DURATION, TimedAnimation.LINEAR);
+        assertTrue(animation.isRunning());
+        animation.stop();
+        assertFalse(animation.isRunning());
+    }
+}